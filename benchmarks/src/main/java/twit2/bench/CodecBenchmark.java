@@ -0,0 +1,107 @@
+package twit2.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import twit2.io.ByteReader;
+import twit2.io.ByteWriter;
+import twit2.io.Frame;
+import twit2.io.FrameReader;
+import twit2.io.FrameWriter;
+
+/**
+ * Measures encoding and decoding single messages with {@link ByteWriter} and
+ * {@link ByteReader}, the way the name server and the peers read and write
+ * KEEPALIVE and presence updates, and with the reusable buffer of a
+ * {@link FrameReader}, matching the type of a message without decoding it.
+ * The streams are in memory, so only the cost of the codec itself is
+ * measured.
+ * 
+ * @author os75
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	private static final int MAX_MESSAGE_LENGTH = 141;
+
+	@Param({ "KEEPALIVE", "ONL nickname;192.168.100.200;60514" })
+	public String message;
+
+	private byte[] bytes;
+	private byte[] line;
+	private ByteArrayOutputStream out;
+	private ByteArrayInputStream in;
+	private ByteArrayInputStream lineIn;
+	private ByteArrayInputStream frameIn;
+	private FrameReader reader;
+	private FrameReader frameReader;
+
+	@Setup
+	public void setUp() {
+		bytes = message.getBytes();
+		line = (message + "\n").getBytes();
+		out = new ByteArrayOutputStream(MAX_MESSAGE_LENGTH);
+		in = new ByteArrayInputStream(bytes);
+		lineIn = new ByteArrayInputStream(line);
+		reader = new FrameReader(in, false, ByteBuffer.allocate(256));
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		FrameWriter writer = new FrameWriter(frame, true);
+		try {
+			writer.send(Frame.MESSAGE, bytes);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		frameIn = new ByteArrayInputStream(frame.toByteArray());
+		frameReader = new FrameReader(frameIn);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		out.reset();
+		ByteWriter.write(out, message);
+		return out.size();
+	}
+
+	@Benchmark
+	public String decode() throws IOException {
+		in.reset();
+		return ByteReader.read(in, MAX_MESSAGE_LENGTH);
+	}
+
+	@Benchmark
+	public int decodeReused() throws IOException {
+		in.reset();
+		return reader.next(MAX_MESSAGE_LENGTH);
+	}
+
+	@Benchmark
+	public int decodeFrame() throws IOException {
+		frameIn.reset();
+		return frameReader.next(MAX_MESSAGE_LENGTH);
+	}
+
+	@Benchmark
+	public String decodeLine() throws IOException {
+		lineIn.reset();
+		return ByteReader.readLine(lineIn, MAX_MESSAGE_LENGTH);
+	}
+}
@@ -0,0 +1,528 @@
+package twit2.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * The LoadGenerator simulates many peers against a name server running on
+ * the same machine, to find out how the name server behaves as they join,
+ * stay connected and leave. Every simulated peer speaks the protocol of the
+ * real client: it sends "nickname port", reads the user list, sends
+ * KEEPALIVE every few seconds and leaves with /quit, or by dropping the
+ * connection.
+ * 
+ * Peers arrive at random at a given average rate, up to a given number at
+ * once, and each stays for a random time around a given average. A few
+ * observers stay connected throughout and ask for sequenced updates, so the
+ * ONL of each new peer can be told apart and timed.
+ * 
+ * At the end it reports the percentiles of the join latency, from starting
+ * to connect to receiving the user list, and of the ONL propagation delay,
+ * from sending the handshake to an observer receiving the ONL, along with
+ * the number of errors of each kind.
+ * 
+ * All connections are driven by one selector on one thread, so thousands of
+ * peers cost the load generator little. They all come from one address, so
+ * the name server must be run without --connect-rate and --register-rate,
+ * which are off by default, or its admission control turns most of them
+ * away.
+ * 
+ * @author os75
+ */
+public class LoadGenerator implements Runnable {
+	private static final int DEFAULT_PORT = 60514;
+	private static final int REPORT_INTERVAL = 5000;
+	private static final int CONNECTING = 0;
+	private static final int JOINING = 1;
+	private static final int JOINED = 2;
+	private static final int CLOSED = 3;
+	private static final int KEEPALIVE = 0;
+	private static final int DEPART = 1;
+	private static final byte[] KEEPALIVE_MESSAGE = "KEEPALIVE".getBytes();
+	private static final byte[] QUIT_MESSAGE = "/quit".getBytes();
+
+	private InetSocketAddress server;
+	private int maxPeers;
+	private double rate;
+	private long lifetime;
+	private long keepalive;
+	private long duration;
+	private int observerCount;
+	private double drop;
+	private Selector selector;
+	private Random random;
+	private String run;
+	private ByteBuffer discard;
+	private PriorityQueue<Timer> timers;
+	private long nextArrival;
+	private int next;
+	private int peers;
+	// When each peer still being waited for by the observers sent its
+	// handshake, by nickname.
+	private Map<String, Long> handshakes;
+	private List<Long> joinLatencies;
+	private List<Long> propagationDelays;
+	private int attempts;
+	private int joined;
+	private int departed;
+	private int connectFailures;
+	private int disconnects;
+	private Map<String, Integer> rejections;
+
+	/**
+	 * Create a new load generator.
+	 * 
+	 * @param port
+	 *            The port number of the name server, on localhost.
+	 * @param maxPeers
+	 *            The number of peers connected at once.
+	 * @param rate
+	 *            The average number of peers arriving per second.
+	 * @param lifetime
+	 *            The average number of milliseconds a peer stays, or 0 for
+	 *            peers which stay until the end.
+	 * @param keepalive
+	 *            The number of milliseconds between KEEPALIVE messages.
+	 * @param duration
+	 *            The number of milliseconds to run for.
+	 * @param observers
+	 *            The number of observers timing ONL updates.
+	 * @param drop
+	 *            The fraction of peers which leave by dropping the connection
+	 *            instead of sending /quit.
+	 * @throws IOException
+	 *             If the selector cannot be opened.
+	 */
+	public LoadGenerator(int port, int maxPeers, double rate, long lifetime,
+			long keepalive, long duration, int observers, double drop)
+			throws IOException {
+		server = new InetSocketAddress(InetAddress.getByName(null), port);
+		this.maxPeers = maxPeers;
+		this.rate = rate;
+		this.lifetime = lifetime;
+		this.keepalive = keepalive;
+		this.duration = duration;
+		this.observerCount = observers;
+		this.drop = drop;
+		selector = Selector.open();
+		random = new Random();
+		// Keeps the nicknames of one run apart from those of the last.
+		run = Long.toString(System.currentTimeMillis() % 1000000, 36);
+		discard = ByteBuffer.allocateDirect(64 * 1024);
+		timers = new PriorityQueue<Timer>();
+		handshakes = new HashMap<String, Long>();
+		joinLatencies = new ArrayList<Long>();
+		propagationDelays = new ArrayList<Long>();
+		rejections = new TreeMap<String, Integer>();
+	}
+
+	/**
+	 * Run the load, then print the report.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+		long nextReport = start + REPORT_INTERVAL * 1000000L;
+		try {
+			for (int i = 0; i < observerCount; i++) {
+				connect(new Connection("observer-" + run + "-" + i, true));
+			}
+			nextArrival = start;
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				while (nextArrival <= now && peers < maxPeers) {
+					connect(new Connection("load-" + run + "-" + next++, false));
+					nextArrival += (long) (-Math.log(1 - random.nextDouble())
+							/ rate * 1e9);
+				}
+				if (peers >= maxPeers && nextArrival < now)
+					nextArrival = now;
+				runTimers(now);
+				if (now >= nextReport) {
+					report((now - start) / 1000000000L);
+					nextReport += REPORT_INTERVAL * 1000000L;
+				}
+				long wait = Math.min(end, Math.min(nextReport, nextArrival));
+				if (!timers.isEmpty())
+					wait = Math.min(wait, timers.peek().at);
+				selector.select(Math.max(1, (wait - now) / 1000000L));
+				for (SelectionKey key : selector.selectedKeys()) {
+					handle(key);
+				}
+				selector.selectedKeys().clear();
+			}
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				if (connection.state == JOINED)
+					send(connection, QUIT_MESSAGE);
+				close(connection);
+			}
+			selector.close();
+		} catch (IOException e) {
+			System.out.println("IOException: " + e.getMessage());
+		}
+		summarise();
+	}
+
+	private void connect(Connection connection) throws IOException {
+		if (!connection.observer) {
+			peers++;
+			attempts++;
+		}
+		connection.started = System.nanoTime();
+		SocketChannel channel = SocketChannel.open();
+		connection.channel = channel;
+		try {
+			channel.configureBlocking(false);
+			connection.key = channel.register(selector, 0, connection);
+			if (channel.connect(server))
+				connected(connection);
+			else
+				connection.key.interestOps(SelectionKey.OP_CONNECT);
+		} catch (IOException e) {
+			connectFailed(connection);
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		if (!key.isValid())
+			return;
+		try {
+			if (key.isConnectable()) {
+				try {
+					connection.channel.finishConnect();
+				} catch (IOException e) {
+					connectFailed(connection);
+					return;
+				}
+				connected(connection);
+			} else if (key.isReadable()) {
+				read(connection);
+			}
+		} catch (IOException e) {
+			lost(connection);
+		}
+	}
+
+	private void connected(Connection connection) throws IOException {
+		connection.state = JOINING;
+		connection.key.interestOps(SelectionKey.OP_READ);
+		String handshake = connection.nickname + " "
+				+ (20000 + random.nextInt(40000));
+		if (connection.observer)
+			handshake += " seq";
+		else
+			handshakes.put(connection.nickname, System.nanoTime());
+		send(connection, handshake.getBytes());
+	}
+
+	private void read(Connection connection) throws IOException {
+		discard.clear();
+		int length = connection.channel.read(discard);
+		if (length == -1) {
+			lost(connection);
+			return;
+		}
+		long now = System.nanoTime();
+		discard.flip();
+		if (connection.state == JOINING) {
+			if (startsWith(discard, "ERROR")) {
+				byte[] bytes = new byte[discard.remaining()];
+				discard.get(bytes);
+				rejected(connection, new String(bytes).trim());
+				return;
+			}
+			connection.state = JOINED;
+			schedule(new Timer(now + randomDelay(keepalive), KEEPALIVE,
+					connection));
+			if (!connection.observer) {
+				joined++;
+				joinLatencies.add((now - connection.started) / 1000);
+				if (lifetime > 0)
+					schedule(new Timer(now + exponentialDelay(lifetime),
+							DEPART, connection));
+			}
+		}
+		if (connection.observer)
+			observe(connection, now);
+	}
+
+	/**
+	 * Read the updates received by an observer, timing each ONL of a
+	 * simulated peer.
+	 */
+	private void observe(Connection connection, long now) {
+		while (discard.hasRemaining()) {
+			byte b = discard.get();
+			if (connection.skip > 0) {
+				// The body of a SNAP or DELTA.
+				connection.skip--;
+			} else if (b != '\n') {
+				connection.line.append((char) b);
+			} else {
+				String line = connection.line.toString();
+				connection.line.setLength(0);
+				if (line.startsWith("SNAP ") || line.startsWith("DELTA ")) {
+					connection.skip = Integer.parseInt(line.substring(line
+							.lastIndexOf(' ') + 1));
+				} else if (line.startsWith("ONL ")) {
+					int semicolon = line.indexOf(';');
+					Long sent = semicolon == -1 ? null : handshakes.get(line
+							.substring(4, semicolon));
+					if (sent != null)
+						propagationDelays.add((now - sent) / 1000);
+				}
+			}
+		}
+	}
+
+	private void runTimers(long now) throws IOException {
+		while (!timers.isEmpty() && timers.peek().at <= now) {
+			Timer timer = timers.poll();
+			Connection connection = timer.connection;
+			if (connection.state != JOINED)
+				continue;
+			if (timer.kind == KEEPALIVE) {
+				send(connection, KEEPALIVE_MESSAGE);
+				schedule(new Timer(now + keepalive * 1000000L, KEEPALIVE,
+						connection));
+			} else {
+				if (random.nextDouble() >= drop)
+					send(connection, QUIT_MESSAGE);
+				departed++;
+				close(connection);
+			}
+		}
+	}
+
+	private void schedule(Timer timer) {
+		timers.add(timer);
+	}
+
+	private long randomDelay(long millis) {
+		return (long) (random.nextDouble() * millis * 1000000L);
+	}
+
+	private long exponentialDelay(long millis) {
+		return (long) (-Math.log(1 - random.nextDouble()) * millis * 1000000L);
+	}
+
+	/**
+	 * Write a message. Messages are so small that the socket buffer always
+	 * takes them whole.
+	 */
+	private void send(Connection connection, byte[] message) {
+		try {
+			connection.channel.write(ByteBuffer.wrap(message));
+		} catch (IOException e) {
+			lost(connection);
+		}
+	}
+
+	private void connectFailed(Connection connection) {
+		connectFailures++;
+		close(connection);
+	}
+
+	private void rejected(Connection connection, String message) {
+		Integer count = rejections.get(message);
+		rejections.put(message, count == null ? 1 : count + 1);
+		close(connection);
+	}
+
+	/**
+	 * A connection was closed by the name server, or failed.
+	 */
+	private void lost(Connection connection) {
+		if (connection.state == CLOSED)
+			return;
+		if (connection.state == JOINING)
+			rejected(connection, "(closed before the user list)");
+		else {
+			disconnects++;
+			close(connection);
+		}
+	}
+
+	private void close(Connection connection) {
+		if (connection.state == CLOSED)
+			return;
+		connection.state = CLOSED;
+		if (!connection.observer) {
+			peers--;
+			handshakes.remove(connection.nickname);
+		}
+		if (connection.key != null)
+			connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static boolean startsWith(ByteBuffer buffer, String prefix) {
+		if (buffer.remaining() < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(buffer.position() + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void report(long seconds) {
+		System.out.println(seconds + " s: " + peers + " peers, " + joined
+				+ " joined, " + departed + " left, " + errors() + " errors");
+	}
+
+	private int errors() {
+		int errors = connectFailures + disconnects;
+		for (int count : rejections.values()) {
+			errors += count;
+		}
+		return errors;
+	}
+
+	private void summarise() {
+		System.out.println();
+		System.out.println("Peers attempted:        " + attempts);
+		System.out.println("Peers joined:           " + joined);
+		System.out.println("Peers left:             " + departed);
+		System.out.println("Join latency (us):      "
+				+ percentiles(joinLatencies));
+		System.out.println("ONL propagation (us):   "
+				+ percentiles(propagationDelays));
+		System.out.println("Connect failures:       " + connectFailures);
+		System.out.println("Dropped by the server:  " + disconnects);
+		for (Map.Entry<String, Integer> rejection : rejections.entrySet()) {
+			System.out.println("Rejected:               "
+					+ rejection.getValue() + " x " + rejection.getKey());
+		}
+		System.out.println(String.format("Error rate:             %.2f%%",
+				attempts == 0 ? 0.0 : errors() * 100.0 / attempts));
+	}
+
+	private static String percentiles(List<Long> samples) {
+		if (samples.isEmpty())
+			return "no samples";
+		long[] sorted = new long[samples.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = samples.get(i);
+		}
+		Arrays.sort(sorted);
+		return "p50 " + percentile(sorted, 50) + ", p90 "
+				+ percentile(sorted, 90) + ", p99 " + percentile(sorted, 99)
+				+ ", p99.9 " + percentile(sorted, 99.9) + ", max "
+				+ sorted[sorted.length - 1] + " (" + sorted.length
+				+ " samples)";
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		int rank = (int) Math.ceil(sorted.length * percentile / 100);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	/**
+	 * Run the load generator.
+	 * 
+	 * @param args
+	 *            The port number of the name server, 60514 by default,
+	 *            followed by any of:
+	 *            <ul>
+	 *            <li>--peers=n, the number of peers connected at once, 1000
+	 *            by default.</li>
+	 *            <li>--rate=r, the average number of peers arriving per
+	 *            second, 100 by default.</li>
+	 *            <li>--lifetime=ms, the average time a peer stays, 30
+	 *            seconds by default; 0 keeps peers until the end.</li>
+	 *            <li>--drop=f, the fraction of peers which leave without
+	 *            /quit, 0 by default.</li>
+	 *            <li>--keepalive=ms, 3 seconds by default, as in the
+	 *            client.</li>
+	 *            <li>--duration=s, 60 seconds by default.</li>
+	 *            <li>--observers=n, 1 by default.</li>
+	 *            </ul>
+	 * @throws IOException
+	 *             If the selector cannot be opened.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (arg.startsWith("--") && arg.indexOf('=') != -1)
+				options.put(arg.substring(2, arg.indexOf('=')),
+						arg.substring(arg.indexOf('=') + 1));
+			else
+				port = Integer.parseInt(arg);
+		}
+		new LoadGenerator(port, Integer.parseInt(getOption(options, "peers",
+				"1000")), Double.parseDouble(getOption(options, "rate", "100")),
+				Long.parseLong(getOption(options, "lifetime", "30000")),
+				Long.parseLong(getOption(options, "keepalive", "3000")),
+				Long.parseLong(getOption(options, "duration", "60")) * 1000,
+				Integer.parseInt(getOption(options, "observers", "1")),
+				Double.parseDouble(getOption(options, "drop", "0"))).run();
+	}
+
+	private static String getOption(Map<String, String> options, String name,
+			String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * The connection of one simulated peer or observer.
+	 */
+	private static final class Connection {
+		private final String nickname;
+		private final boolean observer;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private int state;
+		private long started;
+		// The line being read by an observer, and the number of bytes of a
+		// user list still to be skipped.
+		private StringBuilder line;
+		private int skip;
+
+		private Connection(String nickname, boolean observer) {
+			this.nickname = nickname;
+			this.observer = observer;
+			state = CONNECTING;
+			line = new StringBuilder();
+		}
+	}
+
+	/**
+	 * Something to do for a connection at a given time.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+		private final long at;
+		private final int kind;
+		private final Connection connection;
+
+		private Timer(long at, int kind, Connection connection) {
+			this.at = at;
+			this.kind = kind;
+			this.connection = connection;
+		}
+
+		public int compareTo(Timer other) {
+			return at < other.at ? -1 : at > other.at ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package twit2.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import twit2.NameServerProfile;
+import twit2.Peer;
+import twit2.io.PresenceCodec;
+
+/**
+ * Measures how the client parses what it receives and stores: a whole user
+ * list with {@link Peer#fromStrings(String[])}, the way it is split on
+ * connect, the same user list in binary with {@link PresenceCodec}, one entry with {@link Peer#fromString(String)}, and one saved
+ * server profile with {@link NameServerProfile#fromLine(String)}.
+ * 
+ * @author os75
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class ParsingBenchmark {
+	private String entry;
+	private String profile;
+
+	@Setup
+	public void setUp() {
+		entry = "nickname;192.168.100.200;60514";
+		profile = "Home;nameserver.example.org;60514";
+	}
+
+	/**
+	 * Split and parse the user list, as the client does when it connects.
+	 */
+	@Benchmark
+	public Peer[] parseUserList(UserList users) {
+		return Peer.fromStrings(users.userList.split("&"));
+	}
+
+	/**
+	 * Decode the binary user list into the same peers.
+	 */
+	@Benchmark
+	public List<Peer> parseBinaryRoster(UserList users) throws IOException {
+		final List<Peer> peers = new ArrayList<Peer>(users.rosterSize);
+		PresenceCodec.decodeRoster(users.binaryRoster, 0,
+				users.binaryRoster.length, new PresenceCodec.Handler() {
+					public void roster(boolean delta, String token) {
+					}
+
+					public void online(int id, String nickname,
+							String hostname, int port) {
+						peers.add(new Peer(id, nickname, hostname, port));
+					}
+
+					public void offline(int id) {
+					}
+
+					public void sequence(String token) {
+					}
+				});
+		return peers;
+	}
+
+	@Benchmark
+	public Peer parseEntry() {
+		return Peer.fromString(entry);
+	}
+
+	@Benchmark
+	public NameServerProfile parseProfile() {
+		return NameServerProfile.fromLine(profile);
+	}
+
+	/**
+	 * A user list of each size, only made for the benchmarks which take it.
+	 */
+	@State(Scope.Benchmark)
+	public static class UserList {
+		@Param({ "10", "1000", "100000", "1000000" })
+		public int rosterSize;
+
+		private String userList;
+		private byte[] binaryRoster;
+
+		@Setup
+		public void setUp() {
+			userList = Rosters.userList(rosterSize);
+			binaryRoster = Rosters.binaryRoster(rosterSize);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package twit2.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import twit2.io.PresenceCodec;
+
+/**
+ * Makes up user lists for the benchmarks, with addresses spread over a few
+ * subnets and ports in a narrow range, as in a real room.
+ * 
+ * @author os75
+ */
+public final class Rosters {
+	private Rosters() {
+	}
+
+	/**
+	 * @param index
+	 *            The index of a peer.
+	 * @return The nickname of the peer.
+	 */
+	public static String nickname(int index) {
+		return "peer" + index;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a peer.
+	 * @return The address of the peer.
+	 */
+	public static String address(int index) {
+		return "10." + (index >>> 16 & 0xff) + "." + (index >>> 8 & 0xff) + "."
+				+ (index & 0xff);
+	}
+
+	/**
+	 * @param index
+	 *            The index of a peer.
+	 * @return The port number of the peer.
+	 */
+	public static int port(int index) {
+		return 60514 + index % 100;
+	}
+
+	/**
+	 * Make up a user list, as sent by the name server.
+	 * 
+	 * @param size
+	 *            The number of peers.
+	 * @return "nickname;address;port&..." for each peer.
+	 */
+	public static String userList(int size) {
+		StringBuilder sb = new StringBuilder(size * 32);
+		for (int i = 0; i < size; i++) {
+			sb.append(nickname(i)).append(';').append(address(i)).append(';')
+					.append(port(i)).append('&');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Make up a binary user list, as sent by the name server to peers which
+	 * speak version 2 of the protocol.
+	 * 
+	 * @param size
+	 *            The number of peers.
+	 * @return The roster, with the ONL record of each peer.
+	 */
+	public static byte[] binaryRoster(int size) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size * 20);
+		byte[] header = PresenceCodec.rosterHeader(PresenceCodec.SEQUENCED,
+				System.currentTimeMillis(), size);
+		out.write(header, 0, header.length);
+		try {
+			for (int i = 0; i < size; i++) {
+				byte[] record = PresenceCodec.online(i + 1, nickname(i),
+						InetAddress.getByName(address(i)), port(i));
+				out.write(record, 0, record.length);
+			}
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,99 @@
+package twit2.nameserver;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import twit2.bench.Rosters;
+
+/**
+ * Measures serialising the user list with {@link NameServer#getUserList()},
+ * both when nothing has changed since the last call, and the snapshot is
+ * reused, and after a peer has come online, when it has to be rebuilt. It is
+ * in the package of the name server to fill the registry without the
+ * handshake.
+ * 
+ * @author os75
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class RosterBenchmark {
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int rosterSize;
+
+	// The name server logs every update it sends.
+	private static final PrintStream SILENT = new PrintStream(
+			new OutputStream() {
+				public void write(int b) {
+				}
+			});
+	private NameServer server;
+	private Registration churn;
+	private boolean online;
+
+	@Setup(Level.Trial)
+	public void setUp() throws UnknownHostException {
+		PrintStream console = System.out;
+		System.setOut(SILENT);
+		try {
+			server = new NameServer() {
+			};
+			for (int i = 0; i < rosterSize; i++) {
+				server.addRemoteEntry(registration(i));
+			}
+			churn = registration(rosterSize);
+		} finally {
+			System.setOut(console);
+		}
+	}
+
+	private static Registration registration(int index)
+			throws UnknownHostException {
+		return new Registration(Rosters.nickname(index),
+				InetAddress.getByName(Rosters.address(index)),
+				Rosters.port(index));
+	}
+
+	@Benchmark
+	public String cachedUserList() {
+		return server.getUserList();
+	}
+
+	/**
+	 * One peer comes online or goes offline before each call.
+	 */
+	@Benchmark
+	public String changedUserList() {
+		online = !online;
+		PrintStream console = System.out;
+		System.setOut(SILENT);
+		try {
+			if (online)
+				server.addRemoteEntry(churn);
+			else
+				server.removeEntry(churn);
+		} finally {
+			System.setOut(console);
+		}
+		return server.getUserList();
+	}
+}
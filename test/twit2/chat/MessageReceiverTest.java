@@ -0,0 +1,204 @@
+package twit2.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import twit2.io.Frame;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
+
+public class MessageReceiverTest {
+	private static final long TIMEOUT = 5000;
+	private ClientReactor reactor;
+	private ServerSocketChannel server;
+	// What the peer accepting the chat receives, starting with the nickname
+	// of the peer which opened it.
+	private Recorder accepted;
+	private BlockingQueue<Connection> acceptedConnections;
+
+	@Before
+	public void setUp() throws IOException {
+		reactor = new ClientReactor();
+		reactor.start();
+		accepted = new Recorder();
+		acceptedConnections = new LinkedBlockingQueue<Connection>();
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		reactor.listen(server, MessageReceiver.MAX_MESSAGE_LENGTH,
+				new Connection.Handler() {
+					public void received(Connection connection, byte type,
+							byte[] bytes, int offset, int length)
+							throws IOException {
+						accepted.add("HELLO", MessageReceiver.accept(
+								connection, type, bytes, offset, length,
+								"bob"));
+						connection.setHandler(accepted);
+						acceptedConnections.add(connection);
+					}
+
+					public void closed(Connection connection) {
+					}
+				});
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		reactor.kill();
+		server.close();
+	}
+
+	@Test
+	public void currentPeersUseFrames() throws Exception {
+		Recorder opened = new Recorder();
+		Connection opener = open(opened);
+		MessageReceiver.open(opener, "alice");
+		assertEquals("HELLO alice", accepted.next());
+		Connection acceptor = nextAccepted();
+		assertTrue(acceptor.isFramed());
+		// The answer tells the opener to use frames.
+		assertEquals("HELLO bob", opened.next());
+		assertTrue(opener.isFramed());
+
+		opener.send(Frame.MESSAGE, "KEEPALIVE");
+		opener.send(Frame.KEEPALIVE, "KEEPALIVE");
+		opener.send(Frame.MESSAGE, "hi");
+		assertEquals("MESSAGE KEEPALIVE", accepted.next());
+		assertEquals("KEEPALIVE KEEPALIVE", accepted.next());
+		assertEquals("MESSAGE hi", accepted.next());
+		acceptor.send(Frame.QUIT, "/quit");
+		assertEquals("QUIT /quit", opened.next());
+	}
+
+	@Test
+	public void longestNicknameUsesFrames() throws Exception {
+		Connection opener = open(new Recorder());
+		MessageReceiver.open(opener, "abcdefghijklmnop");
+		assertEquals("HELLO abcdefghijklmnop", accepted.next());
+		assertTrue(nextAccepted().isFramed());
+	}
+
+	@Test
+	public void olderOpenerStaysUnframed() throws Exception {
+		Socket older = new Socket("127.0.0.1", server.socket().getLocalPort());
+		try {
+			older.getOutputStream().write("alice".getBytes());
+			assertEquals("HELLO alice", accepted.next());
+			Connection acceptor = nextAccepted();
+			assertFalse(acceptor.isFramed());
+			acceptor.send(Frame.MESSAGE, "hi");
+			byte[] bytes = new byte[16];
+			int length = older.getInputStream().read(bytes);
+			assertEquals("hi", new String(bytes, 0, length));
+		} finally {
+			older.close();
+		}
+	}
+
+	@Test
+	public void olderAcceptorStaysUnframed() throws Exception {
+		ServerSocketChannel older = ServerSocketChannel.open();
+		try {
+			older.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			Recorder opened = new Recorder();
+			Connection opener = reactor.register(SocketChannel
+					.open(older.socket().getLocalSocketAddress()),
+					MessageReceiver.MAX_MESSAGE_LENGTH, opened);
+			MessageReceiver.open(opener, "alice");
+			Socket socket = older.socket().accept();
+			try {
+				// An older peer reads the nickname in 16 bytes, then takes
+				// the offer for a KEEPALIVE.
+				InputStream in = socket.getInputStream();
+				assertEquals("alice", read(in, 16).trim());
+				assertEquals("KEEPALIVE", read(in, 64));
+				socket.getOutputStream().write("hello".getBytes());
+				assertEquals("MESSAGE hello", opened.next());
+				assertFalse(opener.isFramed());
+				opener.send(Frame.MESSAGE, "hi");
+				assertEquals("hi", read(in, 64));
+			} finally {
+				socket.close();
+			}
+		} finally {
+			older.close();
+		}
+	}
+
+	private Connection open(Recorder recorder) throws IOException {
+		SocketChannel channel = SocketChannel.open(server.socket()
+				.getLocalSocketAddress());
+		return reactor.register(channel, MessageReceiver.MAX_MESSAGE_LENGTH,
+				recorder);
+	}
+
+	private Connection nextAccepted() throws InterruptedException {
+		Connection connection = acceptedConnections.poll(TIMEOUT,
+				TimeUnit.MILLISECONDS);
+		if (connection == null)
+			throw new AssertionError("No chat was accepted");
+		return connection;
+	}
+
+	private static String read(InputStream in, int max) throws IOException {
+		byte[] bytes = new byte[max];
+		int length = in.read(bytes);
+		return new String(bytes, 0, length);
+	}
+
+	/**
+	 * Writes down the messages of a connection, with their types.
+	 */
+	private static class Recorder implements Connection.Handler {
+		private BlockingQueue<String> messages =
+				new LinkedBlockingQueue<String>();
+
+		public void received(Connection connection, byte type, byte[] bytes,
+				int offset, int length) {
+			add(name(type), new String(bytes, offset, length));
+		}
+
+		public void closed(Connection connection) {
+		}
+
+		void add(String type, String text) {
+			messages.add(type + " " + text);
+		}
+
+		String next() throws InterruptedException {
+			String message = messages.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			if (message == null)
+				throw new AssertionError("Nothing was received");
+			return message;
+		}
+
+		private static String name(byte type) {
+			switch (type) {
+			case Frame.MESSAGE:
+				return "MESSAGE";
+			case Frame.KEEPALIVE:
+				return "KEEPALIVE";
+			case Frame.QUIT:
+				return "QUIT";
+			case Frame.HELLO:
+				return "HELLO";
+			default:
+				return "TYPE" + type;
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package twit2.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class FrameReaderTest {
+
+	@Test
+	public void readsFrames() throws IOException {
+		FrameReader reader = reader(false, new Frame(Frame.HELLO, "alice"),
+				new Frame(Frame.MESSAGE, "hi"));
+		assertEquals("alice", reader.read(100).getText());
+		assertEquals(Frame.MESSAGE, reader.next(100));
+		assertEquals("hi", reader.getText());
+		assertEquals(-1, reader.next(100));
+		assertNull(reader.read(100));
+	}
+
+	@Test
+	public void readsFramesOneByteAtATime() throws IOException {
+		FrameReader reader = reader(true, new Frame(Frame.HELLO, "alice"),
+				new Frame(Frame.KEEPALIVE, new byte[0]), new Frame(
+						Frame.MESSAGE, "hi"));
+		assertEquals("alice", reader.read(100).getText());
+		assertEquals(Frame.KEEPALIVE, reader.next(100));
+		assertEquals(0, reader.getLength());
+		assertEquals("hi", reader.read(100).getText());
+		assertNull(reader.read(100));
+	}
+
+	@Test
+	public void payloadLongerThanBuffer() throws IOException {
+		byte[] payload = new byte[1000];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		FrameReader reader = reader(true, new Frame(Frame.USER_LIST, payload),
+				new Frame(Frame.MESSAGE, "after"));
+		assertEquals(Frame.USER_LIST, reader.next(1000));
+		assertEquals(1000, reader.getLength());
+		assertArrayEquals(payload, reader.getPayload());
+		assertEquals("after", reader.read(1000).getText());
+	}
+
+	@Test
+	public void payloadTooLong() throws IOException {
+		FrameReader reader = reader(false, new Frame(Frame.MESSAGE, "123456"));
+		try {
+			reader.next(5);
+			fail("A frame longer than allowed was read");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void unknownType() throws IOException {
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(
+				"hello".getBytes()));
+		try {
+			reader.next(100);
+			fail("Text was read as a frame");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void endInsideHeader() throws IOException {
+		assertEndInside(2);
+	}
+
+	@Test
+	public void endInsidePayload() throws IOException {
+		assertEndInside(Frame.HEADER_LENGTH + 2);
+	}
+
+	@Test
+	public void unframedTakesWhatOneReadReturns() throws IOException {
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(
+				"KEEPALIVE".getBytes()), false, ByteBuffer.allocate(64));
+		assertEquals(Frame.KEEPALIVE, reader.next(100));
+		assertEquals(-1, reader.next(100));
+	}
+
+	@Test
+	public void switchesToFrames() throws IOException {
+		byte[] text = "alice".getBytes();
+		byte[] frame = FrameTest.bytes(FrameTest.frames(new Frame(
+				Frame.MESSAGE, "hi")));
+		byte[] bytes = new byte[text.length + frame.length];
+		System.arraycopy(text, 0, bytes, 0, text.length);
+		System.arraycopy(frame, 0, bytes, text.length, frame.length);
+		FrameReader reader = new FrameReader(new ChunkedStream(bytes,
+				text.length), false, ByteBuffer.allocate(64));
+		assertEquals(Frame.MESSAGE, reader.next(100));
+		assertEquals("alice", reader.getText());
+		reader.setFramed(true);
+		assertEquals("hi", reader.read(100).getText());
+	}
+
+	private static void assertEndInside(int length) throws IOException {
+		byte[] bytes = FrameTest.bytes(FrameTest.frames(new Frame(
+				Frame.MESSAGE, "hello")));
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes,
+				0, length));
+		try {
+			reader.next(100);
+			fail("A frame cut short was read");
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	private static FrameReader reader(boolean trickle, Frame... frames) {
+		byte[] bytes = FrameTest.bytes(FrameTest.frames(frames));
+		InputStream in = trickle ? new ChunkedStream(bytes, 1)
+				: new ByteArrayInputStream(bytes);
+		return new FrameReader(in, true, ByteBuffer.allocate(16));
+	}
+
+	/**
+	 * A stream returning at most a given number of bytes per read, as a
+	 * socket may.
+	 */
+	private static class ChunkedStream extends ByteArrayInputStream {
+		private int chunk;
+
+		ChunkedStream(byte[] bytes, int chunk) {
+			super(bytes);
+			this.chunk = chunk;
+		}
+
+		public synchronized int read(byte[] bytes, int offset, int length) {
+			return super.read(bytes, offset, Math.min(length, chunk));
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package twit2.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class FrameTest {
+
+	@Test
+	public void header() {
+		ByteBuffer header = Frame.header(Frame.ROSTER, 0x01020304);
+		assertTrue(header.isReadOnly());
+		assertEquals(Frame.HEADER_LENGTH, header.remaining());
+		assertEquals(Frame.ROSTER, header.get());
+		assertEquals(0x01020304, header.getInt());
+	}
+
+	@Test
+	public void decodeWholeFrame() throws IOException {
+		ByteBuffer buffer = frames(new Frame(Frame.MESSAGE, "hello"));
+		Frame frame = Frame.decode(buffer, Frame.MAX_LENGTH);
+		assertEquals(Frame.MESSAGE, frame.getType());
+		assertEquals("hello", frame.getText());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void decodeEmptyPayload() throws IOException {
+		ByteBuffer buffer = frames(new Frame(Frame.KEEPALIVE, new byte[0]));
+		Frame frame = Frame.decode(buffer, 0);
+		assertEquals(Frame.KEEPALIVE, frame.getType());
+		assertEquals(0, frame.getPayload().length);
+	}
+
+	@Test
+	public void decodeSeveralFrames() throws IOException {
+		ByteBuffer buffer = frames(new Frame(Frame.HELLO, "alice"), new Frame(
+				Frame.QUIT, new byte[0]), new Frame(Frame.MESSAGE, "bye"));
+		assertEquals("alice", Frame.decode(buffer, 100).getText());
+		assertEquals(Frame.QUIT, Frame.decode(buffer, 100).getType());
+		assertEquals("bye", Frame.decode(buffer, 100).getText());
+		assertNull(Frame.decode(buffer, 100));
+	}
+
+	@Test
+	public void framesRoundTrip() throws IOException {
+		byte[] payload = new byte[1000];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		ByteBuffer buffer = frames(new Frame(Frame.ROSTER, payload));
+		assertArrayEquals(payload, Frame.decode(buffer, 1000).getPayload());
+	}
+
+	@Test
+	public void partialFrameConsumesNothing() throws IOException {
+		byte[] whole = bytes(frames(new Frame(Frame.MESSAGE, "hello")));
+		for (int length = 0; length < whole.length; length++) {
+			ByteBuffer buffer = ByteBuffer.wrap(whole, 0, length);
+			assertNull(Frame.decode(buffer, 100));
+			assertEquals(0, buffer.position());
+			assertEquals(-1, Frame.available(buffer, 100));
+		}
+		assertEquals(5, Frame.available(ByteBuffer.wrap(whole), 100));
+	}
+
+	@Test
+	public void availableConsumesNothing() throws IOException {
+		ByteBuffer buffer = frames(new Frame(Frame.MESSAGE, "hello"));
+		assertEquals(5, Frame.available(buffer, 100));
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void longestPayloadAccepted() throws IOException {
+		ByteBuffer buffer = frames(new Frame(Frame.MESSAGE, "12345"));
+		assertEquals("12345", Frame.decode(buffer, 5).getText());
+	}
+
+	@Test
+	public void payloadTooLong() {
+		assertRejected(Frame.header(Frame.MESSAGE, 6), 5);
+	}
+
+	@Test
+	public void negativeLength() {
+		assertRejected(Frame.header(Frame.MESSAGE, -1), 100);
+	}
+
+	@Test
+	public void unknownType() {
+		assertRejected(Frame.header((byte) 0, 0), 100);
+		assertRejected(Frame.header((byte) (Frame.CHUNK + 1), 0), 100);
+		assertRejected(Frame.header((byte) 'O', 0), 100);
+	}
+
+	@Test
+	public void typesAreBelowText() {
+		assertFalse(Frame.isType(-1));
+		assertFalse(Frame.isType(0));
+		for (int b = ' '; b < 256; b++) {
+			assertFalse(Frame.isType(b));
+		}
+		for (byte type = Frame.MESSAGE; type <= Frame.CHUNK; type++) {
+			assertTrue(Frame.isType(type));
+		}
+	}
+
+	@Test
+	public void typeOfText() {
+		assertEquals(Frame.KEEPALIVE, typeOf("KEEPALIVE"));
+		assertEquals(Frame.MESSAGE, typeOf("keepalive"));
+		assertEquals(Frame.QUIT, typeOf("/quit"));
+		assertEquals(Frame.QUIT, typeOf("/QUIT"));
+		assertEquals(Frame.MESSAGE, typeOf("/quit now"));
+		assertEquals(Frame.MESSAGE, typeOf("ONL alice;10.0.0.1;4242"));
+	}
+
+	private static byte typeOf(String text) {
+		byte[] bytes = ("xx" + text + "yy").getBytes();
+		return Frame.typeOf(bytes, 2, text.length());
+	}
+
+	private static void assertRejected(ByteBuffer header, int maxLength) {
+		ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_LENGTH + 16);
+		buffer.put(header).flip();
+		try {
+			Frame.available(buffer, maxLength);
+			fail("The header was accepted");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	static ByteBuffer frames(Frame... frames) {
+		int length = 0;
+		for (Frame frame : frames) {
+			length += Frame.HEADER_LENGTH + frame.getPayload().length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (Frame frame : frames) {
+			buffer.put(Frame.header(frame.getType(),
+					frame.getPayload().length));
+			buffer.put(frame.getPayload());
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,212 @@
+package twit2.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PresenceCodecTest {
+
+	@Test
+	public void onlineRoundTrip() throws IOException {
+		byte[] record = PresenceCodec.online(42, "alice",
+				InetAddress.getByName("10.0.0.7"), 4242);
+		assertEquals("ONL 42 alice 10.0.0.7 4242", decode(record));
+	}
+
+	@Test
+	public void onlineRoundTripIPv6() throws IOException {
+		byte[] record = PresenceCodec.online(1, "bob",
+				InetAddress.getByName("::1"), 65535);
+		assertEquals("ONL 1 bob 0:0:0:0:0:0:0:1 65535", decode(record));
+	}
+
+	@Test
+	public void onlineRoundTripUnicodeNickname() throws IOException {
+		byte[] record = PresenceCodec.online(300, "élève",
+				InetAddress.getByName("127.0.0.1"), 1);
+		assertEquals("ONL 300 élève 127.0.0.1 1", decode(record));
+	}
+
+	@Test
+	public void recordsDecodeInOrder() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(PresenceCodec.offline(7));
+		out.write(PresenceCodec.online(8, "carol",
+				InetAddress.getByName("192.168.1.1"), 80));
+		out.write(PresenceCodec.sequence(1234567890123L, 99));
+		assertEquals("OFL 7|ONL 8 carol 192.168.1.1 80|SEQ 1234567890123:99",
+				decode(out.toByteArray()));
+	}
+
+	@Test
+	public void varintBoundaries() throws IOException {
+		long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+				Long.MAX_VALUE };
+		for (long value : values) {
+			assertEquals("SEQ " + value + ":" + value,
+					decode(PresenceCodec.sequence(value, value)));
+		}
+	}
+
+	@Test
+	public void varintLengths() {
+		assertEquals(1, varint(0).length);
+		assertEquals(1, varint(127).length);
+		assertEquals(2, varint(128).length);
+		assertEquals(2, varint(16383).length);
+		assertEquals(3, varint(16384).length);
+		assertEquals(9, varint(Long.MAX_VALUE).length);
+	}
+
+	@Test
+	public void rosterHeaders() throws IOException {
+		assertEquals("ROSTER full null",
+				decodeRoster(PresenceCodec.rosterHeader(0, 5, 6)));
+		assertEquals("ROSTER full 5:6", decodeRoster(PresenceCodec
+				.rosterHeader(PresenceCodec.SEQUENCED, 5, 6)));
+		assertEquals("ROSTER delta 5:6", decodeRoster(PresenceCodec
+				.rosterHeader(PresenceCodec.SEQUENCED | PresenceCodec.DELTA, 5,
+						6)));
+	}
+
+	@Test
+	public void rosterWithRecords() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(PresenceCodec.rosterHeader(PresenceCodec.SEQUENCED, 1, 2));
+		out.write(PresenceCodec.online(3, "dave",
+				InetAddress.getByName("10.1.2.3"), 5000));
+		out.write(PresenceCodec.offline(4));
+		assertEquals("ROSTER full 1:2|ONL 3 dave 10.1.2.3 5000|OFL 4",
+				decodeRoster(out.toByteArray()));
+	}
+
+	@Test
+	public void decodesWithinOffsetAndLength() throws IOException {
+		byte[] record = PresenceCodec.offline(9);
+		byte[] bytes = new byte[record.length + 4];
+		bytes[0] = PresenceCodec.ONLINE;
+		bytes[1] = PresenceCodec.ONLINE;
+		System.arraycopy(record, 0, bytes, 2, record.length);
+		bytes[bytes.length - 1] = PresenceCodec.ONLINE;
+		Recorder recorder = new Recorder();
+		PresenceCodec.decode(bytes, 2, record.length, recorder);
+		assertEquals("OFL 9", recorder.toString());
+	}
+
+	@Test
+	public void emptyInputHasNoRecords() throws IOException {
+		assertEquals("", decode(new byte[0]));
+	}
+
+	@Test
+	public void recordCutShort() throws IOException {
+		byte[] record = PresenceCodec.online(42, "alice",
+				InetAddress.getByName("10.0.0.7"), 4242);
+		for (int length = 1; length < record.length; length++) {
+			assertMalformed(record, length);
+		}
+	}
+
+	@Test
+	public void unknownRecord() {
+		assertMalformed(new byte[] { 99 }, 1);
+	}
+
+	@Test
+	public void badAddressLength() {
+		assertMalformed(new byte[] { PresenceCodec.ONLINE, 1, 1, 'a', 5, 1,
+				2, 3, 4, 5, 0, 80 }, 12);
+	}
+
+	@Test
+	public void varintTooLong() {
+		byte[] bytes = new byte[12];
+		bytes[0] = PresenceCodec.OFFLINE;
+		for (int i = 1; i < bytes.length; i++) {
+			bytes[i] = (byte) 0x80;
+		}
+		assertMalformed(bytes, bytes.length);
+	}
+
+	@Test
+	public void rosterCutShort() {
+		byte[] header = PresenceCodec.rosterHeader(PresenceCodec.SEQUENCED,
+				1000, 2000);
+		for (int length = 0; length < header.length; length++) {
+			try {
+				PresenceCodec.decodeRoster(header, 0, length, new Recorder());
+				fail("A roster header of " + length + " bytes was accepted");
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+	}
+
+	private static byte[] varint(long value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PresenceCodec.writeVarint(out, value);
+		return out.toByteArray();
+	}
+
+	private static String decode(byte[] bytes) throws IOException {
+		Recorder recorder = new Recorder();
+		PresenceCodec.decode(bytes, 0, bytes.length, recorder);
+		return recorder.toString();
+	}
+
+	private static String decodeRoster(byte[] bytes) throws IOException {
+		Recorder recorder = new Recorder();
+		PresenceCodec.decodeRoster(bytes, 0, bytes.length, recorder);
+		return recorder.toString();
+	}
+
+	private static void assertMalformed(byte[] bytes, int length) {
+		try {
+			PresenceCodec.decode(bytes, 0, length, new Recorder());
+			fail(length + " bytes were decoded");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Writes down what it is told, one line per call.
+	 */
+	private static class Recorder implements PresenceCodec.Handler {
+		private List<String> calls = new ArrayList<String>();
+
+		public void roster(boolean delta, String token) {
+			calls.add("ROSTER " + (delta ? "delta" : "full") + " " + token);
+		}
+
+		public void online(int id, String nickname, String hostname, int port) {
+			calls.add("ONL " + id + " " + nickname + " " + hostname + " "
+					+ port);
+		}
+
+		public void offline(int id) {
+			calls.add("OFL " + id);
+		}
+
+		public void sequence(String token) {
+			calls.add("SEQ " + token);
+		}
+
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			for (String call : calls) {
+				if (text.length() > 0)
+					text.append('|');
+				text.append(call);
+			}
+			return text.toString();
+		}
+	}
+}
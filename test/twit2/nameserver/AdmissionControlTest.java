@@ -0,0 +1,81 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+	@Test
+	public void noLimitsByDefault() throws IOException {
+		AdmissionControl control = new AdmissionControl(0, 0, 1, 0, 1);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(control.admit(address));
+			assertTrue(control.allowRegistration(address));
+		}
+		assertEquals(1000, control.getConnections());
+	}
+
+	@Test
+	public void limits() {
+		assertEquals("no limits", new AdmissionControl(0, 0, 50, 0, 20)
+				.getLimits());
+		assertEquals("at most 100 connections open, 2.5 registrations per "
+				+ "second from each address, 20 at once", new AdmissionControl(
+				100, 0, 50, 2.5, 20).getLimits());
+	}
+
+	@Test
+	public void burstThenRefill() throws Exception {
+		AdmissionControl control = new AdmissionControl(0, 20, 3, 0, 1);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		for (int i = 0; i < 3; i++) {
+			assertTrue(control.admit(address));
+		}
+		assertFalse(control.admit(address));
+		assertEquals(1, control.getConnectsLimited());
+		// One token every 50 ms.
+		Thread.sleep(120);
+		assertTrue(control.admit(address));
+		assertTrue(control.admit(address));
+		assertFalse(control.admit(address));
+	}
+
+	@Test
+	public void refillStopsAtTheBurst() throws Exception {
+		AdmissionControl control = new AdmissionControl(0, 0, 1, 100, 2);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		Thread.sleep(100);
+		assertTrue(control.allowRegistration(address));
+		assertTrue(control.allowRegistration(address));
+		assertFalse(control.allowRegistration(address));
+		assertEquals(1, control.getRegistrationsLimited());
+	}
+
+	@Test
+	public void addressesHaveBucketsOfTheirOwn() throws IOException {
+		AdmissionControl control = new AdmissionControl(0, 1, 1, 0, 1);
+		assertTrue(control.admit(InetAddress.getByName("10.0.0.1")));
+		assertFalse(control.admit(InetAddress.getByName("10.0.0.1")));
+		assertTrue(control.admit(InetAddress.getByName("10.0.0.2")));
+	}
+
+	@Test
+	public void connectionsAreCapped() throws IOException {
+		AdmissionControl control = new AdmissionControl(2, 0, 1, 0, 1);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		assertTrue(control.admit(address));
+		assertTrue(control.admit(address));
+		assertFalse(control.admit(address));
+		assertEquals(1, control.getOverCapacity());
+		control.release();
+		assertTrue(control.admit(address));
+		assertEquals(2, control.getConnections());
+	}
+}
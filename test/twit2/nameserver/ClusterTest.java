@@ -0,0 +1,169 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import twit2.log.Log;
+import twit2.nameserver.NameServerTest.Silent;
+
+public class ClusterTest {
+	private static final long TIMEOUT = 10000;
+	private List<Cluster> nodes;
+
+	@Before
+	public void setUp() {
+		Log.setLevel(Log.ERROR);
+		nodes = new ArrayList<Cluster>();
+	}
+
+	@After
+	public void tearDown() {
+		for (Cluster node : nodes) {
+			node.shutdown();
+		}
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void reservationsMoveToTheNewOwner() throws Exception {
+		NameServer first = new NameServer();
+		NameServer second = new NameServer();
+		Cluster a = node(first);
+		Cluster b = node(second);
+		String nickname = ownedBy(b, a, b);
+		assertTrue(a.reserve(nickname));
+		link(first, a, second, b);
+		// A peer registered once the node has joined is told after the
+		// reservations handed to it.
+		register(first, a, "marker", 40000);
+		await(second, "marker");
+		assertFalse(b.reserve(nickname));
+		assertTrue(a.reserve(nickname));
+	}
+
+	@Test
+	public void ownerKeepsANicknameRegisteredTwice() throws Exception {
+		NameServer first = new NameServer();
+		NameServer second = new NameServer();
+		Cluster a = node(first);
+		Cluster b = node(second);
+		link(first, a, second, b);
+		String nickname = ownedBy(a, a, b);
+		Peer winner = new Peer(nickname);
+		Peer loser = new Peer(nickname);
+		Registration lost = second.addEntry(loser, nickname, address(),
+				40002);
+		Registration kept = first.addEntry(winner, nickname, address(),
+				40001);
+		a.added(kept);
+		b.added(lost);
+		await(second, nickname);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (second.getRegistration(nickname).getPort() != 40001
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(40001, second.getRegistration(nickname).getPort());
+		assertTrue(loser.isClosed());
+		assertSame(kept, first.getRegistration(nickname));
+		assertFalse(winner.isClosed());
+	}
+
+	private Cluster node(NameServer server) throws IOException {
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		Cluster node = new Cluster(server, "127.0.0.1", port);
+		server.setCluster(node);
+		node.start();
+		nodes.add(node);
+		return node;
+	}
+
+	/**
+	 * Join a second node to a first one, and wait until each has told the
+	 * other about its peers.
+	 */
+	private void link(NameServer first, Cluster a, NameServer second,
+			Cluster b) throws Exception {
+		register(first, a, "first", 40000);
+		register(second, b, "second", 40000);
+		String id = a.getNodeId();
+		b.join("127.0.0.1",
+				Integer.parseInt(id.substring(id.lastIndexOf(':') + 1)));
+		await(second, "first");
+		await(first, "second");
+	}
+
+	private static void register(NameServer server, Cluster node,
+			String nickname, int port) throws IOException {
+		Registration registration = server.addEntry(new Silent(), nickname,
+				address(), port);
+		assertNotNull(registration);
+		node.added(registration);
+	}
+
+	private static void await(NameServer server, String nickname)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.getRegistration(nickname) == null
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNotNull(server.getRegistration(nickname));
+	}
+
+	/**
+	 * Find a nickname owned by a given node of a cluster of two.
+	 */
+	private static String ownedBy(Cluster owner, Cluster a, Cluster b) {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add(a.getNodeId());
+		ring.add(b.getNodeId());
+		for (int i = 0;; i++) {
+			if (ring.owner("nick" + i).equals(owner.getNodeId()))
+				return "nick" + i;
+		}
+	}
+
+	private static InetAddress address() throws IOException {
+		return InetAddress.getByName("10.0.0.1");
+	}
+
+	/**
+	 * A peer which remembers being disconnected.
+	 */
+	private static class Peer extends Silent {
+		private String nickname;
+		private volatile boolean closed;
+
+		Peer(String nickname) {
+			this.nickname = nickname;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public void close() {
+			closed = true;
+		}
+
+		public String getNickname() {
+			return nickname;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+	private static final int NICKNAMES = 10000;
+
+	@Test
+	public void emptyRingHasNoOwner() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		assertNull(ring.owner("alice"));
+		assertEquals(0, ring.share("a"), 0);
+	}
+
+	@Test
+	public void singleNodeOwnsEverything() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add("a");
+		for (int i = 0; i < NICKNAMES; i++) {
+			assertEquals("a", ring.owner("user" + i));
+		}
+		assertEquals(1, ring.share("a"), 1e-9);
+	}
+
+	@Test
+	public void sharesAddUp() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add("a");
+		ring.add("b");
+		ring.add("c");
+		double total = ring.share("a") + ring.share("b") + ring.share("c");
+		assertEquals(1, total, 1e-9);
+		for (String node : new String[] { "a", "b", "c" }) {
+			double share = ring.share(node);
+			assertTrue(node + " owns " + share, share > 0.2 && share < 0.5);
+		}
+		assertEquals(0, ring.share("d"), 0);
+	}
+
+	@Test
+	public void ownersDoNotDependOnOrder() {
+		ConsistentHashRing one = new ConsistentHashRing();
+		one.add("a");
+		one.add("b");
+		one.add("c");
+		ConsistentHashRing other = new ConsistentHashRing();
+		other.add("c");
+		other.add("a");
+		other.add("b");
+		for (int i = 0; i < NICKNAMES; i++) {
+			assertEquals(one.owner("user" + i), other.owner("user" + i));
+		}
+	}
+
+	@Test
+	public void addingMovesNicknamesOnlyToTheNewNode() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add("a");
+		ring.add("b");
+		Map<String, String> before = owners(ring);
+		ring.add("c");
+		int moved = 0;
+		for (Map.Entry<String, String> owner : before.entrySet()) {
+			String now = ring.owner(owner.getKey());
+			if (!now.equals(owner.getValue())) {
+				assertEquals("c", now);
+				moved++;
+			}
+		}
+		assertTrue(moved + " moved", moved > NICKNAMES / 5
+				&& moved < NICKNAMES / 2);
+	}
+
+	@Test
+	public void removingMovesOnlyTheNicknamesOfTheRemovedNode() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add("a");
+		ring.add("b");
+		ring.add("c");
+		Map<String, String> before = owners(ring);
+		ring.remove("b");
+		for (Map.Entry<String, String> owner : before.entrySet()) {
+			String now = ring.owner(owner.getKey());
+			if (owner.getValue().equals("b"))
+				assertTrue(now.equals("a") || now.equals("c"));
+			else
+				assertEquals(owner.getValue(), now);
+		}
+		assertEquals(0, ring.share("b"), 0);
+	}
+
+	@Test
+	public void removingAnUnknownNodeChangesNothing() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		ring.add("a");
+		ring.add("b");
+		Map<String, String> before = owners(ring);
+		ring.remove("z");
+		assertEquals(before, owners(ring));
+	}
+
+	private static Map<String, String> owners(ConsistentHashRing ring) {
+		Map<String, String> owners = new HashMap<String, String>();
+		for (int i = 0; i < NICKNAMES; i++) {
+			owners.put("user" + i, ring.owner("user" + i));
+		}
+		return owners;
+	}
+}
@@ -0,0 +1,113 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import twit2.io.Frame;
+import twit2.log.Log;
+
+public class LivenessTrackerTest {
+	private static final long TIMEOUT = 200;
+	private LivenessTracker tracker;
+
+	@Before
+	public void setUp() {
+		// Every connection closed is logged.
+		Log.setLevel(Log.WARN);
+		tracker = new LivenessTracker(TIMEOUT);
+	}
+
+	@After
+	public void tearDown() {
+		tracker.shutdown();
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void closesSilentConnections() throws InterruptedException {
+		FakeClient silent = new FakeClient();
+		tracker.track(silent);
+		Thread.sleep(TIMEOUT / 2);
+		assertFalse(silent.isClosed());
+		assertTrue(silent.awaitClose(TIMEOUT * 3));
+	}
+
+	@Test
+	public void keepsActiveConnections() throws InterruptedException {
+		FakeClient active = new FakeClient();
+		LivenessTracker.Entry entry = tracker.track(active);
+		for (int i = 0; i < 12; i++) {
+			Thread.sleep(TIMEOUT / 4);
+			entry.touch();
+		}
+		assertFalse(active.isClosed());
+		assertTrue(active.awaitClose(TIMEOUT * 3));
+	}
+
+	@Test
+	public void leavesCancelledConnections() throws InterruptedException {
+		FakeClient cancelled = new FakeClient();
+		tracker.track(cancelled).cancel();
+		assertFalse(cancelled.awaitClose(TIMEOUT * 3));
+	}
+
+	@Test
+	public void expiresManyConnections() throws InterruptedException {
+		FakeClient[] clients = new FakeClient[1000];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new FakeClient();
+			tracker.track(clients[i]);
+		}
+		for (FakeClient client : clients) {
+			assertTrue(client.awaitClose(TIMEOUT * 3));
+		}
+	}
+
+	/**
+	 * A client which only records being closed.
+	 */
+	static class FakeClient implements Client {
+		private boolean closed;
+
+		public void sendMessage(byte[] message) {
+		}
+
+		public void sendMessage(byte type, byte[] message) {
+		}
+
+		public void sendUserList(Frame[] users) {
+		}
+
+		public void flush() {
+		}
+
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		public String getNickname() {
+			return "fake";
+		}
+
+		synchronized boolean awaitClose(long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while (!closed) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				wait(left);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import twit2.io.Frame;
+
+public class NameServerTest {
+
+	@Test
+	public void newPeersAreListedOnce() throws IOException {
+		NameServer server = new NameServer();
+		Observer alice = new Observer();
+		Observer bob = new Observer();
+		assertNotNull(server.addEntry(alice, "alice", address(), 40000));
+		assertNotNull(server.addEntry(bob, "bob", address(), 40001));
+		assertEquals("[alice, bob]", alice.getUsers().toString());
+		assertEquals("[alice, bob]", bob.getUsers().toString());
+		assertEquals("[alice, bob]", listed(server).toString());
+		server.removeEntry(server.getRegistration("alice"));
+		assertEquals("[bob]", bob.getUsers().toString());
+		assertEquals("[bob]", listed(server).toString());
+	}
+
+	@Test
+	public void peersJoiningDuringChurnSeeTheRegistry() throws Exception {
+		final NameServer server = new NameServer();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			Thread churn = new Thread() {
+				public void run() {
+					List<Registration> online = new ArrayList<Registration>();
+					int next = 0;
+					try {
+						while (running.get()) {
+							if (online.size() < 50 || next % 3 == 0) {
+								online.add(server.addEntry(new Silent(), "t"
+										+ thread + "n" + next++, address(),
+										40000));
+							} else {
+								server.removeEntry(online.remove(next++
+										% online.size()));
+							}
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads.add(churn);
+			churn.start();
+		}
+		List<Observer> observers = new ArrayList<Observer>();
+		for (int i = 0; i < 300; i++) {
+			Observer observer = new Observer();
+			server.addEntry(observer, "observer" + i, address(), 40000);
+			observers.add(observer);
+		}
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Set<String> registered = listed(server);
+		for (Observer observer : observers) {
+			assertEquals(registered, observer.getUsers());
+		}
+	}
+
+	private static Set<String> listed(NameServer server) {
+		Set<String> users = new TreeSet<String>();
+		for (String entry : server.getUserList().split("&")) {
+			if (entry.length() > 0)
+				users.add(entry.substring(0, entry.indexOf(';')));
+		}
+		return users;
+	}
+
+	private static InetAddress address() throws IOException {
+		return InetAddress.getByName("10.0.0.1");
+	}
+
+	/**
+	 * A peer which ignores what it is sent.
+	 */
+	static class Silent implements Client {
+
+		public void sendMessage(byte[] message) {
+		}
+
+		public void sendMessage(byte type, byte[] message) {
+		}
+
+		public void sendUserList(Frame[] users) {
+		}
+
+		public void flush() {
+		}
+
+		public boolean isClosed() {
+			return false;
+		}
+
+		public void close() {
+		}
+
+		public String getNickname() {
+			return "silent";
+		}
+	}
+
+	/**
+	 * A peer which does not know about frames, keeping the user list it is
+	 * sent up to date.
+	 */
+	static class Observer extends Silent {
+		private Set<String> users = new TreeSet<String>();
+		// Messages queued before the user list are applied after it.
+		private List<String> held = new ArrayList<String>();
+		private boolean listed;
+
+		public synchronized void sendMessage(byte[] message) {
+			sendMessage(Frame.MESSAGE, message);
+		}
+
+		public synchronized void sendMessage(byte type, byte[] message) {
+			if (listed)
+				update(new String(message));
+			else
+				held.add(new String(message));
+		}
+
+		public synchronized void sendUserList(Frame[] frames) {
+			for (Frame frame : frames) {
+				if (frame.getType() == Frame.USER_LIST) {
+					for (String entry : frame.getText().split("&")) {
+						if (entry.length() > 0)
+							users.add(entry.substring(0, entry.indexOf(';')));
+					}
+				} else {
+					update(frame.getText());
+				}
+			}
+			listed = true;
+			for (String message : held) {
+				update(message);
+			}
+		}
+
+		private void update(String message) {
+			for (String line : message.split("\n")) {
+				if (line.startsWith("ONL "))
+					users.add(line.substring(4, line.indexOf(';')));
+				else if (line.startsWith("OFL "))
+					users.remove(line.substring(4));
+			}
+		}
+
+		synchronized Set<String> getUsers() {
+			return new TreeSet<String>(users);
+		}
+	}
+}
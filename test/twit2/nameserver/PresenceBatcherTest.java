@@ -0,0 +1,110 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PresenceBatcherTest {
+	private static final long WINDOW = 50;
+	private BlockingQueue<List<PresenceEvent>> batches;
+	private PresenceBatcher batcher;
+
+	@Before
+	public void setUp() {
+		batches = new LinkedBlockingQueue<List<PresenceEvent>>();
+		NameServer server = new NameServer() {
+			void deliver(List<PresenceEvent> events) {
+				batches.add(events);
+			}
+		};
+		batcher = new PresenceBatcher(server, WINDOW, 100);
+	}
+
+	@After
+	public void tearDown() {
+		batcher.shutdown();
+	}
+
+	@Test
+	public void sendsUpdatesInOrderAfterTheWindow() throws Exception {
+		batcher.add(PresenceEvent.online(1, registration("alice")));
+		batcher.add(PresenceEvent.online(2, registration("bob")));
+		assertEquals(2, batcher.size());
+		List<PresenceEvent> batch = next();
+		assertEquals(2, batch.size());
+		assertEquals("ONL alice;10.0.0.1;4000", batch.get(0).getMessage());
+		assertEquals("ONL bob;10.0.0.1;4000", batch.get(1).getMessage());
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void comingAndGoingCancelOut() throws Exception {
+		Registration alice = registration("alice");
+		batcher.add(PresenceEvent.online(1, registration("bob")));
+		batcher.add(PresenceEvent.online(2, alice));
+		batcher.add(PresenceEvent.offline(3, alice));
+		List<PresenceEvent> batch = next();
+		assertEquals(2, batch.size());
+		assertEquals("ONL bob;10.0.0.1;4000", batch.get(0).getMessage());
+		// The OFL only goes to the peers which joined after the ONL, which
+		// may have had alice in their user list.
+		PresenceEvent offline = batch.get(1);
+		assertFalse(offline.isOnline());
+		assertEquals(3, offline.getSequence());
+		assertEquals(2, offline.getSince());
+	}
+
+	@Test
+	public void goingAndComingBackAreBothSent() throws Exception {
+		Registration alice = registration("alice");
+		batcher.add(PresenceEvent.offline(1, alice));
+		batcher.add(PresenceEvent.online(2, alice));
+		List<PresenceEvent> batch = next();
+		assertEquals(2, batch.size());
+		assertFalse(batch.get(0).isOnline());
+		assertEquals(0, batch.get(0).getSince());
+		assertTrue(batch.get(1).isOnline());
+	}
+
+	@Test
+	public void fullBatchIsSentAtOnce() throws Exception {
+		PresenceBatcher small = new PresenceBatcher(new NameServer() {
+			void deliver(List<PresenceEvent> events) {
+				batches.add(events);
+			}
+		}, 60000, 3);
+		try {
+			for (int i = 0; i < 3; i++) {
+				small.add(PresenceEvent.online(i, registration("user" + i)));
+			}
+			assertEquals(3, next().size());
+		} finally {
+			small.shutdown();
+		}
+	}
+
+	private List<PresenceEvent> next() throws InterruptedException {
+		List<PresenceEvent> batch = batches.poll(WINDOW * 20,
+				TimeUnit.MILLISECONDS);
+		if (batch == null)
+			throw new AssertionError("No batch was sent");
+		return batch;
+	}
+
+	private static Registration registration(String nickname)
+			throws IOException {
+		return new Registration(nickname, InetAddress.getByName("10.0.0.1"),
+				4000);
+	}
+}
@@ -0,0 +1,217 @@
+package twit2.nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegistryJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("journal");
+	}
+
+	@Test
+	public void freshJournalTakesTheNewEpoch() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		assertEquals(0, journal.recover(1234).size());
+		assertEquals(1234, journal.getEpoch());
+		assertEquals(0, journal.getSequence());
+	}
+
+	@Test
+	public void recoversAppendedChanges() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		journal.append(2, true, registration("bob", 4002));
+		journal.append(3, true, registration("carol", 4003));
+		journal.append(4, false, registration("bob", 4002));
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("alice;10.0.0.1;4001|carol;10.0.0.1;4003",
+				entries(recovered.recover(2000)));
+		assertEquals(1000, recovered.getEpoch());
+		assertEquals(4, recovered.getSequence());
+	}
+
+	@Test
+	public void recoversAgainAfterRecovering() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		new RegistryJournal(directory).recover(2000);
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("alice;10.0.0.1;4001", entries(recovered.recover(3000)));
+		assertEquals(1000, recovered.getEpoch());
+		assertEquals(1, recovered.getSequence());
+	}
+
+	@Test
+	public void recoversAcrossGenerations() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		journal.append(2, true, registration("bob", 4002));
+		long generation = journal.rotate();
+		journal.writeSnapshot(generation, 2,
+				"alice;10.0.0.1;4001&bob;10.0.0.1;4002&".getBytes());
+		journal.append(3, false, registration("alice", 4001));
+		journal.append(4, true, registration("dave", 4004));
+		generation = journal.rotate();
+		journal.writeSnapshot(generation, 4,
+				"bob;10.0.0.1;4002&dave;10.0.0.1;4004&".getBytes());
+		journal.append(5, true, registration("erin", 4005));
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("bob;10.0.0.1;4002|dave;10.0.0.1;4004"
+				+ "|erin;10.0.0.1;4005", entries(recovered.recover(2000)));
+		assertEquals(5, recovered.getSequence());
+	}
+
+	@Test
+	public void recoversACrashBeforeTheSnapshot() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		journal.append(2, true, registration("bob", 4002));
+		// The log is rotated, but the snapshot covering the older one is
+		// never written.
+		journal.rotate();
+		journal.append(3, false, registration("alice", 4001));
+		journal.append(4, true, registration("carol", 4003));
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("bob;10.0.0.1;4002|carol;10.0.0.1;4003",
+				entries(recovered.recover(2000)));
+		assertEquals(4, recovered.getSequence());
+	}
+
+	@Test
+	public void rotatesOnlyOverASnapshot() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.rotate();
+		try {
+			journal.rotate();
+			fail("The log was reused without a snapshot covering it");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void stopsAtATruncatedRecord() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		journal.append(2, true, registration("bob", 4002));
+		RandomAccessFile file = new RandomAccessFile(newestLog(), "rw");
+		try {
+			// Cut the log inside the record of bob.
+			file.setLength(12 + 2 * (1 + 8 + 2)
+					+ "alice;10.0.0.1;4001&".length() + 5);
+		} finally {
+			file.close();
+		}
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("alice;10.0.0.1;4001", entries(recovered.recover(2000)));
+		assertEquals(1, recovered.getSequence());
+	}
+
+	@Test
+	public void stopsAtATornRecord() throws IOException {
+		RegistryJournal journal = new RegistryJournal(directory);
+		journal.recover(1000);
+		journal.append(1, true, registration("alice", 4001));
+		RandomAccessFile file = new RandomAccessFile(newestLog(), "rw");
+		try {
+			// Only the type of the next record reached the disk.
+			file.seek(12 + 1 + 8 + 2 + "alice;10.0.0.1;4001&".length());
+			file.write(1);
+		} finally {
+			file.close();
+		}
+
+		RegistryJournal recovered = new RegistryJournal(directory);
+		assertEquals("alice;10.0.0.1;4001", entries(recovered.recover(2000)));
+		assertEquals(1, recovered.getSequence());
+	}
+
+	@Test
+	public void rejectsAForeignSnapshot() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(directory,
+				"registry.snapshot"), "rw");
+		try {
+			file.write(new byte[40]);
+		} finally {
+			file.close();
+		}
+		try {
+			new RegistryJournal(directory).recover(1000);
+			fail("A snapshot without the magic number was read");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Get the log being appended to, which has the higher generation.
+	 */
+	private File newestLog() throws IOException {
+		File first = new File(directory, "registry-0.log");
+		File second = new File(directory, "registry-1.log");
+		return generation(first) >= generation(second) ? first : second;
+	}
+
+	private static long generation(File log) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(log, "r");
+		try {
+			if (file.length() < 12)
+				return 0;
+			file.readInt();
+			return file.readLong();
+		} finally {
+			file.close();
+		}
+	}
+
+	private static Registration registration(String nickname, int port)
+			throws IOException {
+		return new Registration(nickname, InetAddress.getByName("10.0.0.1"),
+				port);
+	}
+
+	private static String entries(List<Registration> registrations) {
+		List<String> entries = new ArrayList<String>();
+		for (Registration registration : registrations) {
+			String entry = new String(registration.getEntry());
+			assertTrue(entry.endsWith("&"));
+			entries.add(entry.substring(0, entry.length() - 1));
+		}
+		StringBuilder text = new StringBuilder();
+		for (String entry : entries) {
+			if (text.length() > 0)
+				text.append('|');
+			text.append(entry);
+		}
+		return text.toString();
+	}
+}
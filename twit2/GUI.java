@@ -17,12 +17,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Vector;
 
@@ -44,7 +46,10 @@ import twit2.awt.HorizontalPanel;
 import twit2.awt.Popup;
 import twit2.awt.VerticalPanel;
 import twit2.chat.ChatWindow;
-import twit2.io.ByteWriter;
+import twit2.io.Frame;
+import twit2.io.PresenceCodec;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
  * The Messenger graphical user interface. Acts as both a server and a client.
@@ -64,7 +69,6 @@ public class GUI extends JFrame implements ActionListener {
 	private static final int WIDTH = 300;
 	private static final String SETTINGS_FILENAME = "settings.txt";
 	private static final String TITLE = "Messenger Client";
-	private static final int SO_TIMEOUT = 4000;
 
 	// GUI Components.
 	private JComboBox serverComboBox;
@@ -82,11 +86,20 @@ public class GUI extends JFrame implements ActionListener {
 	private String nickName;
 	private int portNumber;
 
+	// Services every socket of the client once it is set up.
+	private ClientReactor reactor;
 	private Socket serverConnection;
 	private Server server;
-	private InputStream serverInput;
-	private OutputStream serverOutput;
-	private KeepAlive keepAlive;
+	private Connection nameServer;
+	private NameServerProfile currentServer;
+	private boolean bareHandshake;
+	private ClientReactor.Periodic keepAlive;
+
+	// Kept after the connection is closed, so that reconnecting to the same
+	// name server only needs the updates missed in between.
+	private volatile String syncToken;
+	private NameServerProfile syncServer;
+	private List<Peer> syncPeers;
 
 	private JTextField statusField;
 	public static final int DEFAULT_PORT = 60514;
@@ -98,6 +111,13 @@ public class GUI extends JFrame implements ActionListener {
 
 	public GUI() {
 		super(TITLE);
+		try {
+			reactor = new ClientReactor();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open a selector: "
+					+ e.getMessage());
+		}
+		reactor.start();
 		loadSettings();
 		makeGUI();
 
@@ -109,8 +129,7 @@ public class GUI extends JFrame implements ActionListener {
 			openSettingsDialog();
 		}
 		try {
-			server = new Server(this, nickName, portNumber);
-			server.start();
+			server = new Server(this, reactor, nickName, portNumber);
 			onlineButton.setText("Go offline");
 		} catch (SocketException e) {
 			reportError("Port " + portNumber
@@ -183,7 +202,7 @@ public class GUI extends JFrame implements ActionListener {
 	 */
 	private void openMessengerConnection(Peer peer) {
 		try {
-			new ChatWindow(nickName, peer);
+			new ChatWindow(reactor, nickName, peer);
 		} catch (IOException e) {
 			reportError("An error occured while trying to connect.",
 					"Connection error");
@@ -415,17 +434,19 @@ public class GUI extends JFrame implements ActionListener {
 	 * Disconnect from the name server.
 	 */
 	private void disconnect() {
-		try {
-			ByteWriter.write(serverOutput, "/quit");
-			// give some time to receive the message.
-			Thread.sleep(400);
-			disconnectCleanup();
-
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
+		// Not set if connecting failed half way.
+		if (nameServer != null) {
+			try {
+				nameServer.send(Frame.QUIT, "/quit");
+				// give some time to receive the message.
+				Thread.sleep(400);
+			} catch (InterruptedException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (IOException e) {
+			}
 		}
+		disconnectCleanup();
 	}
 
 	/**
@@ -443,8 +464,21 @@ public class GUI extends JFrame implements ActionListener {
 		connectButton.setText("Connect");
 		serverComboBox.setEnabled(true);
 		DefaultListModel model = (DefaultListModel) userList.getModel();
+		if (!model.isEmpty()) {
+			syncPeers = new ArrayList<Peer>();
+			for (int i = 0; i < model.size(); i++) {
+				syncPeers.add((Peer) model.get(i));
+			}
+		}
 		model.clear();
-		keepAlive.kill();
+		if (keepAlive != null) {
+			keepAlive.cancel();
+			keepAlive = null;
+		}
+		if (nameServer != null) {
+			nameServer.close();
+			nameServer = null;
+		}
 		if (serverConnection != null) {
 			try {
 				serverConnection.close();
@@ -463,6 +497,19 @@ public class GUI extends JFrame implements ActionListener {
 		return serverConnection != null && serverConnection.isConnected();
 	}
 
+	/**
+	 * Tells whether a connection is the one with the name server the GUI is
+	 * connected to, rather than one it has closed since. Called on the event
+	 * dispatch thread.
+	 * 
+	 * @param connection
+	 *            A connection.
+	 * @return true if the GUI is connected to the name server on it.
+	 */
+	boolean isNameServer(Connection connection) {
+		return connection != null && connection == nameServer;
+	}
+
 	/**
 	 * Save server profiles and close the application.
 	 */
@@ -543,6 +590,7 @@ public class GUI extends JFrame implements ActionListener {
 			connect(server);
 			connectButton.setText("Disconnect");
 			serverComboBox.setEnabled(false);
+			setStatus("Connected");
 		} catch (UnknownHostException e) {
 			reportError("Could not connect to server.\n"
 					+ "Make sure the hostname and port is correct.",
@@ -551,7 +599,6 @@ public class GUI extends JFrame implements ActionListener {
 			reportError("Could not connect to server. Please try again later.",
 					"Server not responding");
 		}
-		setStatus("Connected");
 	}
 
 	/**
@@ -568,29 +615,125 @@ public class GUI extends JFrame implements ActionListener {
 	 */
 	public void connect(NameServerProfile server) throws UnknownHostException,
 			IOException, SocketException {
-		serverConnection = new Socket(server.getHostname(), server.getPort());
-		serverConnection.setSoTimeout(SO_TIMEOUT);
-		serverOutput = serverConnection.getOutputStream();
-		// Write nickname and port to server.
-		ByteWriter.write(serverOutput, nickName + " " + portNumber);
-		serverInput = serverConnection.getInputStream();
-		keepAlive = new KeepAlive(this, serverOutput);
-		keepAlive.start();
-		Scanner scanner = new Scanner(serverInput);
-		if (scanner.hasNextLine()) {
-			String line = scanner.nextLine();
-			if (line.startsWith("ERROR")) {
-				setStatus(line.substring(6));
+		connect(server, false);
+	}
+
+	/**
+	 * Connects with a name server of a given profile.
+	 * 
+	 * @param server
+	 *            A NameServerProfile.
+	 * @param bare
+	 *            true to only send the nickname and port number, which is all
+	 *            a name server older than the handshake options accepts.
+	 * @throws IOException
+	 *             If an error occurs while connecting.
+	 */
+	private void connect(NameServerProfile server, boolean bare)
+			throws IOException {
+		InetSocketAddress address = new InetSocketAddress(server.getHostname(),
+				server.getPort());
+		if (address.isUnresolved())
+			throw new UnknownHostException(server.getHostname());
+		SocketChannel channel = SocketChannel.open(address);
+		serverConnection = channel.socket();
+		currentServer = server;
+		bareHandshake = bare;
+		// Write nickname and port to server, and ask for sequenced presence
+		// updates, giving the last sequence number seen when reconnecting,
+		// sent in frames and in binary, with a big user list in deflated
+		// chunks. A name server older than these options refuses them.
+		String handshake = nickName + " " + portNumber;
+		if (!bare) {
+			String sync = " seq";
+			if (syncToken != null && syncPeers != null && server == syncServer)
+				sync = " seq=" + syncToken;
+			handshake += sync + " framed version=" + PresenceCodec.VERSION
+					+ " chunked deflate";
+		}
+		// The answer is read by the reactor, which shows each piece of the
+		// user list as it arrives. Whether the name server sends frames is
+		// told from the first byte of its answer. A failure leaves nothing
+		// open, so that the GUI is not taken to be connected.
+		UserListUpdater updater = new UserListUpdater(reactor, userList, this,
+				syncPeers);
+		boolean sent = false;
+		try {
+			nameServer = reactor.register(channel, Frame.MAX_LENGTH, updater);
+			nameServer.send(Frame.MESSAGE, handshake);
+			sent = true;
+		} finally {
+			if (!sent)
 				disconnectCleanup();
-				return;
-			}
-			String[] userListStrings = line.split("&");
-			DefaultListModel model = (DefaultListModel) userList.getModel();
-			for (Peer peer : Peer.fromStrings(userListStrings)) {
-				model.addElement(peer);
+		}
+	}
+
+	/**
+	 * Called once the whole user list has been received from the name server,
+	 * to keep the connection alive from then on.
+	 * 
+	 * @param connection
+	 *            The connection the user list was received on.
+	 * @param token
+	 *            The "epoch:version" of the user list, or null if it is not
+	 *            sequenced.
+	 */
+	void userListReceived(Connection connection, String token) {
+		if (!isNameServer(connection))
+			return;
+		if (token != null) {
+			syncServer = currentServer;
+			setSyncToken(token);
+		}
+		keepAlive = reactor.schedule(new KeepAlive(nameServer),
+				KeepAlive.PERIOD);
+	}
+
+	/**
+	 * Called if the name server refused the handshake. A name server older
+	 * than the handshake options refuses them in plain text, or closes the
+	 * connection, in which case it is asked again with the bare nickname and
+	 * port number.
+	 * 
+	 * @param connection
+	 *            The connection the handshake was sent on, closed already.
+	 * @param reason
+	 *            The reason given by the name server, or null if it closed
+	 *            the connection without answering.
+	 * @param legacy
+	 *            true if the name server did not answer in a frame.
+	 */
+	void refused(Connection connection, String reason, boolean legacy) {
+		if (!isNameServer(connection))
+			return;
+		if (legacy && !bareHandshake) {
+			disconnectCleanup();
+			try {
+				connect(currentServer, true);
+				connectButton.setText("Disconnect");
+				serverComboBox.setEnabled(false);
+			} catch (IOException e) {
+				reportError(
+						"Could not connect to server. Please try again later.",
+						"Server not responding");
 			}
+		} else if (reason == null) {
+			disconnected();
+		} else {
+			setStatus(reason);
+			disconnectCleanup();
 		}
-		new UserListUpdater(serverInput, userList, this).start();
+	}
+
+	/**
+	 * Remember the sequence number of the last presence update received from
+	 * the name server, to give when reconnecting.
+	 * 
+	 * @param token
+	 *            The epoch and sequence number, on the form "epoch:sequence".
+	 */
+	public void setSyncToken(String token) {
+		syncToken = token;
 	}
 
 	/**
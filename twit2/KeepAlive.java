@@ -1,50 +1,38 @@
 package twit2;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import twit2.io.Frame;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
  * Keeps a connection with a server alive. Needed to avoid the connection timing
- * out if there lacks activity.
+ * out if there lacks activity. It is run every few seconds by the
+ * {@link ClientReactor} rather than by a thread of its own.
  * 
  * @author os75
  */
-public class KeepAlive extends Thread {
-	private static final int SLEEP_TIME = 3000;
+public class KeepAlive implements Runnable {
+	static final long PERIOD = 3000;
 	public static final String KEEP_ALIVE = "KEEPALIVE";
-	private static byte[] KEEP_ALIVE_BYTES = KEEP_ALIVE.getBytes();
+	private static final byte[] KEEP_ALIVE_BYTES = KEEP_ALIVE.getBytes();
 
-	private OutputStream outputStream;
-	private GUI client;
-	private boolean alive;
+	private Connection connection;
 
-	public KeepAlive(GUI gui, OutputStream outputStream) {
-		this.client = gui;
-		this.outputStream = outputStream;
-		alive = true;
+	public KeepAlive(Connection connection) {
+		this.connection = connection;
 	}
 
 	/**
-	 * Send a message every 10 seconds to keep the connection alive.
+	 * Send a message to keep the connection alive.
 	 */
 	public void run() {
 		try {
-			// TODO
-			Thread.sleep(SLEEP_TIME);
-			while (alive) {
-				outputStream.write(KEEP_ALIVE_BYTES);
-				Thread.sleep(3000);
-			}
+			connection.send(Frame.KEEPALIVE, KEEP_ALIVE_BYTES);
 		} catch (IOException e) {
-			if (alive)
-				client.disconnected();
-			return;
-		} catch (InterruptedException e) {
-			// ignore
+			// A lost connection is also seen by the reactor, which tells the
+			// UserListUpdater.
 		}
 	}
-
-	public void kill() {
-		alive = false;
-	}
 }
@@ -2,11 +2,13 @@ package twit2;
 
 /**
  * The Peer class is a wrapper class used to store information about a peer's
- * nickname, hostname and port number.
+ * nickname, hostname and port number, and the nickname ID the name server
+ * gave it, if the name server sends presence in binary.
  * 
  * @author os75
  */
 public class Peer {
+	private int id;
 	private String nickname;
 	private String hostname;
 	private int port;
@@ -17,6 +19,18 @@ public class Peer {
 		this.port = port;
 	}
 
+	public Peer(int id, String nickname, String hostname, int port) {
+		this(nickname, hostname, port);
+		this.id = id;
+	}
+
+	/**
+	 * @return The nickname ID of the peer, or 0 if it was not given one.
+	 */
+	public int getId() {
+		return id;
+	}
+
 	public String getNickname() {
 		return nickname;
 	}
@@ -1,25 +1,27 @@
 package twit2;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
 import twit2.chat.ChatWindow;
+import twit2.chat.MessageReceiver;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
  * The Server class represents the server-side of the peer, it makes it possible
  * for the peers to create direct connection to other peers, without having the
- * messages go through a centralised server.
+ * messages go through a centralised server. Its socket is serviced by the
+ * {@link ClientReactor}, like every other socket of the client.
  * 
  * @author os75
  */
-public final class Server extends Thread {
+public final class Server {
 
-	private static final int SO_TIMEOUT = 15000;
-	private ServerSocket serverSocket;
-	private boolean running;
+	private ServerSocketChannel serverSocket;
+	private ClientReactor reactor;
 	private String nickname;
 	private GUI gui;
 
@@ -27,46 +29,66 @@ public final class Server extends Thread {
 	 * Set up server at PORT_NUMBER.
 	 * 
 	 * @param gui
+	 * @param reactor
+	 *            The reactor which accepts the connections.
 	 * @throws SocketException
 	 *             , IOException
 	 * @throws IOException
 	 *             if there is a problem establishing a server socket at the
 	 *             specified port number.
 	 */
-	public Server(GUI gui, String nickname, int portNumber)
-			throws SocketException, IOException {
+	public Server(GUI gui, ClientReactor reactor, String nickname,
+			int portNumber) throws SocketException, IOException {
 		this.gui = gui;
+		this.reactor = reactor;
 		this.nickname = nickname;
-		serverSocket = new ServerSocket(portNumber);
-		serverSocket.setSoTimeout(SO_TIMEOUT);
+		serverSocket = ServerSocketChannel.open();
+		try {
+			serverSocket.socket().bind(new InetSocketAddress(portNumber));
+			reactor.listen(serverSocket, MessageReceiver.MAX_MESSAGE_LENGTH,
+					new HelloHandler());
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
 		gui.setStatus("Server socket established at port " + portNumber + ".");
 	}
 
+	public void shutDown() {
+		gui.setStatus("Shutting down local chat server.");
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		reactor.wakeup();
+	}
+
 	/**
-	 * Accept connections from serverSocket.
+	 * Waits for a peer which has connected to introduce itself, then opens a
+	 * chat window and hands the connection to its receiver.
 	 */
-	@Override
-	public void run() {
-		running = true;
-		while (running) {
-			try {
-				Socket client = serverSocket.accept();
-				String address = client.getInetAddress().getHostName();
-				int port = client.getPort();
-				// Can be printed to the console as it is not required for the
-				// user to know. a window will pop up anyway.
-				System.out.print("Connection established with ");
-				System.out.println(address + ":" + port + ".");
-				new ChatWindow(nickname, client);
-			} catch (SocketTimeoutException e) {
-			} catch (IOException e) {
-				gui.reportError(e.getMessage(), "IOError");
-			}
+	private class HelloHandler implements Connection.Handler {
+
+		public void received(final Connection connection, byte type,
+				byte[] bytes, int offset, int length) throws IOException {
+			String otherNickname = MessageReceiver.accept(connection, type,
+					bytes, offset, length, nickname);
+			final MessageReceiver receiver = new MessageReceiver(reactor,
+					otherNickname);
+			connection.setHandler(receiver);
+			// Can be printed to the console as it is not required for the
+			// user to know. a window will pop up anyway.
+			System.out.print("Connection established with ");
+			System.out.println(connection.getChannel().socket()
+					.getRemoteSocketAddress() + ".");
+			reactor.dispatch(new Runnable() {
+				public void run() {
+					new ChatWindow(nickname, receiver, connection);
+				}
+			});
 		}
-	}
 
-	public void shutDown() {
-		gui.setStatus("Shutting down local chat server.");
-		running = false;
+		public void closed(Connection connection) {
+		}
 	}
 }
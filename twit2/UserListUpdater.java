@@ -1,57 +1,472 @@
 package twit2;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JList;
 
-import twit2.io.ByteReader;
+import twit2.io.Compression;
+import twit2.io.Frame;
+import twit2.io.PresenceCodec;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
  * The UserListUpdater class keeps the list of users in the peer to peer client
- * up to date by maintaining a connection with the name server.
+ * up to date by maintaining a connection with the name server. Presence
+ * updates arrive as lines of text, or as binary records if the name server
+ * speaks version 2 of the protocol.
+ * 
+ * The updater is handed what the name server sends by the
+ * {@link ClientReactor} as soon as it arrives, starting with the user list
+ * sent in answer to the handshake, and applies it on the event dispatch
+ * thread. A big user list comes in chunks, each of which is shown as soon as
+ * it arrives. A name server which does not send frames sends the list as text
+ * which one read may not hold all of, so the part of an entry still to come
+ * is kept until the rest of it arrives. If the name server closes the
+ * connection, the GUI is told that it has been lost. What is still on its way to the event dispatch thread
+ * once the GUI has let go of the connection is dropped, so that it does not
+ * put back peers the GUI has cleared.
  * 
  * @author os75
  */
-public class UserListUpdater extends Thread {
-	private InputStream input;
+public class UserListUpdater implements Connection.Handler {
+	private static final String[] UPDATES = { "ONL ", "OFL ", "SEQ " };
+	private ClientReactor reactor;
 	private DefaultListModel listModel;
+	// The peers in the list, by nickname and by nickname ID, so that an
+	// update finds the entry it replaces without going through the list.
+	private Map<String, Peer> peers;
+	private Map<Integer, Peer> ids;
 	private GUI gui;
+	private RecordHandler records;
+	private List<Peer> previous;
+	// Only touched by the reactor.
+	private boolean listed;
+	private boolean firstPiece;
+	// Text received unframed which does not end with a whole entry or line,
+	// and whether updates come in lines at all.
+	private StringBuilder partial;
+	private boolean lines;
+	// What the user list being received is, as told by its first piece.
+	private boolean delta;
+	private String token;
 
-	public UserListUpdater(InputStream serverInput, JList userList, GUI gui) {
-		this.input = serverInput;
+	/**
+	 * Create a new updater.
+	 * 
+	 * @param reactor
+	 *            The reactor servicing the connection with the name server.
+	 * @param userList
+	 *            The list of users to keep up to date.
+	 * @param gui
+	 *            The GUI.
+	 * @param previous
+	 *            The users in the list when last connected, put back first if
+	 *            the user list only holds the updates since then, or null.
+	 */
+	public UserListUpdater(ClientReactor reactor, JList userList, GUI gui,
+			List<Peer> previous) {
+		this.reactor = reactor;
+		this.previous = previous;
+		firstPiece = true;
+		partial = new StringBuilder();
 		listModel = (DefaultListModel) userList.getModel();
+		peers = new HashMap<String, Peer>();
+		ids = new HashMap<Integer, Peer>();
 		this.gui = gui;
+		records = new RecordHandler();
+	}
+
+	public void received(final Connection connection, byte type,
+			byte[] bytes, int offset, int length) throws IOException {
+		if (type == Frame.DEFLATED) {
+			Frame frame = Compression.inflate(bytes, offset, length,
+					Frame.MAX_LENGTH);
+			byte[] payload = frame.getPayload();
+			received(connection, frame.getType(), payload, 0, payload.length);
+		} else if (!connection.isFramed()) {
+			if (type == Frame.MESSAGE)
+				receivedText(connection, new String(bytes, offset, length));
+		} else if (!listed) {
+			receivedUserList(connection, type, bytes, offset, length);
+		} else if (type == Frame.PRESENCE) {
+			final byte[] payload = Arrays.copyOfRange(bytes, offset, offset
+					+ length);
+			reactor.dispatch(new Runnable() {
+				public void run() {
+					if (!gui.isNameServer(connection))
+						return;
+					try {
+						PresenceCodec.decode(payload, 0, payload.length,
+								records);
+					} catch (IOException e) {
+						connection.close();
+						gui.disconnected();
+					}
+				}
+			});
+		} else if (type == Frame.MESSAGE) {
+			// The name server may send several updates at once, one per
+			// line.
+			receivedUpdates(connection, new String(bytes, offset, length)
+					.split("\n"));
+		}
+	}
+
+	/**
+	 * Handle text from a name server which does not send frames, as one read
+	 * returned it. Before the first update, it is the user list, or the error
+	 * for which the peer was refused. The list is taken to be complete once
+	 * all of the text received ends with a whole entry; entries arriving
+	 * after that are still added.
+	 * 
+	 * @param connection
+	 *            The connection with the name server.
+	 * @param received
+	 *            The text read.
+	 */
+	private void receivedText(Connection connection, String received) {
+		String text = partial.append(received).toString();
+		partial.setLength(0);
+		if (!listed && text.startsWith("ERROR ")) {
+			refused(connection, text.substring(6), true);
+			return;
+		}
+		int updates = startOfUpdates(text);
+		String entries = text.substring(0, updates);
+		int end = entries.lastIndexOf('&') + 1;
+		if (end < entries.length()) {
+			// Part of an entry, with no update after it.
+			partial.append(entries.substring(end));
+			entries = entries.substring(0, end);
+		}
+		if (entries.length() > 0 || !listed && updates < text.length()) {
+			boolean last = !listed && partial.length() == 0;
+			receivedPiece(connection, Frame.USER_LIST, entries.getBytes(),
+					firstPiece, last);
+			firstPiece = false;
+			listed |= last;
+		}
+		if (updates < text.length()) {
+			String rest = text.substring(updates);
+			lines |= rest.indexOf('\n') != -1;
+			if (lines) {
+				// Name servers which send updates in lines end every one
+				// with a newline.
+				int newline = rest.lastIndexOf('\n') + 1;
+				partial.append(rest.substring(newline));
+				rest = rest.substring(0, newline);
+			}
+			receivedUpdates(connection, rest.split("\n"));
+		}
+	}
+
+	/**
+	 * Find where the updates start in text received unframed: at the start
+	 * of the text, or after the last entry of the user list.
+	 * 
+	 * @return The index of the first update, or the length of the text if
+	 *         there is none.
+	 */
+	private static int startOfUpdates(String text) {
+		int start = text.lastIndexOf('&') + 1;
+		for (String update : UPDATES) {
+			if (text.startsWith(update))
+				return 0;
+			if (text.startsWith(update, start))
+				return start;
+		}
+		return text.length();
+	}
+
+	private void receivedUpdates(final Connection connection,
+			final String[] lines) {
+		reactor.dispatch(new Runnable() {
+			public void run() {
+				if (!gui.isNameServer(connection))
+					return;
+				for (String line : lines) {
+					update(line);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Handle a piece of the answer to the handshake: the user list, a chunk
+	 * of it, or the error for which the name server refused the peer.
+	 * 
+	 * @param connection
+	 *            The connection with the name server.
+	 * @param type
+	 *            The type of the message.
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @throws IOException
+	 *             If a chunk is empty.
+	 */
+	private void receivedUserList(Connection connection, byte type,
+			byte[] bytes, int offset, int length) throws IOException {
+		if (type == Frame.ERROR) {
+			refused(connection, new String(bytes, offset, length), false);
+			return;
+		}
+		boolean last = type != Frame.CHUNK;
+		if (last) {
+			receivedPiece(connection, type, Arrays.copyOfRange(bytes, offset,
+					offset + length), firstPiece, true);
+			listed = true;
+		} else {
+			if (length == 0)
+				throw new IOException("Empty chunk of the user list");
+			receivedPiece(connection, bytes[offset], Arrays.copyOfRange(
+					bytes, offset + 1, offset + length), firstPiece, false);
+		}
+		firstPiece = false;
+	}
+
+	/**
+	 * Give up on a name server which refused the peer.
+	 * 
+	 * @param connection
+	 *            The connection with the name server.
+	 * @param reason
+	 *            The error sent by the name server.
+	 * @param legacy
+	 *            true if the name server does not send frames.
+	 */
+	private void refused(final Connection connection, final String reason,
+			final boolean legacy) {
+		listed = true;
+		connection.close();
+		reactor.dispatch(new Runnable() {
+			public void run() {
+				gui.refused(connection, reason, legacy);
+			}
+		});
+	}
+
+	/**
+	 * Show a piece of the user list.
+	 * 
+	 * @param connection
+	 *            The connection with the name server.
+	 * @param listType
+	 *            The type of the list, {@link Frame#USER_LIST} or
+	 *            {@link Frame#ROSTER}.
+	 * @param piece
+	 *            The piece, holding whole entries.
+	 * @param first
+	 *            true for the first piece of the list.
+	 * @param last
+	 *            true for the last piece of the list.
+	 */
+	private void receivedPiece(final Connection connection,
+			final byte listType, final byte[] piece, final boolean first,
+			final boolean last) {
+		reactor.dispatch(new Runnable() {
+			public void run() {
+				if (!gui.isNameServer(connection))
+					return;
+				try {
+					String token = userList(listType, piece, 0, piece.length,
+							first, previous);
+					if (last)
+						gui.userListReceived(connection, token);
+				} catch (IOException e) {
+					connection.close();
+					gui.disconnected();
+				}
+			}
+		});
+	}
+
+	public void closed(final Connection connection) {
+		if (!listed) {
+			// Closed without an answer to the handshake.
+			reactor.dispatch(new Runnable() {
+				public void run() {
+					gui.refused(connection, null, true);
+				}
+			});
+			return;
+		}
+		reactor.dispatch(new Runnable() {
+			public void run() {
+				if (gui.isNameServer(connection))
+					gui.disconnected();
+			}
+		});
 	}
 
-	public void run() {
-		while (gui.isConnected()) {
-			try {
-				int available = input.available();
-				if (available > 0) {
-					String str = ByteReader.read(input, available);
-					String message = str.substring(4);
-					if (str.startsWith("ONL")) {
-						Peer peer = Peer.fromString(message);
-						listModel.addElement(peer);
-					} else if (str.startsWith("OFL")) {
-						for (int i = 0; i < listModel.size(); i++) {
-							Peer peer = (Peer) listModel.get(i);
-							if (peer.getNickname().equals(message)) {
-								listModel.remove(i);
-								break;
-							}
-						}
+	/**
+	 * Apply a presence update to the list of users. A peer which comes online
+	 * replaces any entry with the same nickname, so an update received twice
+	 * does no harm.
+	 * 
+	 * @param str
+	 *            An update, "ONL nickname;hostname;port" or "OFL nickname",
+	 *            or "SEQ epoch:sequence" once the updates up to that sequence
+	 *            number have been received.
+	 */
+	void update(String str) {
+		if (str.length() < 4)
+			return;
+		String message = str.substring(4);
+		if (str.startsWith("SEQ")) {
+			gui.setSyncToken(message);
+		} else if (str.startsWith("ONL")) {
+			Peer peer = Peer.fromString(message);
+			if (peer != null)
+				add(peer);
+		} else if (str.startsWith("OFL")) {
+			remove(message);
+		}
+	}
+
+	/**
+	 * Apply a piece of the user list received in answer to the handshake to
+	 * the list of users. A big list may come in several pieces, each holding
+	 * whole entries, which are shown as they arrive; the first starts with
+	 * the header saying what the list is.
+	 * 
+	 * @param type
+	 *            The type of the list, {@link Frame#USER_LIST} or
+	 *            {@link Frame#ROSTER}.
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the piece.
+	 * @param length
+	 *            The length of the piece.
+	 * @param first
+	 *            true for the first piece of the list.
+	 * @param previous
+	 *            The users in the list when last connected, put back first if
+	 *            the list only holds the updates since then.
+	 * @return The "epoch:version" of the list, or null if it is not
+	 *         sequenced.
+	 * @throws IOException
+	 *             If a binary list is malformed.
+	 */
+	private String userList(byte type, byte[] bytes, int offset, int length,
+			boolean first, List<Peer> previous) throws IOException {
+		if (type == Frame.ROSTER) {
+			if (first) {
+				records.previous = previous;
+				records.token = null;
+				PresenceCodec.decodeRoster(bytes, offset, length, records);
+				records.previous = null;
+				token = records.token;
+			} else {
+				PresenceCodec.decode(bytes, offset, length, records);
+			}
+			return token;
+		}
+		String text = new String(bytes, offset, length);
+		if (first) {
+			delta = false;
+			token = null;
+			// "SNAP epoch:sequence length" is followed by the whole user
+			// list, "DELTA epoch:sequence length" by the updates since the
+			// last connection. A name server which does not know about
+			// sequence numbers sends the list alone.
+			int newline = text.indexOf('\n');
+			String[] header = text.substring(0, Math.max(0, newline))
+					.split(" ");
+			if (header.length == 3
+					&& (header[0].equals("SNAP") || header[0].equals("DELTA"))) {
+				token = header[1];
+				delta = header[0].equals("DELTA");
+				text = text.substring(newline + 1);
+				if (delta && previous != null) {
+					for (Peer peer : previous) {
+						add(peer);
 					}
-				} else {
-					// if nothing available, sleep
-					Thread.sleep(100);
 				}
-			} catch (IOException e) {
-				return;
-			} catch (InterruptedException e) {
 			}
 		}
+		if (delta) {
+			for (String line : text.split("\n")) {
+				update(line);
+			}
+		} else if (text.length() > 0) {
+			for (Peer peer : Peer.fromStrings(text.split("&"))) {
+				if (peer != null)
+					add(peer);
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * Add a peer to the list of users, in place of any entry with the same
+	 * nickname.
+	 * 
+	 * @param peer
+	 *            A peer.
+	 */
+	private void add(Peer peer) {
+		remove(peer.getNickname());
+		peers.put(peer.getNickname(), peer);
+		if (peer.getId() != 0)
+			ids.put(peer.getId(), peer);
+		listModel.addElement(peer);
+	}
+
+	private void remove(String nickname) {
+		Peer peer = peers.remove(nickname);
+		if (peer != null) {
+			ids.remove(peer.getId());
+			listModel.removeElement(peer);
+		}
+	}
+
+	private void remove(int id) {
+		Peer peer = ids.remove(id);
+		if (peer != null) {
+			peers.remove(peer.getNickname());
+			listModel.removeElement(peer);
+		}
+	}
+
+	/**
+	 * Applies binary records to the list of users, the same way as the
+	 * updates received as text.
+	 */
+	private class RecordHandler implements PresenceCodec.Handler {
+		private List<Peer> previous;
+		private String token;
+
+		public void roster(boolean delta, String token) {
+			this.token = token;
+			if (delta && previous != null) {
+				for (Peer peer : previous) {
+					add(peer);
+				}
+			}
+		}
+
+		public void online(int id, String nickname, String hostname,
+				int port) {
+			add(new Peer(id, nickname, hostname, port));
+		}
+
+		public void offline(int id) {
+			remove(id);
+		}
+
+		public void sequence(String token) {
+			gui.setSyncToken(token);
+		}
 	}
 }
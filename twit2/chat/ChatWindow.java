@@ -8,11 +8,9 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -26,8 +24,9 @@ import twit2.Peer;
 import twit2.awt.HorizontalPanel;
 import twit2.awt.Popup;
 import twit2.awt.VerticalPanel;
-import twit2.io.ByteReader;
-import twit2.io.ByteWriter;
+import twit2.io.Frame;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
  * The chat window used to send and receive messages between two users.
@@ -43,15 +42,16 @@ public class ChatWindow extends JFrame {
 	private JTextField enterMessageField;
 	private JButton sendButton;
 
-	private Socket connection;
-	private InputStream input;
-	private OutputStream output;
+	private Connection connection;
+	private MessageReceiver receiver;
 	private String myNickname;
 	private String otherNickname;
 
 	/**
 	 * Create a new Chat window.
 	 * 
+	 * @param reactor
+	 *            The reactor servicing the sockets of the client.
 	 * @param myNickname
 	 *            The nickname of the user using the application.
 	 * @param peer
@@ -61,35 +61,43 @@ public class ChatWindow extends JFrame {
 	 * @throws IOException
 	 *             If other IO errors occur.
 	 */
-	public ChatWindow(String myNickname, Peer peer)
+	public ChatWindow(ClientReactor reactor, String myNickname, Peer peer)
 			throws UnknownHostException, IOException {
 		super();
 		this.myNickname = myNickname;
 		otherNickname = peer.getNickname();
-		connection = new Socket(peer.getHostname(), peer.getPort());
-		input = connection.getInputStream();
-		output = connection.getOutputStream();
-		ByteWriter.write(output, myNickname);
+		InetSocketAddress address = new InetSocketAddress(peer.getHostname(),
+				peer.getPort());
+		if (address.isUnresolved())
+			throw new UnknownHostException(peer.getHostname());
+		SocketChannel channel = SocketChannel.open(address);
+		receiver = new MessageReceiver(reactor, otherNickname);
+		// Messages are only sent in frames once the other peer answers the
+		// offer in frames.
+		connection = reactor.register(channel,
+				MessageReceiver.MAX_MESSAGE_LENGTH, receiver);
+		MessageReceiver.open(connection, myNickname);
 		init();
 	}
 
 	/**
-	 * Create a new chat window with a given connection.
+	 * Create a new chat window for a connection another peer started, once
+	 * it has introduced itself.
 	 * 
 	 * @param myNickname
 	 *            The nickname of the user using the application.
+	 * @param receiver
+	 *            The receiver of the messages of the other peer.
 	 * @param connection
 	 *            A connection to another peer.
-	 * @throws IOException
-	 *             If an IO error occurs.
 	 */
-	public ChatWindow(String myNickname, Socket connection) throws IOException {
+	public ChatWindow(String myNickname, MessageReceiver receiver,
+			Connection connection) {
 		super();
 		this.myNickname = myNickname;
+		this.receiver = receiver;
 		this.connection = connection;
-		input = connection.getInputStream();
-		output = connection.getOutputStream();
-		otherNickname = ByteReader.read(input, 16);
+		otherNickname = receiver.getNickname();
 		init();
 	}
 
@@ -99,7 +107,7 @@ public class ChatWindow extends JFrame {
 	public void init() {
 		setTitle("Conversation with " + otherNickname);
 		conversationTextArea = new JTextArea();
-		new MessageReceiver(input, conversationTextArea, otherNickname).start();
+		receiver.setTextArea(conversationTextArea);
 		makeGUI();
 		setVisible(true);
 		// Request that the field in which the user inputs messages gets
@@ -183,7 +191,7 @@ public class ChatWindow extends JFrame {
 	 * Send the message contained in the textfield.
 	 */
 	private void sendMessage() {
-		if (connection.isClosed()) {
+		if (!connection.isOpen()) {
 			return;
 		}
 		String message = enterMessageField.getText().trim();
@@ -198,17 +206,9 @@ public class ChatWindow extends JFrame {
 			return;
 		}
 		try {
-			ByteWriter.write(output, message);
+			connection.send(Frame.MESSAGE, message);
 			enterMessageField.setText("");
 			conversationTextArea.append(myNickname + ": " + message + "\n");
-		} catch (SocketTimeoutException ste) {
-			Popup.reportError(this,
-					"Connection timed out. Please try again later.",
-					"Server not responding");
-		} catch (UnknownHostException uhe) {
-			Popup.reportError(this, "Could not connect to server.\n"
-					+ "Make sure the hostname and port is correct.",
-					"Invalid server");
 		} catch (IOException ioe) {
 			Popup.reportError(this,
 					"Could not connect to server. Please try again later.",
@@ -222,10 +222,10 @@ public class ChatWindow extends JFrame {
 	public void close() {
 		if (connection != null) {
 			try {
-				ByteWriter.write(output, "/quit");
-				connection.close();
+				connection.send(Frame.QUIT, "/quit");
 			} catch (IOException e) {
 			}
+			connection.close();
 		}
 		dispose();
 	}
@@ -1,68 +1,143 @@
 package twit2.chat;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import javax.swing.JTextArea;
 
-import twit2.KeepAlive;
-import twit2.io.ByteReader;
+import twit2.io.Frame;
+import twit2.net.ClientReactor;
+import twit2.net.Connection;
 
 /**
- * Thread for receiving messages. Received messages are appended to a JTextArea.
+ * Receives the messages of a chat and appends them to a JTextArea. It is
+ * handed each message by the {@link ClientReactor} as soon as it arrives, so
+ * an open chat costs a registered connection rather than a thread. The text
+ * area is only touched on the event dispatch thread.
+ * 
+ * A peer opening a chat sends its nickname bare, padded to the 16 bytes an
+ * older peer reads it in, followed by KEEPALIVE to offer frames. An older peer
+ * takes the nickname and ignores the KEEPALIVE, and the chat goes on
+ * unframed. A current peer answers with its own nickname in a HELLO frame,
+ * from which the opener tells that the chat goes on in frames.
  * 
  * @author os75
  */
-public class MessageReceiver extends Thread {
+public class MessageReceiver implements Connection.Handler {
 
+	/**
+	 * The longest frame accepted from a peer, and the most read at once from
+	 * a peer which does not send frames.
+	 */
+	public static final int MAX_MESSAGE_LENGTH = 1024;
+	private static final int NICKNAME_LENGTH = 16;
+	private static final String FRAMES_OFFER = "KEEPALIVE";
 	private static final String NEW_LINE = "\n";
-	private InputStream input;
+	private ClientReactor reactor;
 	private JTextArea textArea;
 	private String otherNickname;
 
 	/**
-	 * Create a new MessageReceiver with a given inputStream and textarea.
+	 * Create a new MessageReceiver for a chat with a peer.
 	 * 
-	 * @param input
-	 *            An inputstream.
-	 * @param textArea
-	 *            A JTextArea.
+	 * @param reactor
+	 *            The reactor servicing the connection with the peer.
 	 * @param nickname
 	 *            The nickname of a person a peer is chatting with.
 	 */
-	public MessageReceiver(InputStream input, JTextArea textArea,
-			String nickname) {
-		this.input = input;
-		this.textArea = textArea;
+	public MessageReceiver(ClientReactor reactor, String nickname) {
+		this.reactor = reactor;
 		this.otherNickname = nickname;
 	}
 
 	/**
-	 * Receive messages from the inputStream and append them to the text area.
+	 * Introduce the user to a peer a chat has been opened with, offering
+	 * frames. The connection must tell whether the peer sends frames from
+	 * what it answers.
+	 * 
+	 * @param connection
+	 *            The connection with the peer.
+	 * @param myNickname
+	 *            The nickname of the user.
+	 * @throws IOException
+	 *             If the connection is closed.
 	 */
-	public void run() {
-		while (true) {
-			try {
-				int available = input.available();
-				if (available > 0) {
-					String message = ByteReader.read(input, available);
-					if (message.equals("/quit")) {
-						textArea.append(otherNickname + " left the chat.");
-						input.close();
-						break;
-					} else if (!message.equals(KeepAlive.KEEP_ALIVE)) {
-						textArea.append(otherNickname + ": ");
-						textArea.append(message);
-						textArea.append(NEW_LINE);
-					}
-				} else {
-					// if nothing available, sleep
-					Thread.sleep(100);
-				}
-			} catch (IOException e) {
-				return;
-			} catch (InterruptedException e) {
-			}
+	public static void open(Connection connection, String myNickname)
+			throws IOException {
+		StringBuilder hello = new StringBuilder(myNickname);
+		while (hello.length() < NICKNAME_LENGTH) {
+			hello.append(' ');
 		}
+		hello.append(FRAMES_OFFER);
+		connection.send(Frame.HELLO, hello.toString());
+	}
+
+	/**
+	 * Take the first message of a peer which opened a chat, switching the
+	 * connection to frames if the peer offered them.
+	 * 
+	 * @param connection
+	 *            The connection with the peer.
+	 * @param type
+	 *            The type of the message.
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @param myNickname
+	 *            The nickname of the user, sent back if frames are used.
+	 * @return The nickname of the peer.
+	 * @throws IOException
+	 *             If the connection is closed.
+	 */
+	public static String accept(Connection connection, byte type,
+			byte[] bytes, int offset, int length, String myNickname)
+			throws IOException {
+		String hello = new String(bytes, offset, length);
+		if (type == Frame.HELLO || hello.length() != NICKNAME_LENGTH
+				+ FRAMES_OFFER.length() || !hello.endsWith(FRAMES_OFFER))
+			return hello.trim();
+		connection.useFrames();
+		connection.send(Frame.HELLO, myNickname);
+		return hello.substring(0, NICKNAME_LENGTH).trim();
+	}
+
+	/**
+	 * Set the text area in which messages are shown. Called on the event
+	 * dispatch thread before any message is shown.
+	 * 
+	 * @param textArea
+	 *            A JTextArea.
+	 */
+	void setTextArea(JTextArea textArea) {
+		this.textArea = textArea;
+	}
+
+	public String getNickname() {
+		return otherNickname;
+	}
+
+	public void received(Connection connection, byte type, byte[] bytes,
+			int offset, int length) {
+		if (type == Frame.QUIT) {
+			connection.close();
+			append(otherNickname + " left the chat.");
+		} else if (type == Frame.MESSAGE) {
+			append(otherNickname + ": " + new String(bytes, offset, length)
+					+ NEW_LINE);
+		}
+	}
+
+	public void closed(Connection connection) {
+		append(otherNickname + " left the chat.");
+	}
+
+	private void append(final String text) {
+		reactor.dispatch(new Runnable() {
+			public void run() {
+				textArea.append(text);
+			}
+		});
 	}
 }
@@ -0,0 +1,69 @@
+package twit2.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A BufferPool keeps buffers of one size for reuse, so that a server whose
+ * connections come and go does not allocate a new buffer for each one. A
+ * buffer is taken with {@link #acquire()} and handed back with
+ * {@link #release(ByteBuffer)} once nothing uses it any more. The buffers are
+ * on the heap, so that messages can be matched and decoded straight from
+ * their arrays.
+ * 
+ * @author os75
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> free;
+
+	/**
+	 * Create a new, empty pool.
+	 * 
+	 * @param bufferSize
+	 *            The size of the buffers.
+	 * @param capacity
+	 *            The number of free buffers kept; any more handed back are
+	 *            left to the garbage collector.
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+
+	/**
+	 * Take a buffer from the pool, or allocate one if the pool is empty.
+	 * 
+	 * @return A cleared buffer.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+			return ByteBuffer.allocate(bufferSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Hand a buffer back to the pool. It must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            A buffer taken from this pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize)
+			free.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return The number of free buffers in the pool.
+	 */
+	public int getFree() {
+		return free.size();
+	}
+}
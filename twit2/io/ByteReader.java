@@ -1,5 +1,6 @@
 package twit2.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -31,4 +32,61 @@ public class ByteReader {
 		// Return a String containing the received message.
 		return new String(receivedBytes, 0, length);
 	}
+
+	/**
+	 * Reads a line from an InputStream, one byte at a time so that nothing
+	 * after the line is consumed.
+	 * 
+	 * @param inputStream
+	 *            The InputStream to be read.
+	 * @param maxBytes
+	 *            The maximum number of bytes to read.
+	 * @return The line, without the line feed, or null if the stream ended
+	 *         before anything was read.
+	 * @throws IOException
+	 *             If there is a problem reading the information.
+	 */
+	public static String readLine(InputStream inputStream, int maxBytes)
+			throws IOException {
+		byte[] receivedBytes = new byte[maxBytes];
+		int length = 0;
+		while (length < maxBytes) {
+			int b = inputStream.read();
+			if (b == -1) {
+				if (length == 0)
+					return null;
+				break;
+			} else if (b == '\n') {
+				break;
+			}
+			receivedBytes[length++] = (byte) b;
+		}
+		return new String(receivedBytes, 0, length);
+	}
+
+	/**
+	 * Reads exactly length bytes from an InputStream.
+	 * 
+	 * @param inputStream
+	 *            The InputStream to be read.
+	 * @param length
+	 *            The number of bytes to read.
+	 * @return A string representation of the bytes read.
+	 * @throws IOException
+	 *             If there is a problem reading the information, or the
+	 *             stream ends first.
+	 */
+	public static String readFully(InputStream inputStream, int length)
+			throws IOException {
+		byte[] receivedBytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int read = inputStream.read(receivedBytes, offset, length - offset);
+			if (read == -1)
+				throw new EOFException("Expected " + length + " bytes, got "
+						+ offset);
+			offset += read;
+		}
+		return new String(receivedBytes);
+	}
 }
@@ -0,0 +1,85 @@
+package twit2.io;
+
+/**
+ * The Bytes class compares messages as they were received, so that their
+ * type can be told without decoding them into Strings. Only ASCII is folded
+ * when case is ignored, which is all the commands of the protocol use.
+ * 
+ * @author os75
+ */
+public final class Bytes {
+
+	private Bytes() {
+	}
+
+	/**
+	 * Tells whether a range of bytes holds exactly the given bytes.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @param expected
+	 *            The bytes to look for.
+	 * @return true if the message is the expected bytes.
+	 */
+	public static boolean equals(byte[] bytes, int offset, int length,
+			byte[] expected) {
+		return length == expected.length
+				&& startsWith(bytes, offset, length, expected);
+	}
+
+	/**
+	 * Tells whether a range of bytes holds the given bytes, in any case.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @param expected
+	 *            The bytes to look for.
+	 * @return true if the message is the expected bytes, ignoring case.
+	 */
+	public static boolean equalsIgnoreCase(byte[] bytes, int offset,
+			int length, byte[] expected) {
+		if (length != expected.length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (lowerCase(bytes[offset + i]) != lowerCase(expected[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether a range of bytes starts with the given bytes.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @param prefix
+	 *            The bytes to look for.
+	 * @return true if the message starts with the prefix.
+	 */
+	public static boolean startsWith(byte[] bytes, int offset, int length,
+			byte[] prefix) {
+		if (length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[offset + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int lowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+}
@@ -0,0 +1,129 @@
+package twit2.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The ChannelWriter class queues buffers for a non-blocking channel and
+ * writes as many of them as the channel accepts with one gathering write,
+ * instead of one write, and one flush, per message. A frame header and its
+ * payload, or a backlog of presence updates, therefore go out together.
+ * 
+ * Nothing is written until {@link #flush()} is called, so when to call it is
+ * up to the owner, following its {@link FlushPolicy}. Read-only buffers, such
+ * as the headers made by {@link Frame#header(byte, int)}, are not counted as
+ * messages. The writer is not thread-safe; its owner locks it.
+ * 
+ * @author os75
+ */
+public class ChannelWriter {
+	// The most buffers handed to the channel in one write.
+	private static final int MAX_GATHER = 64;
+	private final GatheringByteChannel channel;
+	private final ArrayDeque<ByteBuffer> queue;
+	private final ByteBuffer[] gather;
+	private int messagesWritten;
+
+	/**
+	 * Create a new writer.
+	 * 
+	 * @param channel
+	 *            A channel, normally non-blocking.
+	 */
+	public ChannelWriter(GatheringByteChannel channel) {
+		this.channel = channel;
+		queue = new ArrayDeque<ByteBuffer>();
+		gather = new ByteBuffer[MAX_GATHER];
+	}
+
+	/**
+	 * Add a buffer to the end of the queue.
+	 * 
+	 * @param buffer
+	 *            A buffer, ready to be read.
+	 */
+	public void add(ByteBuffer buffer) {
+		queue.addLast(buffer);
+	}
+
+	/**
+	 * Add a buffer to the front of the queue, ahead of anything not yet
+	 * written. Must not be called while a buffer is partly written.
+	 * 
+	 * @param buffer
+	 *            A buffer, ready to be read.
+	 */
+	public void addFirst(ByteBuffer buffer) {
+		queue.addFirst(buffer);
+	}
+
+	/**
+	 * @return The number of buffers in the queue.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Write queued buffers until the queue is empty or the channel stops
+	 * accepting data.
+	 * 
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If an error occurs while writing.
+	 */
+	public long flush() throws IOException {
+		long total = 0;
+		messagesWritten = 0;
+		while (!queue.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer buffer : queue) {
+				gather[count++] = buffer;
+				if (count == gather.length)
+					break;
+			}
+			total += channel.write(gather, 0, count);
+			Arrays.fill(gather, 0, count, null);
+			int done = 0;
+			while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+				if (!queue.pollFirst().isReadOnly())
+					messagesWritten++;
+				done++;
+			}
+			// The channel is full.
+			if (done < count)
+				break;
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of messages the last {@link #flush()} finished
+	 *         writing.
+	 */
+	public int getMessagesWritten() {
+		return messagesWritten;
+	}
+
+	/**
+	 * Drop everything in the queue.
+	 * 
+	 * @return The number of messages dropped.
+	 */
+	public int clear() {
+		int messages = 0;
+		ByteBuffer buffer;
+		while ((buffer = queue.pollFirst()) != null) {
+			if (!buffer.isReadOnly())
+				messages++;
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,129 @@
+package twit2.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Compression class deflates the payload of a frame into a
+ * {@link Frame#DEFLATED} frame, and inflates it back. The payload of a
+ * deflated frame is the type of the original frame, the length of its
+ * payload as a four byte big-endian integer, and the payload, deflated. Big
+ * user lists repeat the same subnets and port numbers over and over, and
+ * shrink to a fraction of their size.
+ * 
+ * @author os75
+ */
+public final class Compression {
+	/** Payloads shorter than this are not worth deflating. */
+	public static final int MIN_LENGTH = 512;
+	private static final int HEADER_LENGTH = 5;
+
+	private Compression() {
+	}
+
+	/**
+	 * Deflate the payload of a frame.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param payload
+	 *            The payload.
+	 * @return The payload of the deflated frame.
+	 */
+	public static byte[] deflate(byte type, byte[] payload) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					HEADER_LENGTH + payload.length / 4 + 64);
+			out.write(type);
+			out.write(payload.length >>> 24);
+			out.write(payload.length >>> 16);
+			out.write(payload.length >>> 8);
+			out.write(payload.length);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Deflate a frame, if it is long enough to be worth it.
+	 * 
+	 * @param frame
+	 *            The frame.
+	 * @return The deflated frame, or the frame itself if it is shorter than
+	 *         {@link #MIN_LENGTH}.
+	 */
+	public static Frame deflate(Frame frame) {
+		if (frame.getPayload().length < MIN_LENGTH)
+			return frame;
+		return new Frame(Frame.DEFLATED, deflate(frame.getType(),
+				frame.getPayload()));
+	}
+
+	/**
+	 * Inflate a deflated frame back into the frame it was made from.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the payload of the deflated frame.
+	 * @param length
+	 *            The length of the payload of the deflated frame.
+	 * @param maxLength
+	 *            The longest payload accepted once inflated.
+	 * @return The frame.
+	 * @throws IOException
+	 *             If the frame is malformed, or too long once inflated.
+	 */
+	public static Frame inflate(byte[] bytes, int offset, int length,
+			int maxLength) throws IOException {
+		if (length < HEADER_LENGTH)
+			throw new IOException("Deflated frame cut short");
+		byte type = bytes[offset];
+		int inflatedLength = ByteBuffer.wrap(bytes, offset + 1, 4).getInt();
+		if (type == Frame.DEFLATED)
+			throw new IOException("Deflated frame inside a deflated frame");
+		Frame.check(type, inflatedLength, maxLength);
+		byte[] payload = new byte[inflatedLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, offset + HEADER_LENGTH, length
+					- HEADER_LENGTH);
+			byte[] extra = new byte[1];
+			int inflated = 0;
+			while (!inflater.finished()) {
+				int n;
+				if (inflated < inflatedLength)
+					n = inflater.inflate(payload, inflated, inflatedLength
+							- inflated);
+				else
+					// Anything more makes the payload too long.
+					n = inflater.inflate(extra);
+				if (n == 0
+						&& (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != inflatedLength || !inflater.finished())
+				throw new IOException("Deflated frame of the wrong length");
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed deflated frame: "
+					+ e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return new Frame(type, payload);
+	}
+}
@@ -0,0 +1,88 @@
+package twit2.io;
+
+/**
+ * A FlushPolicy tells a {@link ChannelWriter}'s owner when to write what has
+ * been queued: straight away, once the caller has finished queueing a batch,
+ * or a fixed number of microseconds after the first message was queued.
+ * Waiting lets several messages go out in one write, and one TCP segment,
+ * at the cost of a bounded amount of latency.
+ * 
+ * @author os75
+ */
+public final class FlushPolicy {
+	/** Write each message as soon as it is queued. */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(0);
+	/** Write when the caller says the batch it is queueing is complete. */
+	public static final FlushPolicy END_OF_BATCH = new FlushPolicy(-1);
+	private final long delayMicros;
+
+	private FlushPolicy(long delayMicros) {
+		this.delayMicros = delayMicros;
+	}
+
+	/**
+	 * Get a policy which writes a fixed time after the first message queued.
+	 * 
+	 * @param micros
+	 *            The number of microseconds to wait, 0 for
+	 *            {@link #IMMEDIATE}.
+	 * @return The policy.
+	 */
+	public static FlushPolicy after(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Negative flush delay: "
+					+ micros);
+		return micros == 0 ? IMMEDIATE : new FlushPolicy(micros);
+	}
+
+	/**
+	 * Parse a policy given as "immediate", "batch", or a number of
+	 * microseconds.
+	 * 
+	 * @param policy
+	 *            The policy.
+	 * @return The policy.
+	 * @throws IllegalArgumentException
+	 *             If the policy is none of those.
+	 */
+	public static FlushPolicy parse(String policy) {
+		if (policy.equalsIgnoreCase("immediate"))
+			return IMMEDIATE;
+		if (policy.equalsIgnoreCase("batch"))
+			return END_OF_BATCH;
+		try {
+			return after(Long.parseLong(policy));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown flush policy: "
+					+ policy);
+		}
+	}
+
+	public boolean isImmediate() {
+		return delayMicros == 0;
+	}
+
+	public boolean isEndOfBatch() {
+		return delayMicros < 0;
+	}
+
+	public boolean isDelayed() {
+		return delayMicros > 0;
+	}
+
+	/**
+	 * @return The number of microseconds to wait before writing, if the
+	 *         policy is delayed.
+	 */
+	public long getDelayMicros() {
+		return delayMicros;
+	}
+
+	public String toString() {
+		if (isImmediate())
+			return "immediate";
+		if (isEndOfBatch())
+			return "batch";
+		return delayMicros + " us";
+	}
+}
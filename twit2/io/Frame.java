@@ -0,0 +1,193 @@
+package twit2.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Frame is one message of the framed wire protocol: a type byte, the
+ * length of the payload as a four byte big-endian integer, and the payload.
+ * Unlike the unframed protocol, in which whatever one read returns is taken
+ * to be one message, frames can be told apart however TCP splits or joins
+ * them, so several can be written at once and flushed together.
+ * 
+ * The type bytes are all below the printable characters every unframed
+ * message starts with, so the first byte received tells which protocol the
+ * other side speaks.
+ * 
+ * @author os75
+ */
+public final class Frame {
+	/** A message of the unframed protocol, such as presence updates. */
+	public static final byte MESSAGE = 1;
+	/** The user list sent in answer to the handshake. */
+	public static final byte USER_LIST = 2;
+	public static final byte KEEPALIVE = 3;
+	public static final byte QUIT = 4;
+	/** An error, after which the connection is closed. */
+	public static final byte ERROR = 5;
+	/** The nickname of a peer opening a chat. */
+	public static final byte HELLO = 6;
+	/** Presence updates, encoded by the {@link PresenceCodec}. */
+	public static final byte PRESENCE = 7;
+	/** The user list, encoded by the {@link PresenceCodec}. */
+	public static final byte ROSTER = 8;
+	/** Another frame, deflated by {@link Compression}. */
+	public static final byte DEFLATED = 9;
+	/**
+	 * A piece of a user list sent in several frames: the type of the list,
+	 * then whole entries. The last piece is sent in a frame of that type.
+	 */
+	public static final byte CHUNK = 10;
+	public static final int HEADER_LENGTH = 5;
+	/** The longest payload accepted by default, enough for a huge user list. */
+	public static final int MAX_LENGTH = 64 * 1024 * 1024;
+	private static final byte[] KEEPALIVE_TEXT = "KEEPALIVE".getBytes();
+	private static final byte[] QUIT_TEXT = "/quit".getBytes();
+	private final byte type;
+	private final byte[] payload;
+
+	/**
+	 * Create a new frame.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param payload
+	 *            The payload, which is not copied.
+	 */
+	public Frame(byte type, byte[] payload) {
+		this.type = type;
+		this.payload = payload;
+	}
+
+	public Frame(byte type, String text) {
+		this(type, text.getBytes());
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return The payload as a string.
+	 */
+	public String getText() {
+		return new String(payload);
+	}
+
+	/**
+	 * Tells whether the first byte received on a connection starts a frame.
+	 * 
+	 * @param b
+	 *            The byte, as returned by InputStream.read().
+	 * @return true if it is the type of a frame.
+	 */
+	public static boolean isType(int b) {
+		return b >= MESSAGE && b <= CHUNK;
+	}
+
+	/**
+	 * Tell the type of an unframed message from its bytes: "KEEPALIVE" and
+	 * "/quit", in any case, are what their frames would be, and anything else
+	 * is a {@link #MESSAGE}.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the message.
+	 * @param length
+	 *            The length of the message.
+	 * @return The type of the message.
+	 */
+	public static byte typeOf(byte[] bytes, int offset, int length) {
+		if (Bytes.equals(bytes, offset, length, KEEPALIVE_TEXT))
+			return KEEPALIVE;
+		if (Bytes.equalsIgnoreCase(bytes, offset, length, QUIT_TEXT))
+			return QUIT;
+		return MESSAGE;
+	}
+
+	/**
+	 * Make the header of a frame.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param length
+	 *            The length of the payload.
+	 * @return The header, ready to be written. It is read-only, which tells
+	 *         it apart from the payloads in a queue of buffers to write.
+	 */
+	public static ByteBuffer header(byte type, int length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(type).putInt(length).flip();
+		return header.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Take a frame from the bytes received so far, if they hold a whole one.
+	 * 
+	 * @param buffer
+	 *            The bytes received, ready to be read. A frame taken is
+	 *            consumed; nothing is consumed if there is no whole frame.
+	 * @param maxLength
+	 *            The longest payload accepted.
+	 * @return The frame, or null if more bytes are needed.
+	 * @throws IOException
+	 *             If the frame is of an unknown type or too long.
+	 */
+	public static Frame decode(ByteBuffer buffer, int maxLength)
+			throws IOException {
+		int length = available(buffer, maxLength);
+		if (length == -1)
+			return null;
+		byte type = buffer.get();
+		buffer.getInt();
+		byte[] payload = new byte[length];
+		buffer.get(payload);
+		return new Frame(type, payload);
+	}
+
+	/**
+	 * Tells whether the bytes received so far hold a whole frame, without
+	 * consuming anything. The frame can then be handled where it is: its type
+	 * is the byte at the position of the buffer, and its payload starts
+	 * {@link #HEADER_LENGTH} bytes further on.
+	 * 
+	 * @param buffer
+	 *            The bytes received, ready to be read.
+	 * @param maxLength
+	 *            The longest payload accepted.
+	 * @return The length of the payload, or -1 if more bytes are needed.
+	 * @throws IOException
+	 *             If the frame is of an unknown type or too long.
+	 */
+	public static int available(ByteBuffer buffer, int maxLength)
+			throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH)
+			return -1;
+		int start = buffer.position();
+		int length = buffer.getInt(start + 1);
+		check(buffer.get(start), length, maxLength);
+		if (buffer.remaining() < HEADER_LENGTH + length)
+			return -1;
+		return length;
+	}
+
+	/**
+	 * Check the header of a frame before reading its payload.
+	 * 
+	 * @throws IOException
+	 *             If the frame is of an unknown type or too long.
+	 */
+	static void check(byte type, int length, int maxLength)
+			throws IOException {
+		if (!isType(type))
+			throw new IOException("Unknown frame type " + type);
+		if (length < 0 || length > maxLength)
+			throw new IOException("Frame of " + length + " bytes, at most "
+					+ maxLength + " allowed");
+	}
+}
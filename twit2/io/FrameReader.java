@@ -0,0 +1,199 @@
+package twit2.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The FrameReader class reads {@link Frame}s from an InputStream. It reads
+ * no further than the end of each frame, so the stream can still be checked
+ * with available() between frames.
+ * 
+ * A reader can also read the unframed protocol, in which whatever one read
+ * returns is one message, and tells the type of each message from its
+ * bytes. Either way, {@link #next(int)} reads a message into a buffer which
+ * is reused for the next one, and the caller matches it with
+ * {@link #is(byte[])} or {@link #startsWith(byte[])}, only decoding it with
+ * {@link #getText()} if it needs to. A connection which only sends
+ * KEEPALIVE therefore makes the reader allocate nothing at all.
+ * 
+ * @author os75
+ */
+public class FrameReader {
+	private static final int BUFFER_SIZE = 256;
+	private InputStream in;
+	private boolean framed;
+	private byte[] header;
+	private byte[] buffer;
+	// The payload of the current message, which is the buffer unless the
+	// message did not fit in it.
+	private byte[] payload;
+	private byte type;
+	private int length;
+
+	/**
+	 * Create a new reader of frames.
+	 * 
+	 * @param in
+	 *            The InputStream to be read.
+	 */
+	public FrameReader(InputStream in) {
+		this(in, true, ByteBuffer.allocate(BUFFER_SIZE));
+	}
+
+	/**
+	 * Create a new reader.
+	 * 
+	 * @param in
+	 *            The InputStream to be read.
+	 * @param framed
+	 *            true to read frames, false to read unframed messages.
+	 * @param buffer
+	 *            The buffer to read messages into, such as one taken from a
+	 *            {@link BufferPool}. Its array is used directly.
+	 */
+	public FrameReader(InputStream in, boolean framed, ByteBuffer buffer) {
+		this.in = in;
+		this.framed = framed;
+		this.buffer = buffer.array();
+		header = new byte[Frame.HEADER_LENGTH];
+		payload = this.buffer;
+	}
+
+	/**
+	 * Switch between reading frames and unframed messages, such as once a
+	 * handshake has asked for frames.
+	 * 
+	 * @param framed
+	 *            true to read frames, false to read unframed messages.
+	 */
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	/**
+	 * Read the next message, waiting for all of it to arrive if it is a
+	 * frame. Unframed messages are read with one read of at most maxLength
+	 * bytes, so a caller which wants to know whether a message was too long
+	 * asks for one byte more than it accepts.
+	 * 
+	 * @param maxLength
+	 *            The longest payload accepted.
+	 * @return The type of the message, or -1 if the stream ended between
+	 *         messages.
+	 * @throws IOException
+	 *             If there is a problem reading the message, a frame is of an
+	 *             unknown type or too long, or the stream ends in the middle
+	 *             of one.
+	 */
+	public int next(int maxLength) throws IOException {
+		if (!framed) {
+			payload = buffer;
+			length = in.read(buffer, 0, Math.min(maxLength, buffer.length));
+			if (length == -1)
+				return -1;
+			type = Frame.typeOf(buffer, 0, length);
+			return type;
+		}
+		int first = in.read();
+		if (first == -1)
+			return -1;
+		header[0] = (byte) first;
+		readFully(header, 1, Frame.HEADER_LENGTH - 1);
+		length = (header[1] & 0xff) << 24 | (header[2] & 0xff) << 16
+				| (header[3] & 0xff) << 8 | header[4] & 0xff;
+		Frame.check(header[0], length, maxLength);
+		type = header[0];
+		// A message too long for the buffer, such as a user list, gets an
+		// array of its own, which is not kept.
+		payload = length <= buffer.length ? buffer : new byte[length];
+		readFully(payload, 0, length);
+		return type;
+	}
+
+	/**
+	 * Read the next message into a frame of its own.
+	 * 
+	 * @param maxLength
+	 *            The longest payload accepted.
+	 * @return The frame, or null if the stream ended between messages.
+	 * @throws IOException
+	 *             If there is a problem reading the message, a frame is of an
+	 *             unknown type or too long, or the stream ends in the middle
+	 *             of one.
+	 */
+	public Frame read(int maxLength) throws IOException {
+		if (next(maxLength) == -1)
+			return null;
+		byte[] copy = new byte[length];
+		System.arraycopy(payload, 0, copy, 0, length);
+		return new Frame(type, copy);
+	}
+
+	/**
+	 * @return The type of the current message.
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return The length of the payload of the current message.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Tells whether the payload of the current message is the given bytes.
+	 * 
+	 * @param bytes
+	 *            The bytes to look for.
+	 * @return true if the payload is the bytes.
+	 */
+	public boolean is(byte[] bytes) {
+		return Bytes.equals(payload, 0, length, bytes);
+	}
+
+	/**
+	 * Tells whether the payload of the current message starts with the given
+	 * bytes.
+	 * 
+	 * @param prefix
+	 *            The bytes to look for.
+	 * @return true if the payload starts with the bytes.
+	 */
+	public boolean startsWith(byte[] prefix) {
+		return Bytes.startsWith(payload, 0, length, prefix);
+	}
+
+	/**
+	 * Get the payload of the current message where it was read into, without
+	 * copying it. It starts at 0 and is {@link #getLength()} bytes long, and
+	 * is only valid until the next message is read.
+	 * 
+	 * @return The bytes holding the payload.
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return The payload of the current message as a string.
+	 */
+	public String getText() {
+		return new String(payload, 0, length);
+	}
+
+	private void readFully(byte[] bytes, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			int read = in.read(bytes, offset, length);
+			if (read == -1)
+				throw new EOFException("The stream ended inside a frame");
+			offset += read;
+			length -= read;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package twit2.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The FrameWriter class writes {@link Frame}s to an OutputStream. Frames are
+ * buffered until {@link #flush()} is called, so a batch of them costs one
+ * write to the socket.
+ * 
+ * A writer can also speak the unframed protocol to a peer which does not
+ * understand frames. It then writes only the payloads, flushing each one
+ * straight away, since the peer takes whatever one read returns to be one
+ * message. Either way, the callers do not need to know which protocol is
+ * spoken. The methods are synchronized, so several threads may share a
+ * writer.
+ * 
+ * @author os75
+ */
+public class FrameWriter {
+	private static final int BUFFER_SIZE = 8192;
+	private OutputStream out;
+	private boolean framed;
+	private byte[] header;
+
+	/**
+	 * Create a new writer.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param framed
+	 *            true to write frames, false to write unframed messages.
+	 */
+	public FrameWriter(OutputStream out, boolean framed) {
+		this.out = framed ? new BufferedOutputStream(out, BUFFER_SIZE) : out;
+		this.framed = framed;
+		header = new byte[Frame.HEADER_LENGTH];
+	}
+
+	/**
+	 * Tells whether this writer writes frames.
+	 * 
+	 * @return true if it writes frames, false if unframed messages.
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Write a frame, without flushing it unless it is unframed.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param payload
+	 *            The bytes of the payload.
+	 * @param length
+	 *            The number of bytes of the payload.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public synchronized void write(byte type, byte[] payload, int length)
+			throws IOException {
+		if (!framed) {
+			ByteWriter.write(out, payload, length);
+			return;
+		}
+		header[0] = type;
+		header[1] = (byte) (length >>> 24);
+		header[2] = (byte) (length >>> 16);
+		header[3] = (byte) (length >>> 8);
+		header[4] = (byte) length;
+		out.write(header);
+		out.write(payload, 0, length);
+	}
+
+	public void write(Frame frame) throws IOException {
+		write(frame.getType(), frame.getPayload(), frame.getPayload().length);
+	}
+
+	/**
+	 * Write the frames written so far to the OutputStream.
+	 * 
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Write a frame and flush it.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param text
+	 *            The payload.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public void send(byte type, String text) throws IOException {
+		send(type, text.getBytes());
+	}
+
+	/**
+	 * Write a frame and flush it.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param payload
+	 *            The bytes of the payload.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public synchronized void send(byte type, byte[] payload)
+			throws IOException {
+		write(type, payload, payload.length);
+		flush();
+	}
+}
@@ -0,0 +1,300 @@
+package twit2.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+/**
+ * The PresenceCodec encodes the user list and presence updates in binary, for
+ * peers which asked for version 2 of the protocol. Each peer is given a
+ * number when it registers, its nickname ID, so that it can later be named in
+ * a few bytes instead of by nickname. Numbers are written as varints: seven
+ * bits per byte, lowest first, with the top bit set on every byte but the
+ * last.
+ * 
+ * A list of records is a sequence of:
+ * <ul>
+ * <li>ONL id nickname address port: a peer came online. The nickname is a
+ * varint length followed by UTF-8, the address a length byte, 4 or 16,
+ * followed by the raw address, and the port two bytes, big-endian.</li>
+ * <li>OFL id: the peer of that ID went offline.</li>
+ * <li>SEQ epoch sequence: every update up to that sequence number has been
+ * received.</li>
+ * </ul>
+ * A {@link Frame#PRESENCE} frame holds a list of records. A
+ * {@link Frame#ROSTER} frame starts with a byte of flags, then the epoch and
+ * version if {@link #SEQUENCED} is set, then a list of ONL records: the whole
+ * user list, or only the updates since the last connection if {@link #DELTA}
+ * is set.
+ * 
+ * @author os75
+ */
+public final class PresenceCodec {
+	/** The version of the protocol which sends presence in binary. */
+	public static final int VERSION = 2;
+	public static final byte ONLINE = 1;
+	public static final byte OFFLINE = 2;
+	public static final byte SEQUENCE = 3;
+	/** The roster comes with the epoch and version it was taken at. */
+	public static final int SEQUENCED = 1;
+	/** The roster only holds the updates since the last connection. */
+	public static final int DELTA = 2;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private PresenceCodec() {
+	}
+
+	/**
+	 * Encode a peer coming online.
+	 * 
+	 * @param id
+	 *            The nickname ID of the peer.
+	 * @param nickname
+	 *            The nickname of the peer.
+	 * @param address
+	 *            The address of the peer.
+	 * @param port
+	 *            The port at which the peer accepts chat connections.
+	 * @return The ONL record.
+	 */
+	public static byte[] online(int id, String nickname, InetAddress address,
+			int port) {
+		byte[] name = nickname.getBytes(UTF_8);
+		byte[] raw = address.getAddress();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8 + name.length
+				+ raw.length);
+		out.write(ONLINE);
+		writeVarint(out, id);
+		writeVarint(out, name.length);
+		out.write(name, 0, name.length);
+		out.write(raw.length);
+		out.write(raw, 0, raw.length);
+		out.write(port >>> 8);
+		out.write(port);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode a peer going offline.
+	 * 
+	 * @param id
+	 *            The nickname ID of the peer.
+	 * @return The OFL record.
+	 */
+	public static byte[] offline(int id) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(6);
+		out.write(OFFLINE);
+		writeVarint(out, id);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode the sequence number up to which every update has been sent.
+	 * 
+	 * @param epoch
+	 *            The epoch of the name server.
+	 * @param sequence
+	 *            The sequence number.
+	 * @return The SEQ record.
+	 */
+	public static byte[] sequence(long epoch, long sequence) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(20);
+		out.write(SEQUENCE);
+		writeVarint(out, epoch);
+		writeVarint(out, sequence);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode the start of a roster.
+	 * 
+	 * @param flags
+	 *            {@link #SEQUENCED} and {@link #DELTA}, or 0.
+	 * @param epoch
+	 *            The epoch of the name server, if sequenced.
+	 * @param version
+	 *            The version of the user list, if sequenced.
+	 * @return The header, to be followed by the records.
+	 */
+	public static byte[] rosterHeader(int flags, long epoch, long version) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(20);
+		out.write(flags);
+		if ((flags & SEQUENCED) != 0) {
+			writeVarint(out, epoch);
+			writeVarint(out, version);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write a number which is not negative as a varint.
+	 * 
+	 * @param out
+	 *            The stream to write to.
+	 * @param value
+	 *            The number.
+	 */
+	public static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Decode a roster, as received in a {@link Frame#ROSTER} frame.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the roster.
+	 * @param length
+	 *            The length of the roster.
+	 * @param handler
+	 *            The handler told about the roster and then its records.
+	 * @throws IOException
+	 *             If the roster is malformed.
+	 */
+	public static void decodeRoster(byte[] bytes, int offset, int length,
+			Handler handler) throws IOException {
+		Cursor cursor = new Cursor(bytes, offset, offset + length);
+		int flags = cursor.next();
+		String token = null;
+		if ((flags & SEQUENCED) != 0)
+			token = cursor.varint() + ":" + cursor.varint();
+		handler.roster((flags & DELTA) != 0, token);
+		decode(cursor, handler);
+	}
+
+	/**
+	 * Decode a list of records, as received in a {@link Frame#PRESENCE}
+	 * frame.
+	 * 
+	 * @param bytes
+	 *            The bytes received.
+	 * @param offset
+	 *            The start of the records.
+	 * @param length
+	 *            The length of the records.
+	 * @param handler
+	 *            The handler told about each record.
+	 * @throws IOException
+	 *             If a record is malformed.
+	 */
+	public static void decode(byte[] bytes, int offset, int length,
+			Handler handler) throws IOException {
+		decode(new Cursor(bytes, offset, offset + length), handler);
+	}
+
+	private static void decode(Cursor cursor, Handler handler)
+			throws IOException {
+		while (cursor.hasNext()) {
+			int record = cursor.next();
+			if (record == ONLINE) {
+				int id = (int) cursor.varint();
+				int nameLength = (int) cursor.varint();
+				int name = cursor.skip(nameLength);
+				String nickname = new String(cursor.bytes, name, nameLength,
+						UTF_8);
+				int addressLength = cursor.next();
+				if (addressLength != 4 && addressLength != 16)
+					throw new IOException("Address of " + addressLength
+							+ " bytes");
+				byte[] raw = new byte[addressLength];
+				System.arraycopy(cursor.bytes, cursor.skip(addressLength), raw,
+						0, addressLength);
+				// Raw addresses are never looked up.
+				String hostname = InetAddress.getByAddress(raw)
+						.getHostAddress();
+				int port = cursor.next() << 8 | cursor.next();
+				handler.online(id, nickname, hostname, port);
+			} else if (record == OFFLINE) {
+				handler.offline((int) cursor.varint());
+			} else if (record == SEQUENCE) {
+				handler.sequence(cursor.varint() + ":" + cursor.varint());
+			} else {
+				throw new IOException("Unknown presence record " + record);
+			}
+		}
+	}
+
+	/**
+	 * A Handler is told what a roster or a list of records holds, one record
+	 * at a time, in order.
+	 */
+	public interface Handler {
+
+		/**
+		 * The start of a roster, before its records.
+		 * 
+		 * @param delta
+		 *            true if the records are the updates since the last
+		 *            connection, false if they are the whole user list.
+		 * @param token
+		 *            "epoch:version" if the roster is sequenced, or null.
+		 */
+		void roster(boolean delta, String token);
+
+		void online(int id, String nickname, String hostname, int port);
+
+		void offline(int id);
+
+		/**
+		 * @param token
+		 *            "epoch:sequence", up to which every update has been
+		 *            received.
+		 */
+		void sequence(String token);
+	}
+
+	/**
+	 * The position reached in the bytes being decoded.
+	 */
+	private static final class Cursor {
+		private final byte[] bytes;
+		private int position;
+		private final int end;
+
+		private Cursor(byte[] bytes, int position, int end) {
+			this.bytes = bytes;
+			this.position = position;
+			this.end = end;
+		}
+
+		boolean hasNext() {
+			return position < end;
+		}
+
+		int next() throws IOException {
+			if (position >= end)
+				throw new IOException("Presence record cut short");
+			return bytes[position++] & 0xFF;
+		}
+
+		long varint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = next();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Varint too long");
+		}
+
+		/**
+		 * Skip over some bytes.
+		 * 
+		 * @return The position of the first byte skipped.
+		 */
+		int skip(int length) throws IOException {
+			if (length < 0 || length > end - position)
+				throw new IOException("Presence record cut short");
+			int start = position;
+			position += length;
+			return start;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package twit2.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Log class writes log events to the console without making the threads
+ * which log them wait for it. An event is a template, in which each "{}" is
+ * replaced by an argument, and up to two arguments. Logging an event only
+ * stores it in a slot of a ring buffer; a background thread formats the
+ * events and writes them out, many at a time.
+ * 
+ * Events below the current level are dropped after comparing two integers,
+ * before anything is allocated. Events which happen very often, such as one
+ * per presence update, can also be sampled with a {@link Sampler}, so that
+ * only one out of every few is logged. If the buffer fills up, because
+ * events are logged faster than the console takes them, new events are
+ * dropped and counted instead of blocking.
+ * 
+ * @author os75
+ */
+public final class Log {
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int OFF = 4;
+	private static final String[] LEVEL_NAMES = { "DEBUG", "INFO", "WARN",
+			"ERROR", "OFF" };
+	private static final int CAPACITY = 8192;
+	// How long the writer waits for new events once it has caught up.
+	private static final long IDLE_NANOS = 5 * 1000 * 1000;
+	private static volatile int level = INFO;
+	private static volatile int sampling = 1;
+	private static final Slot[] ring = new Slot[CAPACITY];
+	// The next sequence number to claim, and the next one to write out. The
+	// slot of a sequence number is free once the writer has passed it.
+	private static final AtomicLong head = new AtomicLong();
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final Thread writer;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			ring[i] = new Slot(i - CAPACITY);
+		}
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("log-flush") {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Set the lowest level of the events which are logged.
+	 * 
+	 * @param level
+	 *            {@link #DEBUG}, {@link #INFO}, {@link #WARN}, {@link #ERROR}
+	 *            or {@link #OFF}.
+	 */
+	public static void setLevel(int level) {
+		Log.level = level;
+	}
+
+	/**
+	 * Parse the name of a level.
+	 * 
+	 * @param name
+	 *            The name, such as "info", in any case.
+	 * @return The level.
+	 * @throws IllegalArgumentException
+	 *             If there is no level of that name.
+	 */
+	public static int parseLevel(String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown log level: " + name);
+	}
+
+	/**
+	 * Set how many events a {@link Sampler} lets through: one out of every
+	 * n.
+	 * 
+	 * @param n
+	 *            A number, 1 to log every event.
+	 */
+	public static void setSampling(int n) {
+		sampling = Math.max(1, n);
+	}
+
+	/**
+	 * Tells whether events of a level are logged. Checking first saves
+	 * working out the arguments of an event which is going to be dropped.
+	 * 
+	 * @param level
+	 *            A level.
+	 * @return true if events of the level are logged.
+	 */
+	public static boolean isEnabled(int level) {
+		return level >= Log.level;
+	}
+
+	public static void debug(String template, Object argument) {
+		if (DEBUG >= level)
+			append(DEBUG, template, argument, null);
+	}
+
+	public static void info(String template) {
+		if (INFO >= level)
+			append(INFO, template, null, null);
+	}
+
+	public static void info(String template, Object argument) {
+		if (INFO >= level)
+			append(INFO, template, argument, null);
+	}
+
+	public static void info(String template, Object first, Object second) {
+		if (INFO >= level)
+			append(INFO, template, first, second);
+	}
+
+	public static void warn(String template) {
+		if (WARN >= level)
+			append(WARN, template, null, null);
+	}
+
+	public static void warn(String template, Object argument) {
+		if (WARN >= level)
+			append(WARN, template, argument, null);
+	}
+
+	public static void warn(String template, Object first, Object second) {
+		if (WARN >= level)
+			append(WARN, template, first, second);
+	}
+
+	/**
+	 * Log an error with the stack trace of its cause.
+	 * 
+	 * @param template
+	 *            The message.
+	 * @param cause
+	 *            The exception.
+	 */
+	public static void error(String template, Throwable cause) {
+		if (ERROR >= level)
+			append(ERROR, template, null, cause);
+	}
+
+	/**
+	 * Store an event in the next free slot, or count it as dropped if there
+	 * is none.
+	 */
+	private static void append(int level, String template, Object first,
+			Object second) {
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail.get() >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+		Slot slot = ring[(int) (sequence & (CAPACITY - 1))];
+		slot.time = System.currentTimeMillis();
+		slot.level = level;
+		slot.template = template;
+		slot.first = first;
+		slot.second = second;
+		// Publishes the event to the writer.
+		slot.sequence = sequence;
+	}
+
+	/**
+	 * Write out events as they are published, until the JVM exits.
+	 */
+	private static void drain() {
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (!writeBatch(format, sb))
+				LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	/**
+	 * Write out the events published so far, in order.
+	 * 
+	 * @return true if anything was written.
+	 */
+	private static synchronized boolean writeBatch(SimpleDateFormat format,
+			StringBuilder sb) {
+		long sequence = tail.get();
+		sb.setLength(0);
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			sb.append(lost).append(" log events dropped\n");
+		// At most one lap, so the console is written to now and then even if
+		// events keep coming.
+		for (int i = 0; i < CAPACITY; i++) {
+			Slot slot = ring[(int) (sequence & (CAPACITY - 1))];
+			// Slots are published in the order they are filled in, which may
+			// not be the order they were claimed in.
+			if (slot.sequence != sequence)
+				break;
+			format(slot, format, sb);
+			slot.template = null;
+			slot.first = null;
+			slot.second = null;
+			sequence++;
+			tail.lazySet(sequence);
+		}
+		if (sb.length() == 0)
+			return false;
+		System.out.print(sb);
+		System.out.flush();
+		return true;
+	}
+
+	private static void format(Slot slot, SimpleDateFormat format,
+			StringBuilder sb) {
+		sb.append(format.format(new Date(slot.time))).append(' ');
+		sb.append(LEVEL_NAMES[slot.level]).append(' ');
+		String template = slot.template;
+		Object[] arguments = { slot.first, slot.second };
+		int argument = 0;
+		int from = 0;
+		int hole;
+		while ((hole = template.indexOf("{}", from)) != -1 && argument < 2) {
+			sb.append(template, from, hole);
+			sb.append(arguments[argument++]);
+			from = hole + 2;
+		}
+		sb.append(template, from, template.length()).append('\n');
+		if (slot.second instanceof Throwable) {
+			StringWriter trace = new StringWriter();
+			((Throwable) slot.second).printStackTrace(new PrintWriter(trace));
+			sb.append(trace);
+		}
+	}
+
+	/**
+	 * Write out every event logged so far, waiting up to a second for the
+	 * events still being stored.
+	 */
+	public static void flush() {
+		long last = head.get();
+		long deadline = System.nanoTime() + 1000L * 1000 * 1000;
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		while (tail.get() < last && System.nanoTime() < deadline) {
+			if (!writeBatch(format, sb))
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * A Sampler lets through one out of every few events of one kind, as set
+	 * with {@link Log#setSampling(int)}. It is shared by the threads logging
+	 * that kind of event:
+	 * 
+	 * <pre>
+	 * if (Log.isEnabled(Log.DEBUG) &amp;&amp; SENDING.sample())
+	 * 	Log.debug(&quot;Sending to all: {}&quot;, message);
+	 * </pre>
+	 */
+	public static final class Sampler {
+		private final AtomicLong count = new AtomicLong();
+
+		/**
+		 * Count an event.
+		 * 
+		 * @return true if the event should be logged.
+		 */
+		public boolean sample() {
+			int sampling = Log.sampling;
+			return sampling == 1 || count.getAndIncrement() % sampling == 0;
+		}
+	}
+
+	/**
+	 * One event in the ring buffer. The fields are only read by the writer
+	 * once the sequence number has been set, which happens last.
+	 */
+	private static final class Slot {
+		private volatile long sequence;
+		private long time;
+		private int level;
+		private String template;
+		private Object first;
+		private Object second;
+
+		private Slot(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package twit2.nameserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The AdmissionControl decides whether to accept a connection or a
+ * registration before the name server does any work for it, so that a
+ * misbehaving client reconnecting in a loop cannot make every other peer
+ * receive a stream of ONL and OFL updates. It limits the number of
+ * connections open at once, and the rate of connections and registrations
+ * from each address with a token bucket. Everything turned away is counted.
+ * 
+ * @author os75
+ */
+public class AdmissionControl {
+	// Addresses are forgotten once their buckets have filled up again, but
+	// only looked for when there are this many.
+	private static final int MAX_SOURCES = 65536;
+	private int maxConnections;
+	private double connectRate;
+	private int connectBurst;
+	private double registerRate;
+	private int registerBurst;
+	private ConcurrentMap<InetAddress, Source> sources;
+	private AtomicBoolean sweeping;
+	private AtomicInteger connections;
+	private AtomicLong overCapacity;
+	private AtomicLong connectsLimited;
+	private AtomicLong registrationsLimited;
+
+	/**
+	 * Create a new admission control.
+	 * 
+	 * @param maxConnections
+	 *            The number of connections which may be open at once, or 0
+	 *            for no limit.
+	 * @param connectRate
+	 *            The number of connections per second allowed from one
+	 *            address, or 0 for no limit.
+	 * @param connectBurst
+	 *            The number of connections allowed from one address at once.
+	 * @param registerRate
+	 *            The number of registrations per second allowed from one
+	 *            address, or 0 for no limit.
+	 * @param registerBurst
+	 *            The number of registrations allowed from one address at
+	 *            once.
+	 */
+	public AdmissionControl(int maxConnections, double connectRate,
+			int connectBurst, double registerRate, int registerBurst) {
+		this.maxConnections = maxConnections;
+		this.connectRate = connectRate;
+		this.connectBurst = Math.max(1, connectBurst);
+		this.registerRate = registerRate;
+		this.registerBurst = Math.max(1, registerBurst);
+		sources = new ConcurrentHashMap<InetAddress, Source>();
+		sweeping = new AtomicBoolean();
+		connections = new AtomicInteger();
+		overCapacity = new AtomicLong();
+		connectsLimited = new AtomicLong();
+		registrationsLimited = new AtomicLong();
+	}
+
+	/**
+	 * Decide whether to accept a new connection. A connection which is
+	 * accepted counts as open until {@link #release()} is called.
+	 * 
+	 * @param address
+	 *            The address the connection comes from.
+	 * @return true if the connection is accepted.
+	 */
+	boolean admit(InetAddress address) {
+		if (connectRate > 0
+				&& !source(address).connects.take(connectRate, connectBurst)) {
+			connectsLimited.incrementAndGet();
+			return false;
+		}
+		if (connections.incrementAndGet() > maxConnections
+				&& maxConnections > 0) {
+			connections.decrementAndGet();
+			overCapacity.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Count an accepted connection as closed.
+	 */
+	void release() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Decide whether to let a connection register a nickname.
+	 * 
+	 * @param address
+	 *            The address the connection comes from.
+	 * @return true if the registration may go ahead.
+	 */
+	boolean allowRegistration(InetAddress address) {
+		if (registerRate > 0
+				&& !source(address).registrations.take(registerRate,
+						registerBurst)) {
+			registrationsLimited.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private Source source(InetAddress address) {
+		Source source = sources.get(address);
+		if (source == null) {
+			if (sources.size() >= MAX_SOURCES)
+				sweep();
+			source = new Source(connectBurst, registerBurst);
+			Source existing = sources.putIfAbsent(address, source);
+			if (existing != null)
+				source = existing;
+		}
+		return source;
+	}
+
+	/**
+	 * Forget the addresses whose buckets are full, as they would be for a new
+	 * address anyway.
+	 */
+	private void sweep() {
+		if (!sweeping.compareAndSet(false, true))
+			return;
+		try {
+			long now = System.nanoTime();
+			for (Source source : sources.values()) {
+				if (source.connects.isFull(now, connectRate, connectBurst)
+						&& source.registrations.isFull(now, registerRate,
+								registerBurst))
+					sources.values().remove(source);
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * @return The number of connections open.
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return The number of connections turned away because too many were
+	 *         open.
+	 */
+	public long getOverCapacity() {
+		return overCapacity.get();
+	}
+
+	/**
+	 * @return The number of connections turned away because their address
+	 *         connected too often.
+	 */
+	public long getConnectsLimited() {
+		return connectsLimited.get();
+	}
+
+	/**
+	 * @return The number of registrations turned away because their address
+	 *         registered too often.
+	 */
+	public long getRegistrationsLimited() {
+		return registrationsLimited.get();
+	}
+
+	/**
+	 * @return The limits applied, as shown in the log.
+	 */
+	public String getLimits() {
+		StringBuilder limits = new StringBuilder();
+		if (maxConnections > 0)
+			limits.append(maxConnections).append(" connections open, ");
+		if (connectRate > 0)
+			limits.append(connectRate).append(" connections per second ")
+					.append("from each address, ").append(connectBurst)
+					.append(" at once, ");
+		if (registerRate > 0)
+			limits.append(registerRate).append(" registrations per second ")
+					.append("from each address, ").append(registerBurst)
+					.append(" at once, ");
+		if (limits.length() == 0)
+			return "no limits";
+		limits.setLength(limits.length() - 2);
+		return "at most " + limits;
+	}
+
+	public String toString() {
+		return "Connections open: " + getConnections()
+				+ ", turned away over capacity: " + getOverCapacity()
+				+ ", connects rate limited: " + getConnectsLimited()
+				+ ", registrations rate limited: "
+				+ getRegistrationsLimited();
+	}
+
+	/**
+	 * The buckets of one address.
+	 */
+	private static final class Source {
+		private final TokenBucket connects;
+		private final TokenBucket registrations;
+
+		private Source(int connectBurst, int registerBurst) {
+			connects = new TokenBucket(connectBurst);
+			registrations = new TokenBucket(registerBurst);
+		}
+	}
+
+	/**
+	 * A bucket holding up to burst tokens, refilled at a steady rate. Taking
+	 * a token from an empty bucket fails.
+	 */
+	private static final class TokenBucket {
+		private double tokens;
+		private long refilled;
+
+		private TokenBucket(int burst) {
+			tokens = burst;
+			refilled = System.nanoTime();
+		}
+
+		synchronized boolean take(double rate, int burst) {
+			long now = System.nanoTime();
+			refill(now, rate, burst);
+			if (tokens < 1)
+				return false;
+			tokens--;
+			return true;
+		}
+
+		synchronized boolean isFull(long now, double rate, int burst) {
+			refill(now, rate, burst);
+			return tokens >= burst;
+		}
+
+		private void refill(long now, double rate, int burst) {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+			refilled = now;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+
+import twit2.io.Frame;
+
+/**
+ * A Client is a peer connected to the name server. It hides how the
+ * connection is serviced, so that the name server can broadcast to clients
+ * handled by its blocking and non-blocking engines alike.
+ * 
+ * @author os75
+ */
+public interface Client {
+
+	/**
+	 * Queue a message for the peer. Returns without waiting for the message
+	 * to be written.
+	 * 
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection has been closed, or the peer has fallen
+	 *             too far behind in reading its messages.
+	 */
+	void sendMessage(byte[] message) throws IOException;
+
+	/**
+	 * Queue a message of a given type for the peer, which must have asked for
+	 * frames unless the type is {@link Frame#MESSAGE}.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in.
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection has been closed, or the peer has fallen
+	 *             too far behind in reading its messages.
+	 */
+	void sendMessage(byte type, byte[] message) throws IOException;
+
+	/**
+	 * Send the list of connected peers to a newly registered peer. Messages
+	 * queued before the list are held back and written after it.
+	 * 
+	 * @param users
+	 *            The list of connected peers, in one frame or in several
+	 *            chunks, maybe followed by the updates made since it was
+	 *            taken. Unframed, only the payloads are sent.
+	 * @throws IOException
+	 *             If the connection has been closed.
+	 */
+	void sendUserList(Frame[] users) throws IOException;
+
+	/**
+	 * Write the messages queued so far, if they are being held back until
+	 * the end of a batch. Called once a broadcast has been queued for every
+	 * peer.
+	 */
+	void flush();
+
+	/**
+	 * Tells if the connection has been closed.
+	 * 
+	 * @return true if the connection has been closed, false otherwise.
+	 */
+	boolean isClosed();
+
+	/**
+	 * Close the connection with the peer, and remove it from the list of
+	 * connected peers.
+	 */
+	void close();
+
+	/**
+	 * Get the nickname the peer registered with.
+	 * 
+	 * @return A nickname, or "null" if the peer has not registered yet.
+	 */
+	String getNickname();
+}
@@ -1,14 +1,18 @@
 package twit2.nameserver;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import twit2.io.ByteReader;
-import twit2.io.ByteWriter;
+import twit2.io.Frame;
+import twit2.io.FrameReader;
+import twit2.io.FrameWriter;
+import twit2.log.Log;
 import static twit2.io.ByteWriter.write;
 
 /**
@@ -17,101 +21,120 @@ import static twit2.io.ByteWriter.write;
  * 
  * @author os75
  */
-public class ClientHandler extends Thread {
-	private static final int MAX_NAME_LENGTH = 40;
-	private static final int MAX_PORT_LENGTH = 5;
-	private static final int MAX_PORT_NAME_LENGTH = MAX_NAME_LENGTH + 1
-			+ MAX_PORT_LENGTH;
-	private static final int MAX_MESSAGE_LENGTH = 140;
+public class ClientHandler implements Runnable, Client {
+	private static final int MAX_HANDSHAKE_LENGTH = NameServer.MAX_HANDSHAKE_LENGTH;
+	private static final int MAX_MESSAGE_LENGTH = NameServer.MAX_MESSAGE_LENGTH;
+	private static final byte[] QUERY = RosterQuery.COMMAND.getBytes();
 	private Socket client;
 	private NameServer server;
-	private boolean alive;
-	private InputStream in;
+	private volatile boolean alive;
+	private PushbackInputStream in;
 	private OutputStream out;
-	private String nickName;
+	private FrameReader reader;
+	private OutboundQueue output;
+	private Registration registration;
+	private boolean framed;
+	private LivenessTracker.Entry liveness;
+	private AtomicBoolean closed;
 
 	public ClientHandler(Socket client, NameServer server) {
 		this.client = client;
 		this.server = server;
 		alive = true;
+		closed = new AtomicBoolean();
 	}
 
 	/**
 	 * Receive messages from a Peer.
 	 */
 	public void run() {
+		ByteBuffer buffer = server.getBuffers().acquire();
 		try {
-			in = client.getInputStream();
+			// Room to put back frames sent straight after the handshake.
+			in = new PushbackInputStream(client.getInputStream(),
+					MAX_HANDSHAKE_LENGTH + 1);
 			out = client.getOutputStream();
-			receiveInitialization();
+			reader = new FrameReader(in, false, buffer);
+			output = new OutboundQueue(client, server.getExecutor(),
+					NameServer.OUTBOUND_CAPACITY, server.getMetrics());
+			liveness = server.track(this);
+			if (!receiveInitialization())
+				return;
 			while (alive) {
-				String message = ByteReader.read(in, MAX_MESSAGE_LENGTH + 1);
-				if (message.length() <= MAX_MESSAGE_LENGTH) {
-					if (message.equalsIgnoreCase("/quit")) {
-						System.out.println("Received quit command from " + nickName);
-						closeConnection();
-					}
-				} else {
+				// Unframed, one byte more than allowed tells a message which
+				// is too long; a frame which is too long is an error.
+				int type = reader.next(framed ? MAX_MESSAGE_LENGTH
+						: MAX_MESSAGE_LENGTH + 1);
+				if (type == -1)
+					return;
+				server.getMetrics().received(
+						reader.getLength() + (framed ? Frame.HEADER_LENGTH : 0));
+				// Anything counts as activity, KEEPALIVE included.
+				if (liveness != null)
+					liveness.touch();
+				if (reader.getLength() > MAX_MESSAGE_LENGTH) {
 					sendMessage("Message received too long. Max is 140 characters.");
+				} else if (type == Frame.QUIT) {
+					Log.info("Received quit command from {}", getNickname());
+					closeConnection();
+				} else if (type == Frame.MESSAGE && reader.startsWith(QUERY)) {
+					sendMessage(server.query(reader.getText()));
 				}
 			}
 		} catch (SocketTimeoutException e) {
 			alive = false;
 		} catch (SocketException e) {
-			System.out.println("Connection with " + nickName + " reset.");
+			Log.info("Connection with {} reset.", getNickname());
 			closeConnection();
 			return;
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("IOException: the connection with a peer failed", e);
 			closeConnection();
 			return;
 		} catch (NumberFormatException e) {
 		} catch (NameServerException e) {
 			try {
-				write(out, "ERROR " + e.getMessage());
+				if (framed)
+					new FrameWriter(out, true).send(Frame.ERROR, e.getMessage());
+				else
+					write(out, "ERROR " + e.getMessage());
 			} catch (IOException ioe) {
 			}
-			System.out.println(e.getMessage());
+			Log.info("{}", e.getMessage());
 			closeConnection();
 			return;
 		} finally {
 			closeConnection();
+			server.getBuffers().release(buffer);
 		}
 	}
 
 	/**
 	 * Receive the nickname and port number of a peer wishes to use.
 	 * 
+	 * @return false if the connection was closed first.
 	 * @throws IOException
 	 *             If a reading error occurs.
 	 * @throws NameServerException
 	 */
-	private void receiveInitialization() throws IOException,
+	private boolean receiveInitialization() throws IOException,
 			NameServerException {
-		String input = ByteReader.read(in, MAX_PORT_NAME_LENGTH + 1);
-		if (input.length() > MAX_NAME_LENGTH) {
-			// Message too long, may not be receiving the full message
-			throw new NameServerException(
-					"Nickname or portnumber too long, please try again.");
-		} else {
-			String address = client.getInetAddress().getHostAddress();
-			String[] split = input.split(" ");
-			if (split.length >= 2) {
-				String nickName = split[0];
-				int port = Integer.parseInt(split[1]);
-				boolean entryAdded = server.addEntry(nickName, address, port);
-				if (entryAdded) {
-					this.nickName = nickName;
-					sendUserList();
-				} else {
-					throw new NameServerException(
-							"Nickname already taken, please try a different one.");
-				}
-			} else {
-				throw new NameServerException(
-						"Expected nickname and port number.");
-			}
+		if (reader.next(MAX_HANDSHAKE_LENGTH + 1) == -1)
+			return false;
+		String input = reader.getText();
+		server.getMetrics().received(input.length());
+		int end = Handshake.length(reader.getPayload(), 0, reader.getLength());
+		framed = Handshake.isFramed(new String(reader.getPayload(), 0, end));
+		if (framed) {
+			// Anything after the handshake is the first frames, to be read
+			// again as such.
+			in.unread(reader.getPayload(), end, reader.getLength() - end);
+			input = new String(reader.getPayload(), 0, end);
+			reader.setFramed(true);
+			output.setFramed();
 		}
+		registration = server.register(this, input, client.getInetAddress());
+		return true;
 	}
 
 	/**
@@ -121,24 +144,50 @@ public class ClientHandler extends Thread {
 	 *             If there is a problem with closing the connection.
 	 */
 	private void closeConnection() {
+		if (!closed.compareAndSet(false, true))
+			return;
 		try {
 			client.close();
 		} catch (IOException e) {
 		}
 		alive = false;
-		server.removeEntry(nickName);
+		if (liveness != null)
+			liveness.cancel();
+		server.removeClient(this);
+		server.removeEntry(registration);
+		server.connectionClosed();
+	}
+
+	/**
+	 * Close the connection with the peer. The handler notices when its read
+	 * fails.
+	 */
+	public void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+		}
 	}
 
 	/**
-	 * Send a list of all the connected peers to the peer.
+	 * Send a list of all the connected peers to the peer, ahead of any
+	 * message queued so far.
 	 * 
+	 * @param users
+	 *            The list of connected peers, in one frame or several.
 	 * @throws IOException
-	 *             If there is an error writing information to the
-	 *             output-stream.
+	 *             If the connection has been closed.
+	 */
+	public void sendUserList(Frame[] users) throws IOException {
+		if (!alive || !output.release(users))
+			throw new IOException("Connection closed");
+	}
+
+	/**
+	 * Nothing to do: the writer task of the outbound queue already writes
+	 * everything queued for the peer before flushing.
 	 */
-	private void sendUserList() throws IOException {
-		String users = server.getUserList();
-		write(out, users);
+	public void flush() {
 	}
 
 	/**
@@ -159,12 +208,44 @@ public class ClientHandler extends Thread {
 	 *             If an error occurs while writing to the peer.
 	 */
 	public void sendMessage(String message) throws IOException {
-		ByteWriter.write(out, message);
+		sendMessage(message.getBytes());
+	}
+
+	/**
+	 * Queue a message for the peer. It is written by a writer task, so this
+	 * never waits for the peer to read.
+	 * 
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection has been closed, or the peer has fallen
+	 *             too far behind.
+	 */
+	public void sendMessage(byte[] message) throws IOException {
+		sendMessage(Frame.MESSAGE, message);
+	}
+
+	/**
+	 * Queue a message of a given type for the peer.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in, if framed.
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection has been closed, or the peer has fallen
+	 *             too far behind.
+	 */
+	public void sendMessage(byte type, byte[] message) throws IOException {
+		if (!alive)
+			throw new IOException("Connection closed");
+		if (!output.offer(type, message))
+			throw new IOException("Outbound queue full");
 	}
 
 	public String getNickname() {
-		if(nickName == null)
+		if (registration == null)
 			return "null";
-		return nickName;
+		return registration.getNickname();
 	}
 }
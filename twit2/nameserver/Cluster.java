@@ -0,0 +1,468 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import twit2.log.Log;
+
+/**
+ * A Cluster joins a name server to other name servers, so that peers can
+ * connect to any of them and still see every peer connected to the others.
+ * 
+ * Every node keeps the whole user list, and tells the other nodes about the
+ * peers connected to itself. The nickname space is split between the nodes
+ * by a {@link ConsistentHashRing}: before a peer may use a nickname, the node
+ * owning it must agree that nobody else is using or about to use it. When a
+ * node joins or leaves, the ring is rebalanced and only the ownership of the
+ * neighbouring arcs moves, along with the reservations made for the
+ * nicknames on them. The peers of a node which leaves are taken off the user
+ * list.
+ * 
+ * Two nodes may still both register a nickname while the ring changes. The
+ * node owning the nickname keeps its peer, and the other one disconnects
+ * its own.
+ * 
+ * Nodes talk over a connection of their own, one line per message:
+ * <ul>
+ * <li>HELLO node, the first message, where node is "host:port" of the
+ * cluster port of the sender.</li>
+ * <li>NODES node..., the other nodes the sender is connected to. Of two nodes
+ * which are not yet connected, the one with the lowest id connects.</li>
+ * <li>ONL nickname;host;port and OFL nickname, presence updates for the
+ * peers connected to the sender.</li>
+ * <li>CLAIM id nickname, asking the owner of a nickname to reserve it, which
+ * answers CLAIMED id OK or CLAIMED id TAKEN.</li>
+ * <li>UNCLAIM nickname, giving up a reservation which was not used.</li>
+ * <li>RESERVE time nickname, handing a reservation over to the new owner of
+ * a nickname, which keeps it for time more milliseconds.</li>
+ * </ul>
+ * 
+ * @author os75
+ */
+public class Cluster extends Thread {
+	static final int LINK_CAPACITY = 65536;
+	private static final int SO_TIMEOUT = 15000;
+	private static final long CLAIM_TIMEOUT = 2000;
+	private static final long RESERVATION_TIMEOUT = 30000;
+	private NameServer server;
+	private String id;
+	private ServerSocket socket;
+	private volatile boolean running;
+	private ConsistentHashRing ring;
+	private ConcurrentMap<String, ClusterLink> links;
+	// Nicknames this node has agreed to, until the ONL for them arrives.
+	private ConcurrentMap<String, Long> reservations;
+	// The owners which agreed to the nicknames of peers registering here.
+	private ConcurrentMap<String, String> granted;
+	// Guarded by this cluster, along with telling the other nodes about them.
+	private Set<Registration> local;
+	private ExecutorService writers;
+	private ExecutorService registrars;
+
+	/**
+	 * Create a new cluster node for a name server, accepting other nodes on
+	 * a given port number.
+	 * 
+	 * @param server
+	 *            The name server.
+	 * @param host
+	 *            The host name other nodes reach this node at.
+	 * @param port
+	 *            The port number other nodes connect to.
+	 * @throws IOException
+	 *             If an error occurs while setting up the cluster port.
+	 */
+	public Cluster(NameServer server, String host, int port)
+			throws IOException {
+		super("cluster-acceptor");
+		this.server = server;
+		id = host + ":" + port;
+		socket = new ServerSocket(port);
+		socket.setSoTimeout(SO_TIMEOUT);
+		ring = new ConsistentHashRing();
+		ring.add(id);
+		links = new ConcurrentHashMap<String, ClusterLink>();
+		reservations = new ConcurrentHashMap<String, Long>();
+		granted = new ConcurrentHashMap<String, String>();
+		local = Collections
+				.newSetFromMap(new IdentityHashMap<Registration, Boolean>());
+		writers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cluster-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		registrars = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cluster-registrar");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Log.info("Cluster node {} set up", id);
+	}
+
+	/**
+	 * Accepts connections from other nodes.
+	 */
+	public void run() {
+		running = true;
+		while (running) {
+			try {
+				Socket node = socket.accept();
+				new ClusterLink(this, node).start();
+			} catch (SocketTimeoutException e) {
+				// ignore timeouts
+			} catch (IOException e) {
+				if (running)
+					Log.error("IOException: a node could not be accepted", e);
+			}
+		}
+	}
+
+	/**
+	 * Join the cluster a given node belongs to. The other nodes are found
+	 * through it.
+	 * 
+	 * @param host
+	 *            The host name of a node.
+	 * @param port
+	 *            The cluster port of the node.
+	 * @throws IOException
+	 *             If the node cannot be reached.
+	 */
+	public void join(String host, int port) throws IOException {
+		new ClusterLink(this, new Socket(host, port)).start();
+	}
+
+	/**
+	 * Leave the cluster.
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		for (ClusterLink link : links.values()) {
+			link.close();
+		}
+		writers.shutdown();
+		registrars.shutdown();
+	}
+
+	String getNodeId() {
+		return id;
+	}
+
+	NameServer getServer() {
+		return server;
+	}
+
+	ExecutorService getWriters() {
+		return writers;
+	}
+
+	/**
+	 * Get the executor on which the non-blocking engine registers peers,
+	 * since a registration may wait for up to {@link #CLAIM_TIMEOUT} for
+	 * another node to agree to the nickname, which must not hold up a
+	 * reactor.
+	 * 
+	 * @return An executor.
+	 */
+	ExecutorService getRegistrars() {
+		return registrars;
+	}
+
+	/**
+	 * Start using a link once the node at the other end has said who it is.
+	 * The node is told about the other nodes and about the peers connected
+	 * here, and the other nodes are told about it.
+	 * 
+	 * @param link
+	 *            The link.
+	 * @return false if the node is already linked, or is this node, in which
+	 *         case the link should be closed.
+	 */
+	synchronized boolean attach(ClusterLink link) {
+		String node = link.getNode();
+		if (node.equals(id) || links.putIfAbsent(node, link) != null)
+			return false;
+		StringBuilder nodes = new StringBuilder("NODES");
+		for (ClusterLink other : links.values()) {
+			if (other != link) {
+				nodes.append(' ').append(other.getNode());
+				other.send("NODES " + node);
+			}
+		}
+		link.send(nodes.toString());
+		List<Registration> registrations = new ArrayList<Registration>(local);
+		for (Registration registration : registrations) {
+			link.send(PresenceEvent.online(0, registration).getMessage());
+		}
+		ring.add(node);
+		Log.info("Node {} joined the cluster. {}", node, describeShare());
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> reservation : reservations.entrySet()) {
+			String nickname = reservation.getKey();
+			long expires = reservation.getValue();
+			if (node.equals(ring.owner(nickname))
+					&& reservations.remove(nickname, expires) && expires > now)
+				link.send("RESERVE " + (expires - now) + " " + nickname);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop using a link which has been closed, and take the peers connected
+	 * to the node at the other end off the user list.
+	 * 
+	 * @param link
+	 *            The link.
+	 */
+	void detach(ClusterLink link) {
+		String node = link.getNode();
+		if (node == null || !links.remove(node, link))
+			return;
+		ring.remove(node);
+		Log.info("Node {} left the cluster. {}", node, describeShare());
+		// The reservations the node made for peers still registering here
+		// are made again at the new owners.
+		for (Map.Entry<String, String> claim : granted.entrySet()) {
+			String nickname = claim.getKey();
+			String owner = ring.owner(nickname);
+			if (!claim.getValue().equals(node)
+					|| !granted.replace(nickname, node, owner))
+				continue;
+			if (owner.equals(id)) {
+				takeOver(nickname, RESERVATION_TIMEOUT);
+			} else {
+				ClusterLink other = links.get(owner);
+				if (other != null)
+					other.send("RESERVE " + RESERVATION_TIMEOUT + " "
+							+ nickname);
+			}
+		}
+		for (Registration registration : link.getRegistrations()) {
+			server.removeEntry(registration);
+		}
+	}
+
+	/**
+	 * Connect to the nodes a linked node knows of, unless already connected
+	 * to them or they are to connect here.
+	 * 
+	 * @param nodes
+	 *            The ids of the nodes.
+	 */
+	void discover(String[] nodes) {
+		for (String node : nodes) {
+			if (id.compareTo(node) >= 0 || links.containsKey(node))
+				continue;
+			int colon = node.lastIndexOf(':');
+			try {
+				join(node.substring(0, colon),
+						Integer.parseInt(node.substring(colon + 1)));
+			} catch (IOException e) {
+				Log.warn("Could not reach node {}", node);
+			} catch (RuntimeException e) {
+				Log.warn("Invalid node {}", node);
+			}
+		}
+	}
+
+	private String describeShare() {
+		return (links.size() + 1) + " nodes, this node owns "
+				+ Math.round(ring.share(id) * 100) + "% of the nicknames.";
+	}
+
+	/**
+	 * Ask the node owning a nickname to reserve it for a peer connecting
+	 * here.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @return true if the nickname is reserved, false if it is taken.
+	 * @throws NameServerException
+	 *             If the owner of the nickname does not answer.
+	 */
+	boolean claim(String nickname) throws NameServerException {
+		String owner = ring.owner(nickname);
+		if (owner.equals(id))
+			return reserve(nickname);
+		ClusterLink link = links.get(owner);
+		Boolean reserved = link == null ? null : link.claim(nickname,
+				CLAIM_TIMEOUT);
+		if (reserved == null)
+			throw new NameServerException(
+					"The name server is busy, please try again.");
+		if (reserved)
+			granted.put(nickname, owner);
+		return reserved;
+	}
+
+	/**
+	 * Give up a reservation which was not used.
+	 * 
+	 * @param nickname
+	 *            The nickname.
+	 */
+	void unclaim(String nickname) {
+		granted.remove(nickname);
+		String owner = ring.owner(nickname);
+		ClusterLink link = links.get(owner);
+		if (link == null)
+			reservations.remove(nickname);
+		else
+			link.send("UNCLAIM " + nickname);
+	}
+
+	/**
+	 * Reserve a nickname owned by this node, unless it is registered or
+	 * already reserved.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @return true if the nickname was reserved.
+	 */
+	boolean reserve(String nickname) {
+		if (server.getRegistration(nickname) != null)
+			return false;
+		long now = System.currentTimeMillis();
+		Long expires = reservations.putIfAbsent(nickname, now
+				+ RESERVATION_TIMEOUT);
+		if (expires == null)
+			return true;
+		// A node which never used its reservation.
+		return expires < now
+				&& reservations.replace(nickname, expires, now
+						+ RESERVATION_TIMEOUT);
+	}
+
+	/**
+	 * Drop the reservation of a nickname which has now been registered, or
+	 * given up.
+	 * 
+	 * @param nickname
+	 *            The nickname.
+	 */
+	void release(String nickname) {
+		reservations.remove(nickname);
+	}
+
+	/**
+	 * Keep a reservation handed over by the node which owned a nickname
+	 * before the ring changed.
+	 * 
+	 * @param nickname
+	 *            The nickname.
+	 * @param time
+	 *            The number of milliseconds the reservation is still kept.
+	 */
+	void takeOver(String nickname, long time) {
+		if (server.getRegistration(nickname) != null)
+			return;
+		Long expires = reservations.putIfAbsent(nickname,
+				System.currentTimeMillis() + time);
+		if (expires != null)
+			Log.warn("Nickname {} was reserved by two nodes", nickname);
+	}
+
+	/**
+	 * Tell the other nodes about a peer which registered here.
+	 * 
+	 * @param registration
+	 *            The registration of the peer.
+	 */
+	synchronized void added(Registration registration) {
+		release(registration.getNickname());
+		granted.remove(registration.getNickname());
+		// The peer may already have gone again.
+		if (server.getRegistration(registration.getNickname()) != registration)
+			return;
+		local.add(registration);
+		broadcast(PresenceEvent.online(0, registration).getMessage());
+	}
+
+	/**
+	 * Tell the other nodes about a peer which was registered here and has
+	 * gone. Peers registered at other nodes are ignored.
+	 * 
+	 * @param registration
+	 *            The registration of the peer.
+	 */
+	synchronized void removed(Registration registration) {
+		if (local.remove(registration))
+			broadcast("OFL " + registration.getNickname());
+	}
+
+	/**
+	 * Settle which of two nodes keeps a nickname both registered a peer
+	 * with, once the ONL of the other node arrives: the one owning it. The
+	 * loser takes its peer off the user list, disconnecting it if it is
+	 * connected here.
+	 * 
+	 * @param link
+	 *            The link the ONL arrived on.
+	 * @param registration
+	 *            The registration of the peer connected to the other node.
+	 * @return true if the peer was added to the user list.
+	 */
+	synchronized boolean resolve(ClusterLink link, Registration registration) {
+		String nickname = registration.getNickname();
+		Registration existing = server.getRegistration(nickname);
+		if (existing == null)
+			return server.addRemoteEntry(registration);
+		// Held here unless another node told about it, as it may not have
+		// been told to the other nodes yet.
+		String holder = id;
+		ClusterLink other = null;
+		for (ClusterLink candidate : links.values()) {
+			if (candidate.holds(existing)) {
+				other = candidate;
+				holder = candidate.getNode();
+			}
+		}
+		// Each node may have a different ring while it changes, but the
+		// owner among the two nodes alone is the owner whenever it is one of
+		// them, and the same everywhere.
+		ConsistentHashRing contenders = new ConsistentHashRing();
+		contenders.add(holder);
+		contenders.add(link.getNode());
+		if (holder.equals(contenders.owner(nickname))) {
+			Log.warn("Nickname {} registered at two nodes, kept at {}",
+					nickname, holder);
+			return false;
+		}
+		Log.warn("Nickname {} registered at two nodes, kept at {}",
+				nickname, link.getNode());
+		if (other == null) {
+			server.disconnect(existing);
+		} else {
+			other.forget(existing);
+			server.removeEntry(existing);
+		}
+		return server.addRemoteEntry(registration);
+	}
+
+	private void broadcast(String message) {
+		for (ClusterLink link : links.values()) {
+			link.send(message);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package twit2.nameserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import twit2.io.Frame;
+import twit2.log.Log;
+
+/**
+ * A ClusterLink is the connection between this node of a {@link Cluster} and
+ * one other node. It reads the messages of the other node on a thread of its
+ * own, and queues the messages for it, so that a slow node holds up nobody
+ * but itself.
+ * 
+ * @author os75
+ */
+class ClusterLink extends Thread {
+	private Cluster cluster;
+	private Socket socket;
+	private OutboundQueue output;
+	private volatile String node;
+	private volatile boolean attached;
+	// The peers connected to the other node, by nickname. Only changed by
+	// the reading threads, in turn while a nickname is disputed.
+	private ConcurrentMap<String, Registration> registrations;
+	private AtomicLong nextClaim;
+	private ConcurrentMap<Long, Claim> claims;
+
+	ClusterLink(Cluster cluster, Socket socket) throws IOException {
+		super("cluster-link");
+		this.cluster = cluster;
+		this.socket = socket;
+		output = new OutboundQueue(socket, cluster.getWriters(),
+				Cluster.LINK_CAPACITY, null);
+		registrations = new ConcurrentHashMap<String, Registration>();
+		nextClaim = new AtomicLong();
+		claims = new ConcurrentHashMap<Long, Claim>();
+	}
+
+	/**
+	 * Introduce this node, then read the messages of the other node until
+	 * the connection is closed.
+	 */
+	public void run() {
+		try {
+			output.release(new Frame(Frame.MESSAGE, "HELLO "
+					+ cluster.getNodeId() + "\n"));
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			String hello = in.readLine();
+			if (hello == null || !hello.startsWith("HELLO "))
+				return;
+			node = hello.substring(6);
+			setName("cluster-link-" + node);
+			if (!cluster.attach(this))
+				return;
+			attached = true;
+			String line;
+			while ((line = in.readLine()) != null) {
+				receive(line);
+			}
+		} catch (IOException e) {
+			if (node != null)
+				Log.info("Connection with node {} lost.", node);
+		} finally {
+			close();
+			if (attached)
+				cluster.detach(this);
+			for (Claim claim : claims.values()) {
+				claim.done.countDown();
+			}
+		}
+	}
+
+	private void receive(String line) {
+		int space = line.indexOf(' ');
+		String command = space == -1 ? line : line.substring(0, space);
+		String argument = space == -1 ? "" : line.substring(space + 1);
+		if (command.equals("ONL")) {
+			online(argument);
+		} else if (command.equals("OFL")) {
+			Registration registration = registrations.remove(argument);
+			if (registration != null)
+				cluster.getServer().removeEntry(registration);
+		} else if (command.equals("CLAIM")) {
+			String[] split = argument.split(" ");
+			send("CLAIMED " + split[0] + " "
+					+ (cluster.reserve(split[1]) ? "OK" : "TAKEN"));
+		} else if (command.equals("CLAIMED")) {
+			String[] split = argument.split(" ");
+			Claim claim = claims.remove(Long.parseLong(split[0]));
+			if (claim != null) {
+				claim.reserved = split[1].equals("OK");
+				claim.done.countDown();
+			}
+		} else if (command.equals("UNCLAIM")) {
+			cluster.release(argument);
+		} else if (command.equals("RESERVE")) {
+			String[] split = argument.split(" ");
+			cluster.takeOver(split[1], Long.parseLong(split[0]));
+		} else if (command.equals("NODES")) {
+			if (argument.length() > 0)
+				cluster.discover(argument.split(" "));
+		}
+	}
+
+	/**
+	 * Add a peer connected to the other node to the user list.
+	 * 
+	 * @param entry
+	 *            "nickname;address;port".
+	 */
+	private void online(String entry) {
+		String[] split = entry.split(";");
+		if (split.length != 3)
+			return;
+		try {
+			// The address is always numeric, so this does not look it up.
+			Registration registration = new Registration(split[0],
+					InetAddress.getByName(split[1]), Integer.parseInt(split[2]));
+			if (cluster.getServer().addRemoteEntry(registration)
+					|| cluster.resolve(this, registration))
+				registrations.put(split[0], registration);
+			cluster.release(split[0]);
+		} catch (IOException e) {
+		} catch (NumberFormatException e) {
+		}
+	}
+
+	/**
+	 * Ask the other node to reserve a nickname it owns.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @param timeout
+	 *            The number of milliseconds to wait for an answer.
+	 * @return true if the nickname was reserved, false if it is taken, or null
+	 *         if there was no answer.
+	 */
+	Boolean claim(String nickname, long timeout) {
+		long id = nextClaim.incrementAndGet();
+		Claim claim = new Claim();
+		claims.put(id, claim);
+		send("CLAIM " + id + " " + nickname);
+		try {
+			claim.done.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		}
+		claims.remove(id);
+		return claim.reserved;
+	}
+
+	/**
+	 * Queue a message for the other node.
+	 * 
+	 * @param message
+	 *            A message, without the line feed.
+	 */
+	void send(String message) {
+		output.offer(Frame.MESSAGE, (message + "\n").getBytes());
+	}
+
+	String getNode() {
+		return node;
+	}
+
+	/**
+	 * Tells if a registration is that of a peer connected to the other node.
+	 * 
+	 * @param registration
+	 *            A registration.
+	 * @return true if the other node told about it.
+	 */
+	boolean holds(Registration registration) {
+		return registrations.get(registration.getNickname()) == registration;
+	}
+
+	/**
+	 * Forget a peer connected to the other node, which lost its nickname to
+	 * a peer connected to another one.
+	 * 
+	 * @param registration
+	 *            The registration of the peer.
+	 */
+	void forget(Registration registration) {
+		registrations.remove(registration.getNickname(), registration);
+	}
+
+	/**
+	 * @return The peers connected to the other node.
+	 */
+	List<Registration> getRegistrations() {
+		return new ArrayList<Registration>(registrations.values());
+	}
+
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static final class Claim {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Boolean reserved;
+	}
+}
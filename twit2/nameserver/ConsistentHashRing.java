@@ -0,0 +1,103 @@
+package twit2.nameserver;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A ConsistentHashRing splits the nickname space between the nodes of a name
+ * server cluster. Each node is placed on the ring at a number of points, and
+ * owns the nicknames hashing to just before each of them, so adding or
+ * removing a node only moves the nicknames of the neighbouring arcs.
+ * 
+ * @author os75
+ */
+final class ConsistentHashRing {
+	private static final int POINTS_PER_NODE = 128;
+	private ConcurrentSkipListMap<Long, String> points;
+
+	ConsistentHashRing() {
+		points = new ConcurrentSkipListMap<Long, String>();
+	}
+
+	/**
+	 * Place a node on the ring, taking over part of the arcs of the nodes
+	 * already on it.
+	 * 
+	 * @param node
+	 *            The id of the node.
+	 */
+	void add(String node) {
+		for (int i = 0; i < POINTS_PER_NODE; i++) {
+			points.put(hash(node + "#" + i), node);
+		}
+	}
+
+	/**
+	 * Take a node off the ring, handing its arcs to the following nodes.
+	 * 
+	 * @param node
+	 *            The id of the node.
+	 */
+	void remove(String node) {
+		for (int i = 0; i < POINTS_PER_NODE; i++) {
+			points.remove(hash(node + "#" + i), node);
+		}
+	}
+
+	/**
+	 * Get the node owning a nickname.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @return The id of the node, or null if the ring is empty.
+	 */
+	String owner(String nickname) {
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(nickname));
+		if (point == null)
+			point = points.firstEntry();
+		return point == null ? null : point.getValue();
+	}
+
+	/**
+	 * Get the part of the nickname space owned by a node.
+	 * 
+	 * @param node
+	 *            The id of the node.
+	 * @return A number between 0 and 1.
+	 */
+	double share(String node) {
+		if (points.isEmpty())
+			return 0;
+		double owned = 0;
+		long previous = points.lastKey();
+		for (Map.Entry<Long, String> point : points.entrySet()) {
+			if (point.getValue().equals(node)) {
+				// The arc wraps around the ring, so the difference is taken
+				// as unsigned.
+				long arc = point.getKey() - previous;
+				owned += arc == 0 ? Math.pow(2, 64) : (arc >>> 1) * 2.0;
+			}
+			previous = point.getKey();
+		}
+		return owned / Math.pow(2, 64);
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(
+					key.getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package twit2.nameserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors which run the blocking logic of each
+ * {@link ClientHandler}.
+ * 
+ * @author os75
+ */
+public final class HandlerExecutors {
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	private HandlerExecutors() {
+	}
+
+	/**
+	 * Create an executor of a given kind.
+	 * 
+	 * @param kind
+	 *            {@link #PLATFORM} for a pool of platform threads, which grows
+	 *            with the number of connected peers, or {@link #VIRTUAL} for
+	 *            one virtual thread per peer.
+	 * @return A new executor.
+	 * @throws IllegalArgumentException
+	 *             If the kind is unknown, or virtual threads are not supported
+	 *             by the running JVM.
+	 */
+	public static ExecutorService create(String kind) {
+		if (kind.equalsIgnoreCase(PLATFORM)) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "client-handler-"
+							+ count.incrementAndGet());
+				}
+			});
+		} else if (kind.equalsIgnoreCase(VIRTUAL)) {
+			return newVirtualThreadPerTaskExecutor();
+		} else {
+			throw new IllegalArgumentException("Unknown executor: " + kind);
+		}
+	}
+
+	/**
+	 * Looked up reflectively so that the name server still builds and runs on
+	 * JVMs without virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(
+					"Virtual threads require Java 21 or later.");
+		} catch (Exception e) {
+			throw new IllegalArgumentException(
+					"Virtual threads could not be started: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package twit2.nameserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import twit2.io.Frame;
+
+/**
+ * A Handshake is the first message a peer sends to the name server, on the
+ * form "nickname port [option...]". Options are single words, or name=value
+ * pairs, by which a client asks for newer behaviour. A name server older
+ * than the options takes no more than {@link NameServer#MAX_NAME_LENGTH}
+ * characters, so it refuses such a handshake in plain text, or closes the
+ * connection; the client then connects again with the bare nickname and
+ * port.
+ * 
+ * @author os75
+ */
+final class Handshake {
+	/**
+	 * The client understands several presence updates in one message, one per
+	 * line.
+	 */
+	static final String BATCH = "batch";
+	/**
+	 * The client is told the sequence number of the updates it is sent, and
+	 * the user list comes with a header saying what it is. Given as
+	 * seq=epoch:sequence, the client only needs the updates since then.
+	 * Implies {@link #BATCH}.
+	 */
+	static final String SEQUENCED = "seq";
+	/**
+	 * Everything after the handshake, both ways, is sent in {@link Frame}s.
+	 */
+	static final String FRAMED = "framed";
+	/**
+	 * Given as version=n, the newest version of the protocol the client
+	 * speaks. Version 2 sends presence in binary, if framed.
+	 */
+	static final String VERSION = "version";
+	/**
+	 * A big user list may be sent deflated, if framed.
+	 */
+	static final String DEFLATE = "deflate";
+	/**
+	 * A big user list may be sent in chunks, if framed.
+	 */
+	static final String CHUNKED = "chunked";
+
+	private String nickname;
+	private int port;
+	private Map<String, String> options;
+
+	Handshake(String nickname, int port) {
+		this.nickname = nickname;
+		this.port = port;
+		options = new HashMap<String, String>();
+	}
+
+	/**
+	 * Parse the first message received from a peer.
+	 * 
+	 * @param input
+	 *            The message.
+	 * @return The handshake.
+	 * @throws NameServerException
+	 *             If the message is malformed.
+	 * @throws NumberFormatException
+	 *             If the port number is not a number.
+	 */
+	static Handshake parse(String input) throws NameServerException {
+		String[] split = input.split(" ");
+		if (split.length < 2) {
+			throw new NameServerException("Expected nickname and port number.");
+		}
+		int length = split[0].length() + 1 + split[1].length();
+		if (length > NameServer.MAX_NAME_LENGTH
+				|| input.length() > NameServer.MAX_HANDSHAKE_LENGTH) {
+			// Message too long, may not be receiving the full message
+			throw new NameServerException(
+					"Nickname or portnumber too long, please try again.");
+		}
+		Handshake handshake = new Handshake(split[0],
+				Integer.parseInt(split[1]));
+		for (int i = 2; i < split.length; i++) {
+			int equals = split[i].indexOf('=');
+			if (equals == -1)
+				handshake.options.put(split[i], "");
+			else
+				handshake.options.put(split[i].substring(0, equals),
+						split[i].substring(equals + 1));
+		}
+		return handshake;
+	}
+
+	/**
+	 * Find where the handshake ends in the first bytes read from a peer. A
+	 * handshake is text, and a framed client may send frames straight after
+	 * it, each starting with its type, which is never a printable character.
+	 * 
+	 * @param bytes
+	 *            The bytes read.
+	 * @param offset
+	 *            The start of the handshake.
+	 * @param length
+	 *            The number of bytes read.
+	 * @return The length of the handshake, up to the first byte which starts
+	 *         a frame.
+	 */
+	static int length(byte[] bytes, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (Frame.isType(bytes[offset + i]))
+				return i;
+		}
+		return length;
+	}
+
+	/**
+	 * Tells whether the first message received from a peer asks for frames,
+	 * even if it is otherwise malformed, so that an error can be sent in the
+	 * form the peer expects.
+	 * 
+	 * @param input
+	 *            The message.
+	 * @return true if the peer asked for frames.
+	 */
+	static boolean isFramed(String input) {
+		String[] split = input.split(" ");
+		for (int i = 2; i < split.length; i++) {
+			if (split[i].equals(FRAMED))
+				return true;
+		}
+		return false;
+	}
+
+	String getNickname() {
+		return nickname;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	boolean hasOption(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * @return The version of the protocol the client speaks, 1 if it did not
+	 *         say.
+	 */
+	int getVersion() {
+		try {
+			String version = options.get(VERSION);
+			return version == null ? 1 : Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Get the value of a name=value option.
+	 * 
+	 * @param name
+	 *            The name of the option.
+	 * @return The value, or null if the option was not given.
+	 */
+	String getOption(String name) {
+		return options.get(name);
+	}
+}
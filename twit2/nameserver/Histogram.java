@@ -0,0 +1,92 @@
+package twit2.nameserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Histogram counts values in buckets whose bounds are powers of two, which
+ * is precise enough to see latencies or sizes change by a factor of two at
+ * the cost of two additions per value. Like a {@link StripedCounter}, each
+ * thread records into a stripe of its own.
+ * 
+ * @author os75
+ */
+final class Histogram {
+	// Bucket 0 holds 0, bucket b the values from 2^(b-1) up to 2^b - 1.
+	private static final int BUCKETS = 64;
+	private final AtomicLongArray buckets;
+	private final StripedCounter sum;
+
+	Histogram() {
+		buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+		sum = new StripedCounter();
+	}
+
+	/**
+	 * Record a value.
+	 * 
+	 * @param value
+	 *            A value, at least 0. Larger values go in the last bucket.
+	 */
+	void record(long value) {
+		int bucket = Math.min(BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+		buckets.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucket);
+		sum.add(value);
+	}
+
+	/**
+	 * Take the counts of every bucket.
+	 * 
+	 * @return The counts, indexed by bucket.
+	 */
+	private long[] counts() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < buckets.length(); i++) {
+			counts[i % BUCKETS] += buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The number of values recorded.
+	 */
+	long getCount() {
+		long count = 0;
+		for (long bucketCount : counts()) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	/**
+	 * @return The mean of the values recorded, or 0 if there are none.
+	 */
+	double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * Estimate a percentile of the values recorded.
+	 * 
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The upper bound of the bucket the percentile falls in, or 0 if
+	 *         no value has been recorded.
+	 */
+	long getPercentile(double percentile) {
+		long[] counts = counts();
+		long count = 0;
+		for (long bucketCount : counts) {
+			count += bucketCount;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank && seen > 0)
+				return bucket == 0 ? 0 : (1L << bucket) - 1;
+		}
+		return 0;
+	}
+}
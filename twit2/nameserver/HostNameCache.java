@@ -0,0 +1,117 @@
+package twit2.nameserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The HostNameCache gives host names for addresses, for display only,
+ * without ever waiting for DNS. An address not in the cache is shown as is,
+ * while its name is looked up in the background for next time. Names are
+ * kept for a while, and so are failed lookups, so that a slow or missing
+ * resolver is asked as little as possible.
+ * 
+ * @author os75
+ */
+public class HostNameCache {
+	private static final int MAX_ENTRIES = 10000;
+	private static final int LOOKUP_THREADS = 2;
+	private long ttl;
+	private long negativeTtl;
+	private ConcurrentMap<InetAddress, Entry> entries;
+	private ExecutorService lookups;
+
+	/**
+	 * Create a new cache.
+	 * 
+	 * @param ttl
+	 *            The number of milliseconds to keep a name for.
+	 * @param negativeTtl
+	 *            The number of milliseconds to wait before looking up an
+	 *            address again after a lookup found no name.
+	 */
+	public HostNameCache(long ttl, long negativeTtl) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		entries = new ConcurrentHashMap<InetAddress, Entry>();
+		lookups = Executors.newFixedThreadPool(LOOKUP_THREADS,
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "host-name-lookup");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Get a name for an address to show to the user. Never blocks.
+	 * 
+	 * @param address
+	 *            An address.
+	 * @return The host name of the address if it is known, otherwise the
+	 *         address itself in textual form.
+	 */
+	public String lookup(InetAddress address) {
+		String numeric = address.getHostAddress();
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(address);
+		if (entry == null || entry.expires < now) {
+			Entry pending = new Entry(entry == null ? numeric : entry.name,
+					Long.MAX_VALUE);
+			boolean claimed = entry == null ? entries.putIfAbsent(address,
+					pending) == null : entries.replace(address, entry, pending);
+			if (claimed) {
+				if (entries.size() > MAX_ENTRIES)
+					entries.clear();
+				resolve(address);
+			}
+			return entry == null ? numeric : entry.name;
+		}
+		return entry.name;
+	}
+
+	/**
+	 * Look up the name of an address in the background.
+	 */
+	private void resolve(final InetAddress address) {
+		lookups.execute(new Runnable() {
+			public void run() {
+				String numeric = address.getHostAddress();
+				String name;
+				try {
+					// Looked up on a copy, so that the address given by the
+					// caller is never the one blocking.
+					name = InetAddress.getByAddress(address.getAddress())
+							.getHostName();
+				} catch (UnknownHostException e) {
+					name = numeric;
+				}
+				long expires = System.currentTimeMillis()
+						+ (name.equals(numeric) ? negativeTtl : ttl);
+				entries.put(address, new Entry(name, expires));
+			}
+		});
+	}
+
+	/**
+	 * Stop looking up names.
+	 */
+	public void shutdown() {
+		lookups.shutdownNow();
+	}
+
+	private static final class Entry {
+		private final String name;
+		private final long expires;
+
+		private Entry(String name, long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+}
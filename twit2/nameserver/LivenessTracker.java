@@ -0,0 +1,163 @@
+package twit2.nameserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import twit2.log.Log;
+
+/**
+ * The LivenessTracker closes the connections of peers which have gone silent,
+ * such as half-open connections whose peer vanished without the name server
+ * noticing. Peers send KEEPALIVE every few seconds, so a connection with
+ * nothing to read for longer than the timeout is taken to be dead.
+ * 
+ * Connections are kept in a hashed timing wheel: a ring of slots, each
+ * holding the connections due to be checked at one tick. Recording activity
+ * only sets a time stamp, and each tick only looks at the connections of one
+ * slot, moving those which have been active since to a later slot. A
+ * connection therefore costs a constant amount of work per timeout, however
+ * many there are, and no timer or thread of its own.
+ * 
+ * @author os75
+ */
+final class LivenessTracker implements Runnable {
+	private static final int WHEEL_SIZE = 64;
+	private final long timeout;
+	private final long tick;
+	// Lists of connections, linked through Entry.next; guarded by this.
+	private final Entry[] wheel;
+	// The next tick to be processed; guarded by this.
+	private long currentTick;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Create a new tracker and start checking connections.
+	 * 
+	 * @param timeout
+	 *            The number of milliseconds after which a silent connection is
+	 *            closed.
+	 */
+	LivenessTracker(long timeout) {
+		this.timeout = timeout;
+		// The wheel spans twice the timeout, so a connection is normally
+		// checked once per timeout.
+		tick = Math.max(1, timeout / (WHEEL_SIZE / 2));
+		wheel = new Entry[WHEEL_SIZE];
+		currentTick = System.currentTimeMillis() / tick;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "liveness-tracker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(this, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start tracking a connection, counting it as active now.
+	 * 
+	 * @param client
+	 *            The client of the connection.
+	 * @return The entry of the connection, on which activity is recorded.
+	 */
+	Entry track(Client client) {
+		Entry entry = new Entry(client);
+		schedule(entry);
+		return entry;
+	}
+
+	/**
+	 * Put an entry in the slot of the tick at which it times out.
+	 */
+	private synchronized void schedule(Entry entry) {
+		long due = (entry.lastActivity + timeout) / tick + 1;
+		if (due < currentTick)
+			due = currentTick;
+		int slot = (int) (due % WHEEL_SIZE);
+		entry.next = wheel[slot];
+		wheel[slot] = entry;
+	}
+
+	/**
+	 * Process the ticks which have passed, closing the connections which have
+	 * timed out.
+	 */
+	public void run() {
+		long now = System.currentTimeMillis();
+		long last = now / tick;
+		while (true) {
+			Entry entry;
+			synchronized (this) {
+				if (currentTick > last)
+					return;
+				int slot = (int) (currentTick % WHEEL_SIZE);
+				entry = wheel[slot];
+				wheel[slot] = null;
+				currentTick++;
+			}
+			while (entry != null) {
+				Entry next = entry.next;
+				entry.next = null;
+				if (entry.cancelled) {
+					// Dropped.
+				} else if (now - entry.lastActivity >= timeout) {
+					expire(entry);
+				} else {
+					schedule(entry);
+				}
+				entry = next;
+			}
+		}
+	}
+
+	private void expire(Entry entry) {
+		entry.cancelled = true;
+		Log.info("No activity from {} in {} ms, closing the connection.",
+				entry.client.getNickname(), timeout);
+		try {
+			entry.client.close();
+		} catch (RuntimeException e) {
+			Log.error("A silent connection could not be closed", e);
+		}
+	}
+
+	/**
+	 * Stop checking connections.
+	 */
+	void shutdown() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * The entry of one connection in the wheel.
+	 */
+	static final class Entry {
+		private final Client client;
+		private volatile long lastActivity;
+		private volatile boolean cancelled;
+		private Entry next;
+
+		private Entry(Client client) {
+			this.client = client;
+			lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Record that something was received on the connection.
+		 */
+		void touch() {
+			lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Stop tracking the connection, which has been closed. The entry is
+		 * dropped from the wheel when its slot next comes round.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+}
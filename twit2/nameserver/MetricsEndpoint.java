@@ -0,0 +1,70 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import twit2.log.Log;
+
+/**
+ * The MetricsEndpoint serves the {@link ServerMetrics} of a name server over
+ * HTTP, at /metrics, so that they can be scraped. It only listens on the
+ * loopback address, as the metrics are not meant for the peers.
+ * 
+ * @author os75
+ */
+public class MetricsEndpoint implements HttpHandler {
+	private HttpServer http;
+	private ServerMetrics metrics;
+
+	/**
+	 * Start serving the metrics.
+	 * 
+	 * @param metrics
+	 *            The metrics.
+	 * @param port
+	 *            The port number to listen on.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+		this.metrics = metrics;
+		http = HttpServer.create(new InetSocketAddress(
+				InetAddress.getByName(null), port), 0);
+		http.createContext("/metrics", this);
+		// Requests are answered on the thread of the server itself.
+		http.setExecutor(null);
+		http.start();
+		Log.info("Metrics served at http://localhost:{}/metrics", port);
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = metrics.toString().getBytes();
+			exchange.getResponseHeaders().set("Content-Type",
+					"text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Stop serving the metrics.
+	 */
+	public void shutdown() {
+		http.stop(0);
+	}
+}
@@ -1,13 +1,32 @@
 package twit2.nameserver;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import twit2.io.BufferPool;
+import twit2.io.ByteWriter;
+import twit2.io.Compression;
+import twit2.io.FlushPolicy;
+import twit2.io.Frame;
+import twit2.io.PresenceCodec;
+import twit2.log.Log;
 
 /**
  * The name server provides peer-to-peer clients with the nickname, hostname and
@@ -17,14 +36,86 @@ import java.util.Vector;
  * @author os75
  */
 public class NameServer extends Thread {
+	static final int MAX_NAME_LENGTH = 40;
+	static final int MAX_PORT_LENGTH = 5;
+	static final int MAX_PORT_NAME_LENGTH = MAX_NAME_LENGTH + 1
+			+ MAX_PORT_LENGTH;
+	static final int MAX_MESSAGE_LENGTH = 140;
+	// Leaves room for options after the nickname and port number.
+	static final int MAX_HANDSHAKE_LENGTH = 140;
+	static final int OUTBOUND_CAPACITY = 1024;
+	static final int DEFAULT_HISTORY = 4096;
+	// Room for a frame header and the longest message or handshake.
+	static final int READ_BUFFER_SIZE = 256;
+	private static final int POOLED_BUFFERS = 1024;
+	// A snapshot of the user list this many changes old is still sent to new
+	// peers, followed by the changes since, instead of taking a new one.
+	private static final int MAX_ROSTER_LAG = 256;
+	// Snapshots taken without the lock for a new peer before one is taken
+	// holding it, when the changes outrun the history.
+	private static final int MAX_ROSTER_TRIES = 3;
+	static final String TOO_MANY_CONNECTIONS = "Too many connections, please try again later.";
 	private static final int SO_TIMEOUT = 15000;
+	private static final Log.Sampler SENDING = new Log.Sampler();
 	private ServerSocket socket;
-	private boolean running;
-	private HashMap<String, InetSocketAddress> table;
-	private Vector<ClientHandler> clients;
+	private volatile boolean running;
+	private PeerRegistry registry;
+	private ConcurrentMap<Client, Subscriber> clients;
+	private ExecutorService executor;
+	// Changes to the registry share the read lock, so they can happen at the
+	// same time; only taking a consistent user list needs the write lock.
+	private ReadWriteLock membership;
+	private AtomicLong sequence;
+	// Sequence numbers are only valid within one run of the server.
+	private long epoch;
+	// The sequence number the registry was recovered at. Nickname IDs are
+	// given anew in each run, so a peer which last synchronised before then
+	// may hold IDs which mean nothing now.
+	private long recoveredAt;
+	private volatile PresenceLog history;
+	// Sequence numbers of the updates not yet queued for every peer, guarded
+	// by itself.
+	private TreeSet<Long> inFlight;
+	private volatile PresenceBatcher batcher;
+	// Rebuilt holding rosterLock, and only once the registry has changed.
+	private volatile RosterSnapshot roster;
+	private Object rosterLock;
+	private HostNameCache hostNames;
+	private volatile Cluster cluster;
+	private volatile RegistryJournal journal;
+	// Peers recovered from the journal which have not yet re-attached.
+	private ConcurrentMap<String, Registration> restored;
+	private ScheduledExecutorService maintenance;
+	private volatile LivenessTracker liveness;
+	private volatile AdmissionControl admission;
+	private ServerMetrics metrics;
+	private BufferPool buffers;
+	private volatile FlushPolicy flushPolicy;
+	private ScheduledExecutorService flushTimer;
+
+	/**
+	 * Create the shared state of a name server without binding a socket.
+	 * Used by engines which accept connections in their own way.
+	 */
+	protected NameServer() {
+		registry = new PeerRegistry();
+		clients = new ConcurrentHashMap<Client, Subscriber>();
+		membership = new ReentrantReadWriteLock();
+		sequence = new AtomicLong();
+		epoch = System.currentTimeMillis();
+		history = new PresenceLog(DEFAULT_HISTORY);
+		inFlight = new TreeSet<Long>();
+		restored = new ConcurrentHashMap<String, Registration>();
+		roster = RosterSnapshot.empty();
+		rosterLock = new Object();
+		metrics = new ServerMetrics(this);
+		buffers = new BufferPool(READ_BUFFER_SIZE, POOLED_BUFFERS);
+		flushPolicy = FlushPolicy.IMMEDIATE;
+	}
 
 	/**
-	 * Create a new name server with operating on a given port number.
+	 * Create a new name server with operating on a given port number, running
+	 * each client handler on a platform thread.
 	 * 
 	 * @param port
 	 *            A port number.
@@ -32,33 +123,69 @@ public class NameServer extends Thread {
 	 *             If an error occurs while setting up the server.
 	 */
 	public NameServer(int port) throws IOException {
-		System.out.println("Setting up server...");
-		table = new HashMap<String, InetSocketAddress>();
-		clients = new Vector<ClientHandler>();
+		this(port, HandlerExecutors.create(HandlerExecutors.PLATFORM));
+	}
+
+	/**
+	 * Create a new name server operating on a given port number.
+	 * 
+	 * @param port
+	 *            A port number.
+	 * @param executor
+	 *            The executor which runs the client handlers.
+	 * @throws IOException
+	 *             If an error occurs while setting up the server.
+	 */
+	public NameServer(int port, ExecutorService executor) throws IOException {
+		this();
+		this.executor = executor;
+		Log.info("Setting up server...");
 		socket = new ServerSocket(port);
 		socket.setSoTimeout(SO_TIMEOUT);
-		System.out.println("Name server set up at port " + port);
+		Log.info("Name server set up at port {}", port);
 	}
 
 	/**
 	 * Accepts new peers (clients).
 	 */
 	public void run() {
-		running = true;
+		setRunning();
 		while (running) {
 			try {
 				Socket client = socket.accept();
-				System.out.println("Accepted connection from "
-						+ client.getInetAddress().getHostName());
-				ClientHandler handler = new ClientHandler(client, this);
-				handler.start();
-				clients.add(handler);
+				if (!admit(client.getInetAddress())) {
+					reject(client);
+					continue;
+				}
+				if (Log.isEnabled(Log.INFO))
+					Log.info("Accepted connection from {}",
+							describe(client.getInetAddress()));
+				executor.execute(new ClientHandler(client, this));
 			} catch (SocketTimeoutException e) {
 				// ignore timeouts
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.error("IOException: a connection could not be accepted", e);
 			}
 		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Turn a connection away, telling the peer why.
+	 * 
+	 * @param client
+	 *            A connection which was not admitted.
+	 */
+	private void reject(Socket client) {
+		try {
+			ByteWriter.write(client.getOutputStream(), "ERROR "
+					+ TOO_MANY_CONNECTIONS);
+		} catch (IOException e) {
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+		}
 	}
 
 	/**
@@ -66,94 +193,1020 @@ public class NameServer extends Thread {
 	 */
 	public void kill() {
 		running = false;
+		if (batcher != null)
+			batcher.shutdown();
+		if (cluster != null)
+			cluster.shutdown();
+		if (maintenance != null)
+			maintenance.shutdownNow();
+		if (liveness != null)
+			liveness.shutdown();
+		synchronized (this) {
+			if (flushTimer != null)
+				flushTimer.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tells whether the name server is accepting connections.
+	 * 
+	 * @return true until the server has been killed.
+	 */
+	protected boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Mark the name server as accepting connections. Engines overriding
+	 * {@link #run()} call this before their accept loop.
+	 */
+	protected void setRunning() {
+		running = true;
+	}
+
+	/**
+	 * Get the executor on which the outbound queues of the blocking engine are
+	 * drained.
+	 * 
+	 * @return An executor.
+	 */
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Get the pool of buffers connections read their messages into.
+	 * 
+	 * @return A pool of buffers of {@link #READ_BUFFER_SIZE} bytes.
+	 */
+	BufferPool getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * Choose when the non-blocking engine writes what has been queued for a
+	 * peer. Waiting for the end of a broadcast, or a few microseconds, lets
+	 * the updates queued meanwhile go out in one write. Only affects peers
+	 * which connect afterwards.
+	 * 
+	 * @param policy
+	 *            The flush policy, {@link FlushPolicy#IMMEDIATE} by default.
+	 */
+	public synchronized void setFlushPolicy(FlushPolicy policy) {
+		if (policy.isDelayed() && flushTimer == null) {
+			flushTimer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "flush-timer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		flushPolicy = policy;
+	}
+
+	FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Get the timer on which delayed flushes are run.
+	 * 
+	 * @return The timer, or null unless the flush policy is delayed.
+	 */
+	synchronized ScheduledExecutorService getFlushTimer() {
+		return flushTimer;
+	}
+
+	/**
+	 * Remove a client from the list of clients receiving presence updates.
+	 * 
+	 * @param client
+	 *            A client whose connection has been closed.
+	 */
+	void removeClient(Client client) {
+		clients.remove(client);
+	}
+
+	/**
+	 * Show host names instead of addresses in the log, as found by a cache
+	 * which looks them up in the background.
+	 * 
+	 * @param hostNames
+	 *            A cache, or null to only show addresses.
+	 */
+	public void setHostNameCache(HostNameCache hostNames) {
+		this.hostNames = hostNames;
+	}
+
+	/**
+	 * Describe the address of a peer for the log, without waiting for DNS.
+	 * 
+	 * @param address
+	 *            An address.
+	 * @return The host name, if known, otherwise the address.
+	 */
+	protected String describe(InetAddress address) {
+		HostNameCache hostNames = this.hostNames;
+		if (hostNames == null)
+			return address.getHostAddress();
+		return hostNames.lookup(address);
+	}
+
+	/**
+	 * Close the connections of peers which send nothing, not even KEEPALIVE,
+	 * for a while.
+	 * 
+	 * @param timeout
+	 *            The number of milliseconds after which a silent connection is
+	 *            closed, or 0 to keep connections open until they fail.
+	 */
+	public void setIdleTimeout(long timeout) {
+		if (liveness != null)
+			liveness.shutdown();
+		if (timeout > 0)
+			liveness = new LivenessTracker(timeout);
+		else
+			liveness = null;
+	}
+
+	/**
+	 * Limit the connections and registrations the name server accepts. Must
+	 * be called before the server is started.
+	 * 
+	 * @param admission
+	 *            The admission control, or null to accept everything.
+	 */
+	public void setAdmissionControl(AdmissionControl admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Decide whether to accept a new connection, before doing any work for
+	 * it. A connection which is accepted must be followed by a call to
+	 * {@link #connectionClosed()} once it is closed.
+	 * 
+	 * @param address
+	 *            The address the connection comes from.
+	 * @return true if the connection is accepted.
+	 */
+	boolean admit(InetAddress address) {
+		AdmissionControl admission = this.admission;
+		if (admission != null && !admission.admit(address))
+			return false;
+		metrics.connectionAccepted();
+		return true;
+	}
+
+	/**
+	 * @return The admission control, or null if everything is accepted.
+	 */
+	AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+
+	/**
+	 * Get the metrics of the name server, which its clients also record into.
+	 * 
+	 * @return The metrics.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The number of peers connected to this name server.
+	 */
+	int getConnectedPeers() {
+		return clients.size();
+	}
+
+	/**
+	 * @return The number of peers in the user list.
+	 */
+	int getRegisteredPeers() {
+		return registry.size();
+	}
+
+	/**
+	 * @return The number of presence updates waiting for the next batch.
+	 */
+	int getPendingUpdates() {
+		PresenceBatcher batcher = this.batcher;
+		return batcher == null ? 0 : batcher.size();
+	}
+
+	/**
+	 * Count an accepted connection as closed. Called once per connection.
+	 */
+	void connectionClosed() {
+		AdmissionControl admission = this.admission;
+		if (admission != null)
+			admission.release();
+	}
+
+	/**
+	 * Start tracking the activity of a newly accepted connection.
+	 * 
+	 * @param client
+	 *            The client of the connection.
+	 * @return The entry on which the client records its activity, or null if
+	 *         idle connections are not closed.
+	 */
+	LivenessTracker.Entry track(Client client) {
+		LivenessTracker liveness = this.liveness;
+		if (liveness == null)
+			return null;
+		return liveness.track(client);
+	}
+
+	/**
+	 * Collect presence updates over a window before sending them, instead of
+	 * sending each one straight away. Clients which understand batches get
+	 * one message per window.
+	 * 
+	 * @param window
+	 *            The number of milliseconds to collect updates for, or 0 to
+	 *            send each update straight away.
+	 * @param maxBatch
+	 *            The number of updates at which a batch is sent before the
+	 *            window has passed.
+	 */
+	public void setPresenceBatching(long window, int maxBatch) {
+		if (batcher != null)
+			batcher.shutdown();
+		if (window > 0)
+			batcher = new PresenceBatcher(this, window, maxBatch);
+		else
+			batcher = null;
+	}
+
+	/**
+	 * Set the number of presence updates kept for peers which reconnect.
+	 * Updates kept so far are dropped, so this should be called before the
+	 * server is started.
+	 * 
+	 * @param capacity
+	 *            The number of updates to keep.
+	 */
+	public void setPresenceHistory(int capacity) {
+		history = new PresenceLog(capacity);
+	}
+
+	/**
+	 * Share the user list with the other name servers of a cluster. Nicknames
+	 * are only registered once the node of the cluster owning them agrees.
+	 * 
+	 * @param cluster
+	 *            The cluster node of this name server.
+	 */
+	public void setCluster(Cluster cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @return The cluster node of this name server, or null if it is not
+	 *         part of a cluster.
+	 */
+	Cluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Recover the registry kept in a journal, and keep it there from now on.
+	 * The recovered peers stay in the user list for a grace period, during
+	 * which a peer connecting from the same address with the same nickname
+	 * takes over its entry. Must be called before the server is started.
+	 * 
+	 * @param journal
+	 *            The journal.
+	 * @param grace
+	 *            The number of milliseconds recovered peers have to
+	 *            re-attach.
+	 * @throws IOException
+	 *             If the journal cannot be read.
+	 */
+	public void recover(RegistryJournal journal, long grace)
+			throws IOException {
+		List<Registration> registrations = journal.recover(epoch);
+		epoch = journal.getEpoch();
+		sequence.set(journal.getSequence());
+		recoveredAt = journal.getSequence();
+		for (Registration registration : registrations) {
+			registry.claim(registration);
+			restored.put(registration.getNickname(), registration);
+		}
+		// The history does not hold the recovered peers.
+		roster = RosterSnapshot.build(sequence.get(), registrations);
+		this.journal = journal;
+		Log.info("Recovered {} peers from the registry journal",
+				registrations.size());
+		maintenance = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "registry-journal");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		maintenance.schedule(new Runnable() {
+			public void run() {
+				expireRestored();
+			}
+		}, grace, TimeUnit.MILLISECONDS);
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (NameServer.this.journal.needsSnapshot())
+					snapshotJournal();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Remove the recovered peers which did not re-attach in time.
+	 */
+	private void expireRestored() {
+		int expired = 0;
+		for (Registration registration : restored.values()) {
+			if (restored.remove(registration.getNickname(), registration)) {
+				removeEntry(registration);
+				expired++;
+			}
+		}
+		if (expired > 0)
+			Log.info("Removed {} recovered peers which did not re-attach",
+					expired);
+	}
+
+	/**
+	 * Write the registry to a snapshot, so that the journal only needs the
+	 * changes from now on.
+	 */
+	private void snapshotJournal() {
+		long version;
+		long generation;
+		membership.writeLock().lock();
+		try {
+			version = sequence.get();
+			generation = journal.rotate();
+		} catch (IOException e) {
+			Log.error("IOException: the registry journal could not start a "
+					+ "new log", e);
+			return;
+		} finally {
+			membership.writeLock().unlock();
+		}
+		// Changes the snapshot holds beyond its version are also in the new
+		// log, and are replayed over it on recovery.
+		RosterSnapshot users = recentRoster(version);
+		try {
+			journal.writeSnapshot(generation, users.getVersion(),
+					users.getBytes());
+		} catch (IOException e) {
+			Log.error("IOException: the registry snapshot could not be "
+					+ "written", e);
+		}
+	}
+
+	/**
+	 * Register a peer from the initialization message it sent, which is on
+	 * the form "nickname port [option...]".
+	 * 
+	 * @param client
+	 *            The client the message was received from.
+	 * @param input
+	 *            The initialization message.
+	 * @param address
+	 *            The address the peer connected from.
+	 * @return The registration of the peer.
+	 * @throws NameServerException
+	 *             If the message is malformed or the nickname is taken.
+	 * @throws NumberFormatException
+	 *             If the port number is not a number.
+	 */
+	Registration register(Client client, String input, InetAddress address)
+			throws NameServerException {
+		AdmissionControl admission = this.admission;
+		if (admission != null && !admission.allowRegistration(address)) {
+			throw new NameServerException(
+					"Too many registrations, please try again later.");
+		}
+		Handshake handshake = Handshake.parse(input);
+		Cluster cluster = this.cluster;
+		if (cluster != null && !cluster.claim(handshake.getNickname())) {
+			metrics.nicknameRejected();
+			throw new NameServerException(
+					"Nickname already taken, please try a different one.");
+		}
+		Registration registration = addEntry(client, handshake, address);
+		if (registration == null) {
+			if (cluster != null)
+				cluster.unclaim(handshake.getNickname());
+			metrics.nicknameRejected();
+			throw new NameServerException(
+					"Nickname already taken, please try a different one.");
+		}
+		if (cluster != null)
+			cluster.added(registration);
+		metrics.registered();
+		return registration;
 	}
 
 	/**
-	 * Add entry to list of peers connected.
+	 * Add entry to list of peers connected. The new peer is sent the list of
+	 * connected peers, and from then on receives presence updates. A peer
+	 * which asked for sequenced updates, and gave the sequence number it
+	 * last saw, is only sent the updates since then if they are all still
+	 * kept. A framed peer speaking version 2 of the protocol gets the list
+	 * and the updates in binary, and everybody else in text. A framed peer
+	 * which asked for them gets a big list in chunks, or deflated, or both.
 	 * 
+	 * @param client
+	 *            The client of the new peer.
 	 * @param nickname
 	 *            A nickname.
-	 * @param hostname
-	 *            A hostname.
+	 * @param address
+	 *            The address the peer connected from.
 	 * @param port
 	 *            A port number.
-	 * @return true if the nickname does not already exist, false otherwise.
+	 * @return The registration of the peer if the nickname does not already
+	 *         exist, null otherwise.
 	 */
-	public boolean addEntry(String nickname, String hostname, int port) {
-		InetSocketAddress address = new InetSocketAddress(hostname, port);
-		if (table.containsKey(nickname)) {
-			return false;
+	public Registration addEntry(Client client, String nickname,
+			InetAddress address, int port) {
+		return addEntry(client, new Handshake(nickname, port), address);
+	}
+
+	private Registration addEntry(Client client, Handshake handshake,
+			InetAddress address) {
+		Registration registration = new Registration(
+				handshake.getNickname(), address, handshake.getPort());
+		PresenceEvent online = claim(registration);
+		if (online == null)
+			online = reattach(registration);
+		if (online == null)
+			return null;
+		boolean sequenced = handshake.hasOption(Handshake.SEQUENCED);
+		boolean framed = handshake.hasOption(Handshake.FRAMED);
+		boolean binary = framed
+				&& handshake.getVersion() >= PresenceCodec.VERSION;
+		boolean deflate = framed && handshake.hasOption(Handshake.DEFLATE);
+		boolean chunked = framed && handshake.hasOption(Handshake.CHUNKED);
+		boolean batches = sequenced || binary
+				|| handshake.hasOption(Handshake.BATCH);
+		// The snapshot is taken without the lock, and may be a little old;
+		// the peer is sent the changes since with it.
+		RosterSnapshot users = recentRoster(sequence.get() - MAX_ROSTER_LAG);
+		long version;
+		List<PresenceEvent> changes = null;
+		List<PresenceEvent> missed = null;
+		for (int tries = 1;; tries++) {
+			membership.writeLock().lock();
+			try {
+				// No other change can happen while the peer subscribes, so
+				// it needs exactly the updates after this version.
+				version = sequence.get();
+				if (sequenced)
+					changes = changesSince(
+							handshake.getOption(Handshake.SEQUENCED),
+							version, binary);
+				if (changes == null) {
+					missed = history.since(users.getVersion(), version);
+					if (missed == null && tries == MAX_ROSTER_TRIES) {
+						// Too far behind for the history, every time.
+						users = recentRoster(version);
+						missed = Collections.emptyList();
+					}
+				}
+				if (changes != null || missed != null) {
+					clients.put(client, new Subscriber(client, version,
+							batches, sequenced, binary));
+					break;
+				}
+			} finally {
+				membership.writeLock().unlock();
+			}
+			users = recentRoster(version);
+		}
+		// A snapshot is encoded once for all the peers joining at the same
+		// version, the updates since a reconnection for one peer; there are
+		// never more of them than the history keeps, so they are not cut.
+		Frame[] userList;
+		if (changes == null) {
+			userList = users.getFrames(binary, sequenced, epoch, chunked,
+					deflate);
+			if (!missed.isEmpty())
+				userList = append(userList, encodeMissed(missed, version,
+						binary, sequenced, batches));
 		} else {
-			table.put(nickname, address);
-			sendToAllExceptMostRecent("ONL " + nickname + ";" + hostname + ";"
-					+ port);
-			return true;
+			Frame frame;
+			if (binary)
+				frame = new Frame(Frame.ROSTER, encodeBinaryChanges(version,
+						changes));
+			else
+				frame = new Frame(Frame.USER_LIST, encodeChanges(version,
+						changes));
+			if (deflate)
+				frame = Compression.deflate(frame);
+			userList = new Frame[] { frame };
 		}
+		try {
+			client.sendUserList(userList);
+		} catch (IOException e) {
+			Log.warn("IOException: the user list could not be sent to {}",
+					handshake.getNickname());
+		}
+		publish(online);
+		return registration;
+	}
+
+	/**
+	 * Add a peer connected to another name server of the cluster to the list
+	 * of peers.
+	 * 
+	 * @param registration
+	 *            The registration of the peer.
+	 * @return true if the nickname was not already registered.
+	 */
+	boolean addRemoteEntry(Registration registration) {
+		PresenceEvent online = claim(registration);
+		if (online == null)
+			return false;
+		publish(online);
+		return true;
 	}
 
 	/**
-	 * Remove the peer with a given nickname from the list of connected peers.
+	 * Claim the nickname of a registration.
 	 * 
-	 * @param name
-	 *            A nickname of a peer.
+	 * @param registration
+	 *            A registration.
+	 * @return The ONL event for the peer, or null if the nickname is taken.
 	 */
-	public void removeEntry(String name) {
-		if (name != null && table.containsKey(name)) {
-			table.remove(name);
-			sendToAll("OFL " + name);
+	private PresenceEvent claim(Registration registration) {
+		membership.readLock().lock();
+		try {
+			if (!registry.claim(registration)) {
+				return null;
+			}
+			return record(true, registration);
+		} finally {
+			membership.readLock().unlock();
 		}
 	}
 
 	/**
-	 * Send a message to all peers connected to the name server.
+	 * Let a peer take over the entry recovered for its nickname from the
+	 * journal, if it connects from the same address.
 	 * 
-	 * @param message
-	 *            A message.
+	 * @param registration
+	 *            The new registration of the peer.
+	 * @return The ONL event for the peer, or null if there is no such entry.
 	 */
-	private void sendToAll(String message) {
-		System.out.println("Sending to all: " + message);
-		for (int i = 0; i < clients.size(); i++) {
-			ClientHandler client = clients.get(i);
-			if (client.isClosed()) {
-				clients.remove(i);
-				i--;
-			} else {
-				sendMessage(message, client);
+	private PresenceEvent reattach(Registration registration) {
+		Registration previous = restored.get(registration.getNickname());
+		if (previous == null
+				|| !previous.getAddress().equals(registration.getAddress()))
+			return null;
+		membership.readLock().lock();
+		try {
+			if (!restored.remove(previous.getNickname(), previous)
+					|| !registry.replace(previous, registration))
+				return null;
+			return record(true, registration);
+		} finally {
+			membership.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the registration of a nickname.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @return The registration, or null if the nickname is not registered.
+	 */
+	Registration getRegistration(String nickname) {
+		return registry.get(nickname);
+	}
+
+	/**
+	 * Remove a peer from the list of connected peers. Nothing is removed if
+	 * the nickname has since been claimed by another peer.
+	 * 
+	 * @param registration
+	 *            The registration of a peer, or null if it never registered.
+	 */
+	public void removeEntry(Registration registration) {
+		if (registration == null)
+			return;
+		PresenceEvent offline;
+		membership.readLock().lock();
+		try {
+			if (!registry.release(registration)) {
+				return;
 			}
+			offline = record(false, registration);
+		} finally {
+			membership.readLock().unlock();
 		}
+		publish(offline);
+		Cluster cluster = this.cluster;
+		if (cluster != null)
+			cluster.removed(registration);
 	}
 
 	/**
-	 * Send a message to all peers connected to the name server, with one
-	 * exception.
+	 * Remove a peer connected here from the list of connected peers, and
+	 * close its connection, once its nickname went to a peer connected to
+	 * another name server of the cluster.
 	 * 
-	 * @param message
-	 *            A message.
-	 * @param exception
-	 *            The name of the user who this message should not be sent to.
-	 */
-	private void sendToAllExceptMostRecent(String message) {
-		System.out.println("Sending to all: " + message);
-		for (int i = 0; i < clients.size() - 1; i++) {
-			ClientHandler client = clients.get(i);
+	 * @param registration
+	 *            The registration of the peer.
+	 */
+	void disconnect(Registration registration) {
+		Client peer = null;
+		for (Client client : clients.keySet()) {
+			if (client.getNickname().equals(registration.getNickname()))
+				peer = client;
+		}
+		removeEntry(registration);
+		if (peer != null)
+			peer.close();
+	}
+
+	/**
+	 * Give the next sequence number to a change just made to the registry,
+	 * and keep the update in the history and the journal. Must hold the read
+	 * lock.
+	 * 
+	 * @param online
+	 *            true if the peer came online, false if it went offline.
+	 * @param registration
+	 *            The registration of the peer.
+	 * @return The presence update.
+	 */
+	private PresenceEvent record(boolean online, Registration registration) {
+		long sequence;
+		synchronized (inFlight) {
+			sequence = this.sequence.incrementAndGet();
+			inFlight.add(sequence);
+			// Appended in the order of the sequence numbers.
+			RegistryJournal journal = this.journal;
+			if (journal != null)
+				journal.append(sequence, online, registration);
+		}
+		PresenceEvent event = online ? PresenceEvent.online(sequence,
+				registration) : PresenceEvent.offline(sequence, registration);
+		history.add(event);
+		return event;
+	}
+
+	/**
+	 * Get the updates a reconnecting peer has missed. Must hold the write
+	 * lock, so that every update up to the version has been kept.
+	 * 
+	 * @param token
+	 *            The last "epoch:sequence" the peer saw, or an empty string
+	 *            if it has not seen any.
+	 * @param version
+	 *            The version of the user list the peer would otherwise be
+	 *            sent.
+	 * @param binary
+	 *            Whether the peer receives presence in binary, and so names
+	 *            peers by their nickname IDs.
+	 * @return The updates, or null if the peer must be sent the whole list.
+	 */
+	private List<PresenceEvent> changesSince(String token, long version,
+			boolean binary) {
+		int colon = token.indexOf(':');
+		if (colon == -1)
+			return null;
+		try {
+			if (Long.parseLong(token.substring(0, colon)) != epoch)
+				return null;
+			long lastSeen = Long.parseLong(token.substring(colon + 1));
+			if (binary && lastSeen <= recoveredAt)
+				return null;
+			return history.since(lastSeen, version);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode the updates made since a snapshot of the user list was taken,
+	 * to be sent after it in the messages a peer receives updates in.
+	 * 
+	 * @param missed
+	 *            The updates.
+	 * @param version
+	 *            The sequence number of the last update.
+	 * @param binary
+	 *            Whether the peer receives presence in binary.
+	 * @param sequenced
+	 *            Whether the peer asked for sequenced updates.
+	 * @param batches
+	 *            Whether the peer takes several updates in one message.
+	 * @return The messages.
+	 */
+	private Frame[] encodeMissed(List<PresenceEvent> missed, long version,
+			boolean binary, boolean sequenced, boolean batches) {
+		if (binary)
+			return new Frame[] { new Frame(Frame.PRESENCE, encodeRecords(
+					null, missed, sequenced ? PresenceCodec.sequence(epoch,
+							version) : null)) };
+		if (batches)
+			return new Frame[] { new Frame(Frame.MESSAGE, encodeBatch(missed,
+					sequenced ? "SEQ " + epoch + ":" + version : null)) };
+		Frame[] messages = new Frame[missed.size()];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = new Frame(Frame.MESSAGE, missed.get(i).getBytes());
+		}
+		return messages;
+	}
+
+	private static Frame[] append(Frame[] first, Frame[] second) {
+		Frame[] frames = new Frame[first.length + second.length];
+		System.arraycopy(first, 0, frames, 0, first.length);
+		System.arraycopy(second, 0, frames, first.length, second.length);
+		return frames;
+	}
+
+	/**
+	 * Encode the updates a reconnecting peer has missed, on the form
+	 * "DELTA epoch:version length", followed by length bytes of updates, one
+	 * per line.
+	 * 
+	 * @param version
+	 *            The sequence number of the last update.
+	 * @param changes
+	 *            The updates.
+	 * @return The message.
+	 */
+	private byte[] encodeChanges(long version, List<PresenceEvent> changes) {
+		byte[] body = encodeBatch(changes, null);
+		byte[] header = ("DELTA " + epoch + ":" + version + " " + body.length
+				+ "\n").getBytes();
+		byte[] message = new byte[header.length + body.length];
+		System.arraycopy(header, 0, message, 0, header.length);
+		System.arraycopy(body, 0, message, header.length, body.length);
+		return message;
+	}
+
+	/**
+	 * Encode the updates a reconnecting peer has missed as a binary roster.
+	 * 
+	 * @param version
+	 *            The sequence number of the last update.
+	 * @param changes
+	 *            The updates.
+	 * @return The message.
+	 * @see PresenceCodec
+	 */
+	private byte[] encodeBinaryChanges(long version,
+			List<PresenceEvent> changes) {
+		return encodeRecords(PresenceCodec.rosterHeader(
+				PresenceCodec.SEQUENCED | PresenceCodec.DELTA, epoch, version),
+				changes, null);
+	}
+
+	/**
+	 * Send a presence update to the connected peers, either straight away or
+	 * as part of the next batch.
+	 * 
+	 * @param event
+	 *            A presence update.
+	 */
+	private void publish(PresenceEvent event) {
+		PresenceBatcher batcher = this.batcher;
+		if (batcher != null)
+			batcher.add(event);
+		else
+			deliver(Collections.singletonList(event));
+	}
+
+	/**
+	 * Send presence updates to all peers connected to the name server which
+	 * have not already been told about them. Peers which understand batches
+	 * get a single message with one update per line; the others get one
+	 * message per update. Peers which asked for sequenced updates also get a
+	 * "SEQ epoch:sequence" line, up to which they are known to have been
+	 * sent every update. Peers which receive presence in binary get the same,
+	 * as records in a {@link Frame#PRESENCE} frame. The messages are only
+	 * queued for each peer, so this returns without waiting for any of them.
+	 * 
+	 * @param events
+	 *            The presence updates, in the order they should be applied.
+	 */
+	void deliver(List<PresenceEvent> events) {
+		// Peers which joined before all of the updates get the same message.
+		long common = Long.MAX_VALUE;
+		List<PresenceEvent> commonEvents = new ArrayList<PresenceEvent>(
+				events.size());
+		for (PresenceEvent event : events) {
+			if (Log.isEnabled(Log.DEBUG) && SENDING.sample())
+				Log.debug("Sending to all: {}", event.getMessage());
+			if (event.getSince() > 0) {
+				common = Math.min(common, event.getSince());
+			} else {
+				common = Math.min(common, event.getSequence());
+				commonEvents.add(event);
+			}
+		}
+		byte[] commonBatch = null;
+		byte[] commonSequenced = null;
+		byte[] commonRecords = null;
+		byte[] commonSequencedRecords = null;
+		String sequenceLine = null;
+		byte[] sequenceRecord = null;
+		long start = System.nanoTime();
+		int peers = 0;
+		for (Subscriber subscriber : clients.values()) {
+			Client client = subscriber.getClient();
 			if (client.isClosed()) {
-				clients.remove(i);
-				i--;
+				clients.remove(client);
+				continue;
+			}
+			List<PresenceEvent> needed = commonEvents;
+			if (subscriber.getJoinedAt() >= common) {
+				needed = new ArrayList<PresenceEvent>();
+				for (PresenceEvent event : events) {
+					if (subscriber.needs(event))
+						needed.add(event);
+				}
+			}
+			if (needed.isEmpty())
+				continue;
+			peers++;
+			if (subscriber.isBinary()) {
+				byte[] last = null;
+				if (subscriber.isSequenced()) {
+					if (sequenceRecord == null)
+						sequenceRecord = PresenceCodec.sequence(epoch,
+								watermark(events));
+					last = sequenceRecord;
+				}
+				byte[] records;
+				if (needed != commonEvents) {
+					records = encodeRecords(null, needed, last);
+				} else if (last != null) {
+					if (commonSequencedRecords == null)
+						commonSequencedRecords = encodeRecords(null,
+								commonEvents, last);
+					records = commonSequencedRecords;
+				} else {
+					if (commonRecords == null)
+						commonRecords = encodeRecords(null, commonEvents,
+								null);
+					records = commonRecords;
+				}
+				sendMessage(Frame.PRESENCE, records, client);
+			} else if (!subscriber.batches()) {
+				for (PresenceEvent event : needed) {
+					sendMessage(event.getBytes(), client);
+				}
+			} else if (subscriber.isSequenced()) {
+				if (sequenceLine == null)
+					sequenceLine = "SEQ " + epoch + ":" + watermark(events);
+				if (needed != commonEvents) {
+					sendMessage(encodeBatch(needed, sequenceLine), client);
+				} else {
+					if (commonSequenced == null)
+						commonSequenced = encodeBatch(commonEvents,
+								sequenceLine);
+					sendMessage(commonSequenced, client);
+				}
+			} else if (needed == commonEvents) {
+				if (commonBatch == null)
+					commonBatch = encodeBatch(commonEvents, null);
+				sendMessage(commonBatch, client);
 			} else {
-				sendMessage(message, client);
+				sendMessage(encodeBatch(needed, null), client);
+			}
+		}
+		if (flushPolicy.isEndOfBatch()) {
+			for (Subscriber subscriber : clients.values()) {
+				subscriber.getClient().flush();
+			}
+		}
+		metrics.fannedOut(peers, System.nanoTime() - start);
+		synchronized (inFlight) {
+			for (PresenceEvent event : events) {
+				inFlight.remove(event.getSequence());
+				// The ONL event cancelled out by this one is never sent.
+				if (event.getSince() > 0)
+					inFlight.remove(event.getSince());
 			}
 		}
 	}
 
-	private void sendMessage(String message, ClientHandler client) {
+	/**
+	 * Get the sequence number up to which every update is either being sent
+	 * now or has already been queued for every peer.
+	 * 
+	 * @param events
+	 *            The updates being sent.
+	 * @return The sequence number.
+	 */
+	private long watermark(List<PresenceEvent> events) {
+		synchronized (inFlight) {
+			for (Long sequence : inFlight) {
+				boolean sending = false;
+				for (PresenceEvent event : events) {
+					if (event.getSequence() == sequence
+							|| event.getSince() == sequence)
+						sending = true;
+				}
+				if (!sending)
+					return sequence - 1;
+			}
+			return this.sequence.get();
+		}
+	}
+
+	/**
+	 * Put several updates in one message, each on its own line.
+	 * 
+	 * @param events
+	 *            The updates.
+	 * @param last
+	 *            A line to add after the updates, or null.
+	 * @return The message.
+	 */
+	private static byte[] encodeBatch(List<PresenceEvent> events, String last) {
+		StringBuilder sb = new StringBuilder();
+		for (PresenceEvent event : events) {
+			sb.append(event.getMessage());
+			sb.append('\n');
+		}
+		if (last != null) {
+			sb.append(last);
+			sb.append('\n');
+		}
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * Put several updates together as binary records.
+	 * 
+	 * @param first
+	 *            Bytes to put before the records, or null.
+	 * @param events
+	 *            The updates.
+	 * @param last
+	 *            A record to add after the updates, or null.
+	 * @return The records.
+	 */
+	private static byte[] encodeRecords(byte[] first,
+			List<PresenceEvent> events, byte[] last) {
+		int length = (first == null ? 0 : first.length)
+				+ (last == null ? 0 : last.length);
+		for (PresenceEvent event : events) {
+			length += event.getRecord().length;
+		}
+		byte[] records = new byte[length];
+		int offset = 0;
+		if (first != null) {
+			System.arraycopy(first, 0, records, 0, first.length);
+			offset = first.length;
+		}
+		for (PresenceEvent event : events) {
+			byte[] record = event.getRecord();
+			System.arraycopy(record, 0, records, offset, record.length);
+			offset += record.length;
+		}
+		if (last != null)
+			System.arraycopy(last, 0, records, offset, last.length);
+		return records;
+	}
+
+	private void sendMessage(byte[] message, Client client) {
+		sendMessage(Frame.MESSAGE, message, client);
+	}
+
+	private void sendMessage(byte type, byte[] message, Client client) {
 		try {
-			client.sendMessage(message);
+			client.sendMessage(type, message);
 		} catch (IOException e) {
-			System.out.println("IOException: the message could not be sent to "
-					+ client.getNickname());
+			Log.warn("IOException: the message could not be sent to {}",
+					client.getNickname());
 		}
 	}
 
+	/**
+	 * Answer a query for part of the user list.
+	 * 
+	 * @param message
+	 *            The query, as received from a peer.
+	 * @return The answer.
+	 * @see RosterQuery
+	 */
+	byte[] query(String message) {
+		return RosterQuery.parse(message).answer(registry);
+	}
+
 	/**
 	 * Get the list of users currently connected to the name server.
 	 * 
@@ -161,17 +1214,37 @@ public class NameServer extends Thread {
 	 *         server.
 	 */
 	public String getUserList() {
-		StringBuilder sb = new StringBuilder();
-		for (Map.Entry<String, InetSocketAddress> entry : table.entrySet()) {
-			sb.append(entry.getKey());
-			sb.append(';');
-			InetSocketAddress address = entry.getValue();
-			sb.append(address.getHostName());
-			sb.append(';');
-			sb.append(address.getPort());
-			sb.append('&');
-		}
-		return sb.toString();
+		return new String(recentRoster(sequence.get()).getBytes());
+	}
+
+	/**
+	 * Get a snapshot of the user list, making a new one only if the last one
+	 * is older than wanted. The registry keeps changing while a snapshot is
+	 * taken, so it holds every change up to its version and maybe some made
+	 * after; applied over it, the changes after its version give the user
+	 * list at theirs, as each one replaces what the snapshot says about its
+	 * peer.
+	 * 
+	 * @param atLeast
+	 *            The lowest version the snapshot may have.
+	 * @return The snapshot.
+	 */
+	private RosterSnapshot recentRoster(long atLeast) {
+		RosterSnapshot roster = this.roster;
+		if (roster.getVersion() >= atLeast)
+			return roster;
+		synchronized (rosterLock) {
+			roster = this.roster;
+			if (roster.getVersion() < atLeast) {
+				// A change gets its sequence number once it is in the
+				// registry, so reading the version first is enough.
+				long version = sequence.get();
+				roster = RosterSnapshot.build(version,
+						registry.getRegistrations());
+				this.roster = roster;
+			}
+		}
+		return roster;
 	}
 
 }
@@ -0,0 +1,523 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import twit2.io.Bytes;
+import twit2.io.ChannelWriter;
+import twit2.io.FlushPolicy;
+import twit2.io.Frame;
+import twit2.log.Log;
+
+/**
+ * The NioClient class deals with information coming from a client of the
+ * non-blocking name server. It is driven by a {@link Reactor} and follows the
+ * same protocol as {@link ClientHandler}: every read is treated as one
+ * message, the first being the peer's nickname and port number, unless the
+ * peer asks for frames.
+ * 
+ * Output is written with gathering writes, when the {@link FlushPolicy} of
+ * the server says so: as soon as it is queued, at the end of each broadcast
+ * and each read, or a fixed time after the first message was queued.
+ * 
+ * @author os75
+ */
+class NioClient implements Client {
+	private static final int MAX_HANDSHAKE_LENGTH = NameServer.MAX_HANDSHAKE_LENGTH;
+	private static final int MAX_MESSAGE_LENGTH = NameServer.MAX_MESSAGE_LENGTH;
+	private static final byte[] QUERY = RosterQuery.COMMAND.getBytes();
+	private SocketChannel channel;
+	private NameServer server;
+	private Reactor reactor;
+	private volatile SelectionKey key;
+	// Taken from the pool of the server, and only touched by the reactor.
+	private ByteBuffer readBuffer;
+	private ChannelWriter output;
+	private FlushPolicy flushPolicy;
+	private boolean flushScheduled;
+	private Runnable flusher;
+	private volatile boolean alive;
+	private boolean closeWhenFlushed;
+	private boolean held;
+	private volatile Registration registration;
+	// Set while the peer is registered on another thread, during which
+	// nothing is read from it.
+	private volatile boolean registering;
+	private boolean framed;
+	private LivenessTracker.Entry liveness;
+
+	NioClient(SocketChannel channel, NameServer server, Reactor reactor) {
+		this.channel = channel;
+		this.server = server;
+		this.reactor = reactor;
+		readBuffer = server.getBuffers().acquire();
+		output = new ChannelWriter(channel);
+		flushPolicy = server.getFlushPolicy();
+		flusher = new Runnable() {
+			public void run() {
+				flush();
+			}
+		};
+		alive = true;
+		held = true;
+		liveness = server.track(this);
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Read a message from the peer. Called by the reactor when the connection
+	 * is readable.
+	 */
+	void read() {
+		if (readBuffer == null || registering)
+			return;
+		try {
+			receive();
+			// Answers to queries go out once everything read has been
+			// handled.
+			if (alive && flushPolicy.isEndOfBatch())
+				flush();
+		} finally {
+			releaseBufferIfClosed();
+		}
+	}
+
+	/**
+	 * Go back to reading once the peer has been registered on another
+	 * thread, handling the frames which came with the handshake first.
+	 * Called by the reactor.
+	 */
+	void resume() {
+		if (readBuffer == null)
+			return;
+		try {
+			synchronized (output) {
+				if (!alive)
+					return;
+				setInterest(output.isEmpty() ? SelectionKey.OP_READ
+						: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			if (framed && readBuffer.position() > 0)
+				receiveFrames();
+			if (alive && flushPolicy.isEndOfBatch())
+				flush();
+		} catch (IOException e) {
+			closeConnection();
+		} finally {
+			releaseBufferIfClosed();
+		}
+	}
+
+	/**
+	 * Only the reactor reads, and it stops once the connection has been
+	 * closed, so the buffer can go back to the pool. If it was closed by
+	 * another thread the reactor may never read again, and the buffer is left
+	 * to the garbage collector.
+	 */
+	private void releaseBufferIfClosed() {
+		if (!alive) {
+			server.getBuffers().release(readBuffer);
+			readBuffer = null;
+		}
+	}
+
+	private void receive() {
+		// Frames may be split across reads, so what is left of one is kept.
+		if (!framed) {
+			readBuffer.clear();
+			readBuffer.limit(registration == null ? MAX_HANDSHAKE_LENGTH + 1
+					: MAX_MESSAGE_LENGTH + 1);
+		}
+		try {
+			int length = channel.read(readBuffer);
+			if (length == -1) {
+				closeConnection();
+				return;
+			} else if (length == 0) {
+				return;
+			}
+			// Anything counts as activity, KEEPALIVE included.
+			if (liveness != null)
+				liveness.touch();
+			server.getMetrics().received(length);
+			if (framed) {
+				receiveFrames();
+				return;
+			}
+			byte[] bytes = readBuffer.array();
+			if (registration == null) {
+				receiveInitialization(bytes, length);
+			} else if (length <= MAX_MESSAGE_LENGTH) {
+				receive(Frame.typeOf(bytes, 0, length), bytes, 0, length);
+			} else {
+				sendMessage("Message received too long. Max is 140 characters."
+						.getBytes());
+			}
+		} catch (IOException e) {
+			Log.info("Connection with {} reset.", getNickname());
+			closeConnection();
+		} catch (NumberFormatException e) {
+			closeConnection();
+		} catch (NameServerException e) {
+			Log.info("{}", e.getMessage());
+			closeAfterMessage(Frame.ERROR, framed ? e.getMessage() : "ERROR "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Handle the frames read so far, where they are in the buffer, keeping
+	 * any incomplete one until the rest of it arrives.
+	 * 
+	 * @throws IOException
+	 *             If a frame is too long.
+	 */
+	private void receiveFrames() throws IOException {
+		readBuffer.flip();
+		int length;
+		while (alive
+				&& (length = Frame.available(readBuffer, MAX_MESSAGE_LENGTH)) != -1) {
+			int start = readBuffer.position();
+			readBuffer.position(start + Frame.HEADER_LENGTH + length);
+			receive(readBuffer.get(start), readBuffer.array(), start
+					+ Frame.HEADER_LENGTH, length);
+		}
+		readBuffer.compact();
+	}
+
+	/**
+	 * Handle a message from the peer, matching it without decoding it unless
+	 * it is a query.
+	 * 
+	 * @throws IOException
+	 *             If the answer to a query cannot be sent.
+	 */
+	private void receive(byte type, byte[] bytes, int offset, int length)
+			throws IOException {
+		if (type == Frame.QUIT) {
+			Log.info("Received quit command from {}", getNickname());
+			closeConnection();
+		} else if (type == Frame.MESSAGE
+				&& Bytes.startsWith(bytes, offset, length, QUERY)) {
+			sendMessage(server.query(new String(bytes, offset, length)));
+		}
+	}
+
+	/**
+	 * Register the nickname and port number the peer wishes to use. Frames
+	 * a framed client sent straight after the handshake are kept, and
+	 * handled once it is registered.
+	 * 
+	 * @param bytes
+	 *            The first bytes received from the peer.
+	 * @param length
+	 *            The number of bytes received.
+	 * @throws NameServerException
+	 *             If the peer cannot be registered.
+	 * @throws IOException
+	 *             If a frame sent after the handshake is malformed.
+	 */
+	private void receiveInitialization(byte[] bytes, int length)
+			throws NameServerException, IOException {
+		int end = Handshake.length(bytes, 0, length);
+		String input = new String(bytes, 0, end);
+		framed = Handshake.isFramed(input);
+		if (framed) {
+			readBuffer.limit(length).position(end);
+			readBuffer.compact();
+		} else {
+			input = new String(bytes, 0, length);
+		}
+		Cluster cluster = server.getCluster();
+		if (cluster != null) {
+			// The node owning the nickname may take a while to agree to it,
+			// so the peer is registered on another thread, and nothing is
+			// read from it until then.
+			synchronized (output) {
+				registering = true;
+				setInterest(0);
+			}
+			final String handshake = input;
+			cluster.getRegistrars().execute(new Runnable() {
+				public void run() {
+					registerLater(handshake);
+				}
+			});
+			return;
+		}
+		registration = server.register(this, input, channel.socket()
+				.getInetAddress());
+		if (framed && readBuffer.position() > 0)
+			receiveFrames();
+	}
+
+	/**
+	 * Register the peer off the reactor thread, then hand it back to the
+	 * reactor.
+	 * 
+	 * @param input
+	 *            The handshake.
+	 */
+	private void registerLater(String input) {
+		try {
+			registration = server.register(this, input, channel.socket()
+					.getInetAddress());
+		} catch (NameServerException e) {
+			Log.info("{}", e.getMessage());
+			closeAfterMessage(Frame.ERROR, framed ? e.getMessage() : "ERROR "
+					+ e.getMessage());
+			return;
+		} catch (NumberFormatException e) {
+			closeConnection();
+			return;
+		} catch (RuntimeException e) {
+			Log.error("A peer could not be registered", e);
+			closeConnection();
+			return;
+		}
+		registering = false;
+		if (!alive) {
+			// Closed while it was being registered.
+			server.removeClient(this);
+			server.removeEntry(registration);
+			return;
+		}
+		reactor.resume(this);
+	}
+
+	/**
+	 * Write as much of the queued output as the connection accepts. Called by
+	 * the reactor when the connection is writable, by the name server at the
+	 * end of a broadcast, and when a delayed flush is due.
+	 */
+	public void flush() {
+		boolean close;
+		try {
+			synchronized (output) {
+				flushScheduled = false;
+				writeQueued();
+				close = closeWhenFlushed && output.isEmpty();
+			}
+		} catch (IOException e) {
+			close = true;
+		}
+		if (close)
+			closeConnection();
+	}
+
+	/**
+	 * Write queued buffers until the queue is empty or the connection stops
+	 * accepting data, in which case the reactor is asked to call
+	 * {@link #flush()} once it is writable again. Must hold the lock of the
+	 * write queue.
+	 * 
+	 * @throws IOException
+	 *             If an error occurs while writing.
+	 */
+	private void writeQueued() throws IOException {
+		if (held)
+			return;
+		server.getMetrics().sent((int) output.flush());
+		server.getMetrics().queued(-output.getMessagesWritten());
+		int read = registering ? 0 : SelectionKey.OP_READ;
+		setInterest(output.isEmpty() ? read : read | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Write the output which has just been queued, or arrange for it to be
+	 * written, as the flush policy says. Must hold the lock of the write
+	 * queue.
+	 * 
+	 * @param idle
+	 *            true if nothing was waiting to be written before.
+	 * @throws IOException
+	 *             If an error occurs while writing.
+	 */
+	private void queued(boolean idle) throws IOException {
+		// Anything already waiting is written once the connection is
+		// writable, or by the flush already due.
+		if (!idle)
+			return;
+		if (flushPolicy.isImmediate()) {
+			writeQueued();
+		} else if (flushPolicy.isDelayed() && !flushScheduled) {
+			flushScheduled = true;
+			server.getFlushTimer().schedule(flusher,
+					flushPolicy.getDelayMicros(), TimeUnit.MICROSECONDS);
+		}
+	}
+
+	private void setInterest(int ops) {
+		SelectionKey key = this.key;
+		if (key.isValid() && key.interestOps() != ops) {
+			key.interestOps(ops);
+			reactor.wakeup();
+		}
+	}
+
+	/**
+	 * Send a last message and close the connection once it has been written.
+	 * 
+	 * @param type
+	 *            The type of the message, if it is sent in a frame.
+	 * @param message
+	 *            A message.
+	 */
+	private void closeAfterMessage(byte type, String message) {
+		synchronized (output) {
+			closeWhenFlushed = true;
+			held = false;
+			enqueue(type, message.getBytes(), false);
+		}
+		flush();
+	}
+
+	/**
+	 * Add a message to the write queue, after its header if it is sent in a
+	 * frame. Only messages are counted as queued, not headers, which are
+	 * read-only. Must hold the lock of the write queue.
+	 * 
+	 * @param type
+	 *            The type of the frame.
+	 * @param message
+	 *            A message.
+	 * @param first
+	 *            true to put it ahead of everything else in the queue.
+	 */
+	private void enqueue(byte type, byte[] message, boolean first) {
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		if (first)
+			output.addFirst(buffer);
+		if (framed) {
+			ByteBuffer header = Frame.header(type, message.length);
+			if (first)
+				output.addFirst(header);
+			else
+				output.add(header);
+		}
+		if (!first)
+			output.add(buffer);
+		server.getMetrics().queued(1);
+	}
+
+	/**
+	 * Close the connection with the peer and remove it from the list of
+	 * connected peers.
+	 */
+	void closeConnection() {
+		synchronized (output) {
+			if (!alive)
+				return;
+			alive = false;
+			server.getMetrics().queued(-output.clear());
+		}
+		if (liveness != null)
+			liveness.cancel();
+		server.removeClient(this);
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		server.removeEntry(registration);
+		server.connectionClosed();
+	}
+
+	/**
+	 * Close the connection with the peer, from any thread.
+	 */
+	public void close() {
+		closeConnection();
+	}
+
+	/**
+	 * Tells if the connection has been closed.
+	 * 
+	 * @return true if the connection has been closed, false otherwise.
+	 */
+	public boolean isClosed() {
+		return !alive;
+	}
+
+	/**
+	 * Queue a message for the peer, writing it straight away if nothing else
+	 * is waiting to be written. A peer with too many messages waiting is
+	 * disconnected.
+	 * 
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If an error occurs while writing to the peer.
+	 */
+	public void sendMessage(byte[] message) throws IOException {
+		sendMessage(Frame.MESSAGE, message);
+	}
+
+	/**
+	 * Queue a message of a given type for the peer.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in, if framed.
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If an error occurs while writing to the peer.
+	 */
+	public void sendMessage(byte type, byte[] message) throws IOException {
+		// A frame takes two buffers.
+		int capacity = NameServer.OUTBOUND_CAPACITY * (framed ? 2 : 1);
+		try {
+			synchronized (output) {
+				if (!alive)
+					throw new IOException("Connection closed");
+				if (output.size() >= capacity)
+					throw new IOException("Outbound queue full");
+				boolean idle = output.isEmpty();
+				enqueue(type, message, false);
+				queued(idle);
+			}
+		} catch (IOException e) {
+			closeConnection();
+			throw e;
+		}
+	}
+
+	/**
+	 * Send the list of connected peers ahead of any message queued so far,
+	 * and start writing.
+	 * 
+	 * @param users
+	 *            The list of connected peers, in one frame or several.
+	 * @throws IOException
+	 *             If an error occurs while writing to the peer.
+	 */
+	public void sendUserList(Frame[] users) throws IOException {
+		try {
+			synchronized (output) {
+				if (!alive)
+					throw new IOException("Connection closed");
+				for (int i = users.length - 1; i >= 0; i--) {
+					enqueue(users[i].getType(), users[i].getPayload(), true);
+				}
+				held = false;
+				writeQueued();
+			}
+		} catch (IOException e) {
+			closeConnection();
+			throw e;
+		}
+	}
+
+	public String getNickname() {
+		if (registration == null)
+			return "null";
+		return registration.getNickname();
+	}
+}
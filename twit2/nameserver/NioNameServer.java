@@ -0,0 +1,117 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import twit2.log.Log;
+
+/**
+ * A name server which services all of its peers from a small fixed set of
+ * reactor threads using non-blocking I/O, instead of starting a thread for
+ * every peer. The messages exchanged with the peers are exactly those of the
+ * blocking {@link NameServer}, so existing clients connect unchanged.
+ * 
+ * @author os75
+ */
+public class NioNameServer extends NameServer {
+	private static final int SELECT_TIMEOUT = 15000;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private Reactor[] reactors;
+	private int nextReactor;
+
+	/**
+	 * Create a new non-blocking name server operating on a given port number.
+	 * 
+	 * @param port
+	 *            A port number.
+	 * @param reactorCount
+	 *            The number of threads servicing the connected peers.
+	 * @throws IOException
+	 *             If an error occurs while setting up the server.
+	 */
+	public NioNameServer(int port, int reactorCount) throws IOException {
+		Log.info("Setting up server...");
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			reactors[i] = new Reactor(this, i);
+		}
+		Log.info("Name server set up at port {} with {} reactor threads",
+				port, reactorCount);
+	}
+
+	/**
+	 * Accepts new peers (clients) and hands them to the reactors in turn.
+	 */
+	public void run() {
+		setRunning();
+		for (Reactor reactor : reactors) {
+			reactor.start();
+		}
+		while (isRunning()) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+				selector.selectedKeys().clear();
+				SocketChannel client;
+				while ((client = serverChannel.accept()) != null) {
+					if (!admit(client.socket().getInetAddress())) {
+						reject(client);
+						continue;
+					}
+					if (Log.isEnabled(Log.INFO))
+						Log.info("Accepted connection from {}",
+								describe(client.socket().getInetAddress()));
+					reactors[nextReactor].register(client);
+					nextReactor = (nextReactor + 1) % reactors.length;
+				}
+			} catch (IOException e) {
+				Log.error("IOException: a connection could not be accepted", e);
+			}
+		}
+		for (Reactor reactor : reactors) {
+			reactor.kill();
+		}
+		try {
+			selector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Turn a connection away, telling the peer why. The connection is still
+	 * blocking, and the message fits in any socket buffer.
+	 * 
+	 * @param client
+	 *            A connection which was not admitted.
+	 */
+	private void reject(SocketChannel client) {
+		try {
+			client.write(ByteBuffer.wrap(("ERROR " + TOO_MANY_CONNECTIONS)
+					.getBytes()));
+		} catch (IOException e) {
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Shut down the name server.
+	 */
+	public void kill() {
+		super.kill();
+		selector.wakeup();
+	}
+}
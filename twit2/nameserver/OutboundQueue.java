@@ -0,0 +1,176 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import twit2.io.Frame;
+import twit2.io.FrameWriter;
+import twit2.log.Log;
+
+/**
+ * An OutboundQueue holds the messages waiting to be written to one peer of
+ * the blocking name server. Adding a message never blocks: the queue is
+ * drained by a writer task which is only scheduled while there is something
+ * to write, so a peer that reads slowly holds up nobody but itself. A peer
+ * that falls so far behind that its queue fills up is disconnected.
+ * 
+ * Nothing is written until the queue is released, which lets the user list
+ * be put ahead of any presence update that arrived while it was being made.
+ * 
+ * Messages are written unframed, each flushed on its own, unless the peer
+ * has asked for frames; frames are flushed once the queue has been emptied.
+ * 
+ * @author os75
+ */
+class OutboundQueue implements Runnable {
+	private Socket socket;
+	private FrameWriter out;
+	private Executor writer;
+	private BlockingDeque<Frame> queue;
+	private AtomicBoolean scheduled;
+	private volatile boolean held;
+	private ServerMetrics metrics;
+
+	/**
+	 * Create a new queue for a connection.
+	 * 
+	 * @param socket
+	 *            The connection to the peer.
+	 * @param writer
+	 *            The executor which runs the writer task.
+	 * @param capacity
+	 *            The maximum number of messages waiting to be written.
+	 * @param metrics
+	 *            The metrics to count the messages and bytes written in, or
+	 *            null.
+	 * @throws IOException
+	 *             If the output stream of the connection cannot be opened.
+	 */
+	OutboundQueue(Socket socket, Executor writer, int capacity,
+			ServerMetrics metrics) throws IOException {
+		this.socket = socket;
+		this.writer = writer;
+		this.metrics = metrics;
+		out = new FrameWriter(socket.getOutputStream(), false);
+		queue = new LinkedBlockingDeque<Frame>(capacity);
+		scheduled = new AtomicBoolean();
+		held = true;
+	}
+
+	/**
+	 * Write frames instead of unframed messages. Must be called before the
+	 * queue is released.
+	 * 
+	 * @throws IOException
+	 *             If the output stream of the connection cannot be opened.
+	 */
+	void setFramed() throws IOException {
+		out = new FrameWriter(socket.getOutputStream(), true);
+	}
+
+	/**
+	 * Add a message to the end of the queue.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in, if framed.
+	 * @param message
+	 *            A message.
+	 * @return true if the message was queued, false if the queue was full, in
+	 *         which case the connection is closed.
+	 */
+	boolean offer(byte type, byte[] message) {
+		if (!queue.offerLast(new Frame(type, message))) {
+			overflow();
+			return false;
+		}
+		if (metrics != null)
+			metrics.queued(1);
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Add messages to the front of the queue, in order, and start writing.
+	 * 
+	 * @param frames
+	 *            The messages, in the frames to send them in if framed.
+	 * @return true if the messages were queued, false if the queue was full,
+	 *         in which case the connection is closed.
+	 */
+	boolean release(Frame... frames) {
+		for (int i = frames.length - 1; i >= 0; i--) {
+			if (!queue.offerFirst(frames[i])) {
+				overflow();
+				return false;
+			}
+			if (metrics != null)
+				metrics.queued(1);
+		}
+		held = false;
+		schedule();
+		return true;
+	}
+
+	private void schedule() {
+		if (!held && !queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+			writer.execute(this);
+		}
+	}
+
+	/**
+	 * Write the queued messages until the queue is empty.
+	 */
+	public void run() {
+		try {
+			Frame frame;
+			while ((frame = queue.pollFirst()) != null) {
+				if (metrics != null)
+					metrics.queued(-1);
+				out.write(frame);
+				if (metrics != null)
+					metrics.sent(frame.getPayload().length
+							+ (out.isFramed() ? Frame.HEADER_LENGTH : 0));
+			}
+			out.flush();
+		} catch (IOException e) {
+			clear();
+			close();
+		} finally {
+			scheduled.set(false);
+		}
+		// A message may have been added after the last poll but before the
+		// flag was cleared.
+		schedule();
+	}
+
+	private void overflow() {
+		Log.warn("Outbound queue full, disconnecting {}", socket
+				.getInetAddress().getHostAddress());
+		clear();
+		close();
+	}
+
+	private void clear() {
+		int dropped = 0;
+		while (queue.pollFirst() != null) {
+			dropped++;
+		}
+		if (metrics != null)
+			metrics.queued(-dropped);
+	}
+
+	/**
+	 * Close the connection, which makes the reading side of the handler clean
+	 * up after the peer.
+	 */
+	private void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
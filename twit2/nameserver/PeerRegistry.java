@@ -0,0 +1,136 @@
+package twit2.nameserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The PeerRegistry maps the nicknames of the peers connected to the name
+ * server to their registrations. It is safe to use from every client thread
+ * at once: claiming a nickname is atomic, and reading the registrations never
+ * blocks writers. Next to the table it keeps an index sorted by nickname,
+ * for prefix searches and paging through the registrations.
+ * 
+ * @author os75
+ */
+public class PeerRegistry {
+	private static final int INITIAL_CAPACITY = 1024;
+	private ConcurrentMap<String, Registration> table;
+	// Follows the table: an entry is only added once its nickname has been
+	// claimed, and only removed for the registration that held it.
+	private ConcurrentNavigableMap<String, Registration> index;
+
+	public PeerRegistry() {
+		table = new ConcurrentHashMap<String, Registration>(INITIAL_CAPACITY);
+		index = new ConcurrentSkipListMap<String, Registration>();
+	}
+
+	/**
+	 * Claim the nickname of a registration.
+	 * 
+	 * @param registration
+	 *            A registration.
+	 * @return true if the nickname was free and is now held by the
+	 *         registration, false if it is already taken.
+	 */
+	public boolean claim(Registration registration) {
+		if (table.putIfAbsent(registration.getNickname(), registration) != null)
+			return false;
+		index.put(registration.getNickname(), registration);
+		return true;
+	}
+
+	/**
+	 * Release the nickname held by a registration. Does nothing if the
+	 * nickname has since been released and claimed by another peer.
+	 * 
+	 * @param registration
+	 *            A registration.
+	 * @return true if the registration was removed, false otherwise.
+	 */
+	public boolean release(Registration registration) {
+		if (!table.remove(registration.getNickname(), registration))
+			return false;
+		index.remove(registration.getNickname(), registration);
+		return true;
+	}
+
+	/**
+	 * Replace a registration with another for the same nickname.
+	 * 
+	 * @param previous
+	 *            The registration to replace.
+	 * @param registration
+	 *            The new registration.
+	 * @return true if the previous registration was still registered, and
+	 *         has been replaced.
+	 */
+	public boolean replace(Registration previous, Registration registration) {
+		if (!table.replace(registration.getNickname(), previous, registration))
+			return false;
+		index.replace(registration.getNickname(), previous, registration);
+		return true;
+	}
+
+	/**
+	 * Get the registration currently holding a nickname.
+	 * 
+	 * @param nickname
+	 *            A nickname.
+	 * @return The registration, or null if the nickname is free.
+	 */
+	public Registration get(String nickname) {
+		return table.get(nickname);
+	}
+
+	/**
+	 * Get a live view of the registrations. Iterating it never blocks and
+	 * never fails, but may or may not reflect changes made while iterating.
+	 * 
+	 * @return The registrations.
+	 */
+	public Collection<Registration> getRegistrations() {
+		return table.values();
+	}
+
+	/**
+	 * Find the registrations whose nicknames start with a prefix, in
+	 * nickname order, a page at a time.
+	 * 
+	 * @param prefix
+	 *            The prefix, or an empty string for every registration.
+	 * @param after
+	 *            The last nickname of the previous page, or null for the
+	 *            first page.
+	 * @param limit
+	 *            The maximum number of registrations to return.
+	 * @return Up to limit + 1 registrations, the last of which only tells
+	 *         that there is another page.
+	 */
+	public List<Registration> find(String prefix, String after, int limit) {
+		ConcurrentNavigableMap<String, Registration> tail;
+		if (after == null || after.compareTo(prefix) < 0)
+			tail = index.tailMap(prefix, true);
+		else
+			tail = index.tailMap(after, false);
+		List<Registration> found = new ArrayList<Registration>();
+		for (Map.Entry<String, Registration> entry : tail.entrySet()) {
+			if (!entry.getKey().startsWith(prefix) || found.size() > limit)
+				break;
+			found.add(entry.getValue());
+		}
+		return found;
+	}
+
+	/**
+	 * @return The number of registered peers.
+	 */
+	public int size() {
+		return table.size();
+	}
+}
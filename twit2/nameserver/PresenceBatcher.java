@@ -0,0 +1,116 @@
+package twit2.nameserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PresenceBatcher collects presence updates over a short window and
+ * hands them to the name server to be sent as one batch. A peer that comes
+ * online and goes offline again within the same window is left out of the
+ * batch altogether, except for the peers which may have been told about it
+ * in their user list.
+ * 
+ * @author os75
+ */
+class PresenceBatcher implements Runnable {
+	private NameServer server;
+	private long window;
+	private int maxBatch;
+	private ScheduledExecutorService timer;
+	private Map<String, LinkedList<PresenceEvent>> pending;
+	private int size;
+	private boolean scheduled;
+
+	/**
+	 * Create a new batcher.
+	 * 
+	 * @param server
+	 *            The name server which sends the batches.
+	 * @param window
+	 *            The number of milliseconds to collect updates for, counted
+	 *            from the first update of a batch.
+	 * @param maxBatch
+	 *            The number of updates at which a batch is sent straight away.
+	 */
+	PresenceBatcher(NameServer server, long window, int maxBatch) {
+		this.server = server;
+		this.window = window;
+		this.maxBatch = maxBatch;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "presence-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pending = new LinkedHashMap<String, LinkedList<PresenceEvent>>();
+	}
+
+	/**
+	 * Add an update to the current batch.
+	 * 
+	 * @param event
+	 *            A presence update.
+	 */
+	synchronized void add(PresenceEvent event) {
+		LinkedList<PresenceEvent> events = pending.get(event.getNickname());
+		if (events == null) {
+			events = new LinkedList<PresenceEvent>();
+			pending.put(event.getNickname(), events);
+		}
+		if (!event.isOnline() && !events.isEmpty()
+				&& events.getLast().isOnline()) {
+			// The peer came and went within the window.
+			events.add(event.since(events.removeLast()));
+		} else {
+			events.add(event);
+			size++;
+		}
+		if (size >= maxBatch) {
+			timer.execute(this);
+		} else if (!scheduled) {
+			timer.schedule(this, window, TimeUnit.MILLISECONDS);
+			scheduled = true;
+		}
+	}
+
+	/**
+	 * Send the current batch.
+	 */
+	public void run() {
+		List<PresenceEvent> batch;
+		synchronized (this) {
+			scheduled = false;
+			if (pending.isEmpty())
+				return;
+			batch = new ArrayList<PresenceEvent>(size);
+			for (LinkedList<PresenceEvent> events : pending.values()) {
+				batch.addAll(events);
+			}
+			pending.clear();
+			size = 0;
+		}
+		server.deliver(batch);
+	}
+
+	/**
+	 * @return The number of updates in the current batch.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Stop the timer. Updates still waiting are dropped.
+	 */
+	void shutdown() {
+		timer.shutdownNow();
+	}
+}
@@ -0,0 +1,114 @@
+package twit2.nameserver;
+
+import twit2.io.PresenceCodec;
+
+/**
+ * A PresenceEvent is a peer coming online (ONL) or going offline (OFL), as
+ * sent to the other peers, both as text and as a binary record.
+ * 
+ * @author os75
+ */
+final class PresenceEvent {
+	private final long sequence;
+	private final long since;
+	private final boolean online;
+	private final String nickname;
+	private final String message;
+	private final byte[] bytes;
+	private final byte[] record;
+
+	/**
+	 * Create an event for a change to the registry.
+	 * 
+	 * @param sequence
+	 *            The sequence number of the change.
+	 * @param online
+	 *            true if the peer came online, false if it went offline.
+	 * @param nickname
+	 *            The nickname of the peer.
+	 * @param message
+	 *            The message sent to the other peers.
+	 * @param record
+	 *            The message sent to the peers which receive presence in
+	 *            binary.
+	 */
+	PresenceEvent(long sequence, boolean online, String nickname,
+			String message, byte[] record) {
+		this(sequence, 0, online, nickname, message, record);
+	}
+
+	private PresenceEvent(long sequence, long since, boolean online,
+			String nickname, String message, byte[] record) {
+		this.sequence = sequence;
+		this.since = since;
+		this.online = online;
+		this.nickname = nickname;
+		this.message = message;
+		bytes = message.getBytes();
+		this.record = record;
+	}
+
+	static PresenceEvent online(long sequence, Registration registration) {
+		return new PresenceEvent(sequence, true, registration.getNickname(),
+				"ONL " + registration.getNickname() + ";"
+						+ registration.getAddress().getHostAddress() + ";"
+						+ registration.getPort(),
+				registration.getBinaryEntry());
+	}
+
+	static PresenceEvent offline(long sequence, Registration registration) {
+		return new PresenceEvent(sequence, false, registration.getNickname(),
+				"OFL " + registration.getNickname(),
+				PresenceCodec.offline(registration.getId()));
+	}
+
+	/**
+	 * Get this OFL event restricted to the peers which may have seen the
+	 * matching ONL event in their user list. Used when both events are
+	 * cancelled out for everybody else.
+	 * 
+	 * @param online
+	 *            The ONL event for the same peer.
+	 * @return The restricted event.
+	 */
+	PresenceEvent since(PresenceEvent online) {
+		return new PresenceEvent(sequence, online.getSequence(), false,
+				nickname, message, record);
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return The lowest sequence number a subscriber must have joined at to
+	 *         receive this event.
+	 */
+	long getSince() {
+		return since;
+	}
+
+	boolean isOnline() {
+		return online;
+	}
+
+	String getNickname() {
+		return nickname;
+	}
+
+	String getMessage() {
+		return message;
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The update as a binary record.
+	 * @see PresenceCodec
+	 */
+	byte[] getRecord() {
+		return record;
+	}
+}
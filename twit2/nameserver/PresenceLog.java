@@ -0,0 +1,66 @@
+package twit2.nameserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The PresenceLog keeps the most recent presence updates, by sequence
+ * number, so that a peer which reconnects can be sent only what changed while
+ * it was away. Older updates are overwritten as new ones are added.
+ * 
+ * @author os75
+ */
+final class PresenceLog {
+	private final AtomicReferenceArray<PresenceEvent> events;
+	private final int capacity;
+
+	/**
+	 * @param capacity
+	 *            The number of updates to keep.
+	 */
+	PresenceLog(int capacity) {
+		this.capacity = capacity;
+		events = new AtomicReferenceArray<PresenceEvent>(capacity);
+	}
+
+	/**
+	 * Add an update. Each sequence number has a slot of its own, so updates
+	 * can be added from several threads at once.
+	 * 
+	 * @param event
+	 *            A presence update.
+	 */
+	void add(PresenceEvent event) {
+		events.set(slot(event.getSequence()), event);
+	}
+
+	/**
+	 * Get the updates after one sequence number up to another.
+	 * 
+	 * @param from
+	 *            The sequence number of the last update already known.
+	 * @param to
+	 *            The sequence number of the last update wanted. Every update
+	 *            up to it must have been added.
+	 * @return The updates in order, or null if some of them are no longer
+	 *         kept.
+	 */
+	List<PresenceEvent> since(long from, long to) {
+		if (from < 0 || from > to || to - from > capacity)
+			return null;
+		List<PresenceEvent> since = new ArrayList<PresenceEvent>(
+				(int) (to - from));
+		for (long sequence = from + 1; sequence <= to; sequence++) {
+			PresenceEvent event = events.get(slot(sequence));
+			if (event == null || event.getSequence() != sequence)
+				return null;
+			since.add(event);
+		}
+		return since;
+	}
+
+	private int slot(long sequence) {
+		return (int) (sequence % capacity);
+	}
+}
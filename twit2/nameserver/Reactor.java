@@ -0,0 +1,148 @@
+package twit2.nameserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import twit2.log.Log;
+
+/**
+ * A Reactor services the connections of many peers from a single thread by
+ * waiting for any of them to become readable or writable.
+ * 
+ * @author os75
+ */
+class Reactor extends Thread {
+	private NameServer server;
+	private Selector selector;
+	private Queue<SocketChannel> pending;
+	private Queue<NioClient> resumed;
+	private volatile boolean running;
+
+	/**
+	 * Create a new reactor for a name server.
+	 * 
+	 * @param server
+	 *            The name server the peers are registered with.
+	 * @param id
+	 *            A number identifying the reactor.
+	 * @throws IOException
+	 *             If the selector cannot be opened.
+	 */
+	Reactor(NameServer server, int id) throws IOException {
+		super("reactor-" + id);
+		this.server = server;
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<SocketChannel>();
+		resumed = new ConcurrentLinkedQueue<NioClient>();
+		running = true;
+	}
+
+	/**
+	 * Hand a newly accepted connection to this reactor.
+	 * 
+	 * @param channel
+	 *            An accepted connection.
+	 */
+	void register(SocketChannel channel) {
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Have the reactor go back to reading from a peer which was registered on
+	 * another thread.
+	 * 
+	 * @param client
+	 *            The client of the peer.
+	 */
+	void resume(NioClient client) {
+		resumed.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wake the reactor so that changes in interest take effect.
+	 */
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Service the connections until the reactor is killed.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				registerPending();
+				resumePending();
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioClient client = (NioClient) key.attachment();
+					if (key.isValid() && key.isReadable()) {
+						client.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						client.flush();
+					}
+				}
+			} catch (IOException e) {
+				Log.error("IOException in the reactor", e);
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			((NioClient) key.attachment()).closeConnection();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Register the connections handed to this reactor since the last select.
+	 */
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = pending.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				NioClient client = new NioClient(channel, server, this);
+				client.setKey(channel.register(selector, SelectionKey.OP_READ,
+						client));
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Go back to reading from the peers registered on another thread since
+	 * the last select.
+	 */
+	private void resumePending() {
+		NioClient client;
+		while ((client = resumed.poll()) != null) {
+			client.resume();
+		}
+	}
+
+	/**
+	 * Stop the reactor and close all its connections.
+	 */
+	void kill() {
+		running = false;
+		selector.wakeup();
+	}
+}
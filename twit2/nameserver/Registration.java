@@ -0,0 +1,79 @@
+package twit2.nameserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import twit2.io.PresenceCodec;
+
+/**
+ * A Registration records the nickname a peer has claimed and the address and
+ * port at which it accepts chat connections. The address is the numeric one
+ * the peer connected from, and is never resolved. Registrations are compared
+ * by identity, so a peer can only ever release the nickname it claimed
+ * itself.
+ * 
+ * Each registration is also given a nickname ID, unique within one run of
+ * the name server, by which peers receiving presence in binary are told
+ * which peer went offline.
+ * 
+ * @author os75
+ */
+public final class Registration {
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+	private final int id;
+	private final String nickname;
+	private final InetAddress address;
+	private final int port;
+	private final byte[] entry;
+	private final byte[] binaryEntry;
+
+	public Registration(String nickname, InetAddress address, int port) {
+		this.nickname = nickname;
+		this.address = address;
+		this.port = port;
+		entry = (nickname + ";" + address.getHostAddress() + ";" + port + "&")
+				.getBytes();
+		id = NEXT_ID.incrementAndGet();
+		binaryEntry = PresenceCodec.online(id, nickname, address, port);
+	}
+
+	/**
+	 * @return The nickname ID of the peer.
+	 */
+	int getId() {
+		return id;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Get this registration as it appears in the user list, encoded once when
+	 * the peer registers.
+	 * 
+	 * @return "nickname;address;port&".
+	 */
+	byte[] getEntry() {
+		return entry;
+	}
+
+	/**
+	 * Get this registration as it appears in the binary user list, which is
+	 * also the update sent when the peer comes online.
+	 * 
+	 * @return The ONL record.
+	 * @see PresenceCodec
+	 */
+	byte[] getBinaryEntry() {
+		return binaryEntry;
+	}
+}
@@ -0,0 +1,331 @@
+package twit2.nameserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import twit2.log.Log;
+
+/**
+ * The RegistryJournal keeps the registry of a name server on disk, so that a
+ * restarted name server starts with the peers it had, instead of rebuilding
+ * the registry from thousands of handshakes at once.
+ * 
+ * Every change is appended to a memory-mapped log, which costs a copy into
+ * memory and no system call. Now and then the registry is written to a
+ * snapshot and appending moves on to a fresh log. Logs and snapshots carry a
+ * generation number: a snapshot covers every log older than itself, so a
+ * crash at any point leaves either the old snapshot and both logs, or the new
+ * snapshot and the new log.
+ * 
+ * A log is a header, MAGIC and generation, followed by records: a type byte,
+ * ONL or OFL, the sequence number, and the length and bytes of the user list
+ * entry or the nickname. A zero type byte ends the log. A snapshot is MAGIC,
+ * generation, epoch, sequence number, and the length and bytes of the user
+ * list.
+ * 
+ * Changes reach the disk when the operating system writes the mapped pages,
+ * which survives the name server but not the machine crashing; snapshots are
+ * forced to disk when written. Only the log being appended to is mapped:
+ * snapshots and the logs replayed are read and written with plain calls, so
+ * that no mapping keeps a file from being replaced or truncated.
+ * 
+ * @author os75
+ */
+public class RegistryJournal {
+	private static final int MAGIC = 0x74773252;
+	private static final int LOG_SIZE = 4 * 1024 * 1024;
+	private static final int LOG_HEADER = 4 + 8;
+	private static final byte END = 0;
+	private static final byte ONL = 1;
+	private static final byte OFL = 2;
+	private static final String SNAPSHOT = "registry.snapshot";
+	private File directory;
+	private RandomAccessFile[] logs;
+	private int current;
+	private MappedByteBuffer log;
+	private long generation;
+	private long snapshotGeneration;
+	private long epoch;
+	private long sequence;
+
+	/**
+	 * Open the journal kept in a directory, creating it if needed.
+	 * 
+	 * @param directory
+	 *            The directory.
+	 * @throws IOException
+	 *             If the directory or the logs cannot be opened.
+	 */
+	public RegistryJournal(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		logs = new RandomAccessFile[2];
+		for (int i = 0; i < logs.length; i++) {
+			logs[i] = new RandomAccessFile(new File(directory, "registry-" + i
+					+ ".log"), "rw");
+		}
+	}
+
+	/**
+	 * Read the registry back from the latest snapshot and the logs since,
+	 * then write it to a new snapshot and start a fresh log. Must be called
+	 * before anything is appended.
+	 * 
+	 * @param newEpoch
+	 *            The epoch to use if there is no registry to recover.
+	 * @return The registrations, in the order they were made.
+	 * @throws IOException
+	 *             If the journal cannot be read.
+	 */
+	synchronized List<Registration> recover(long newEpoch) throws IOException {
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		File snapshot = new File(directory, SNAPSHOT);
+		if (snapshot.exists()) {
+			ByteBuffer in = read(snapshot);
+			if (in.remaining() < 4 + 8 + 8 + 8 + 4 || in.getInt() != MAGIC)
+				throw new IOException("Not a registry snapshot: " + snapshot);
+			generation = in.getLong();
+			epoch = in.getLong();
+			sequence = in.getLong();
+			int length = in.getInt();
+			if (length < 0 || length > in.remaining())
+				throw new IOException("Registry snapshot cut short: "
+						+ snapshot);
+			byte[] users = new byte[length];
+			in.get(users);
+			for (String entry : new String(users).split("&")) {
+				if (entry.length() > 0)
+					entries.put(entry.substring(0, entry.indexOf(';')), entry);
+			}
+		}
+		// Replay the logs the snapshot does not cover, oldest first.
+		long[] generations = new long[logs.length];
+		for (int i = 0; i < logs.length; i++) {
+			generations[i] = readGeneration(i);
+		}
+		int first = generations[0] <= generations[1] ? 0 : 1;
+		for (int i : new int[] { first, 1 - first }) {
+			if (generations[i] >= generation && generations[i] > 0)
+				replay(i, entries);
+		}
+		List<Registration> registrations = new ArrayList<Registration>();
+		StringBuilder users = new StringBuilder();
+		for (String entry : entries.values()) {
+			String[] split = entry.split(";");
+			// The address is always numeric, so this does not look it up.
+			registrations.add(new Registration(split[0], InetAddress
+					.getByName(split[1]), Integer.parseInt(split[2])));
+			users.append(entry).append('&');
+		}
+		if (epoch == 0)
+			epoch = newEpoch;
+		// Both logs may be needed until the new snapshot is written, so it is
+		// written before the older log is reused.
+		generation = Math.max(generations[0], Math.max(generations[1],
+				generation));
+		current = generations[0] >= generations[1] ? 0 : 1;
+		writeSnapshot(generation + 1, sequence, users.toString().getBytes());
+		rotate();
+		return registrations;
+	}
+
+	private long readGeneration(int index) throws IOException {
+		if (logs[index].length() < LOG_HEADER)
+			return 0;
+		logs[index].seek(0);
+		if (logs[index].readInt() != MAGIC)
+			return 0;
+		return logs[index].readLong();
+	}
+
+	private void replay(int index, Map<String, String> entries)
+			throws IOException {
+		byte[] content = new byte[(int) logs[index].length()];
+		logs[index].seek(0);
+		logs[index].readFully(content);
+		ByteBuffer in = ByteBuffer.wrap(content);
+		in.position(LOG_HEADER);
+		while (in.remaining() >= 1 + 8 + 2) {
+			byte type = in.get();
+			if (type != ONL && type != OFL)
+				break;
+			long sequence = in.getLong();
+			int length = in.getShort() & 0xffff;
+			if (in.remaining() < length)
+				break;
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			String payload = new String(bytes);
+			if (type == ONL) {
+				// A record torn by a crash ends the log like a short one.
+				if (!payload.endsWith("&") || payload.indexOf(';') < 0)
+					break;
+				String entry = payload.substring(0, payload.length() - 1);
+				entries.put(entry.substring(0, entry.indexOf(';')), entry);
+			} else {
+				entries.remove(payload);
+			}
+			this.sequence = Math.max(this.sequence, sequence);
+		}
+	}
+
+	/**
+	 * @return The epoch of the recovered registry.
+	 */
+	long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return The sequence number of the last recovered change.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Append a change to the log. Changes must be appended in the order of
+	 * their sequence numbers.
+	 * 
+	 * @param sequence
+	 *            The sequence number of the change.
+	 * @param online
+	 *            true if the peer came online, false if it went offline.
+	 * @param registration
+	 *            The registration of the peer.
+	 */
+	synchronized void append(long sequence, boolean online,
+			Registration registration) {
+		byte[] payload = online ? registration.getEntry() : registration
+				.getNickname().getBytes();
+		try {
+			reserve(1 + 8 + 2 + payload.length + 1);
+		} catch (IOException e) {
+			Log.warn("IOException: the registry journal is full");
+			return;
+		}
+		log.put(online ? ONL : OFL);
+		log.putLong(sequence);
+		log.putShort((short) payload.length);
+		log.put(payload);
+		log.put(log.position(), END);
+	}
+
+	/**
+	 * Make room for a record, mapping a larger part of the log if a snapshot
+	 * has not been taken in time.
+	 */
+	private void reserve(int length) throws IOException {
+		if (log.remaining() >= length)
+			return;
+		int position = log.position();
+		log = logs[current].getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, Math.max(log.capacity() * 2L, position + length));
+		log.position(position);
+	}
+
+	/**
+	 * Tells whether the log has grown enough to be worth a snapshot.
+	 * 
+	 * @return true if a snapshot should be taken.
+	 */
+	synchronized boolean needsSnapshot() {
+		return log.position() > LOG_SIZE / 2;
+	}
+
+	/**
+	 * Move on to a fresh log. Every change appended from now on is left out
+	 * of the next snapshot, which must be of the registry as it is now.
+	 * 
+	 * @return The generation of the new log, to be given to
+	 *         {@link #writeSnapshot(long, long, byte[])}.
+	 * @throws IOException
+	 *             If the new log cannot be mapped, or the snapshot for the
+	 *             current log was never written, so the older log is still
+	 *             needed.
+	 */
+	synchronized long rotate() throws IOException {
+		if (snapshotGeneration < generation)
+			throw new IOException("No snapshot covers the older log");
+		current = 1 - current;
+		generation++;
+		logs[current].setLength(0);
+		log = logs[current].getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, LOG_SIZE);
+		log.putInt(MAGIC);
+		log.putLong(generation);
+		log.put(log.position(), END);
+		return generation;
+	}
+
+	/**
+	 * Write a snapshot of the registry, replacing the previous one.
+	 * 
+	 * @param generation
+	 *            The generation of the log started at the same time.
+	 * @param sequence
+	 *            The sequence number of the last change in the snapshot.
+	 * @param users
+	 *            The user list.
+	 * @throws IOException
+	 *             If the snapshot cannot be written.
+	 */
+	void writeSnapshot(long generation, long sequence, byte[] users)
+			throws IOException {
+		File temporary = new File(directory, SNAPSHOT + ".tmp");
+		ByteBuffer out = ByteBuffer.allocate(4 + 8 + 8 + 8 + 4 + users.length);
+		out.putInt(MAGIC);
+		out.putLong(generation);
+		out.putLong(epoch);
+		out.putLong(sequence);
+		out.putInt(users.length);
+		out.put(users);
+		out.flip();
+		RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		File snapshot = new File(directory, SNAPSHOT);
+		try {
+			Files.move(temporary.toPath(), snapshot.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary.toPath(), snapshot.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		synchronized (this) {
+			snapshotGeneration = Math.max(snapshotGeneration, generation);
+		}
+	}
+
+	private static ByteBuffer read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package twit2.nameserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * A RosterQuery asks the name server for part of the user list instead of
+ * all of it, on the form "QUERY [prefix=p] [after=nickname] [limit=n]". The
+ * answer is one line, "RESULT more|end entries...", with the entries as in
+ * the user list and in nickname order. After "more", the next page is asked
+ * for with after set to the last nickname of this one.
+ * 
+ * @author os75
+ */
+final class RosterQuery {
+	static final String COMMAND = "QUERY";
+	static final int DEFAULT_LIMIT = 100;
+	static final int MAX_LIMIT = 1000;
+
+	private String prefix;
+	private String after;
+	private int limit;
+
+	private RosterQuery() {
+		prefix = "";
+		limit = DEFAULT_LIMIT;
+	}
+
+	/**
+	 * Parse a query. Unknown options are ignored, and a limit which is not a
+	 * number, or is out of range, is replaced by the nearest valid one.
+	 * 
+	 * @param message
+	 *            The message.
+	 * @return The query.
+	 */
+	static RosterQuery parse(String message) {
+		RosterQuery query = new RosterQuery();
+		String[] split = message.trim().split(" ");
+		for (int i = 1; i < split.length; i++) {
+			int equals = split[i].indexOf('=');
+			if (equals == -1)
+				continue;
+			String name = split[i].substring(0, equals);
+			String value = split[i].substring(equals + 1);
+			if (name.equals("prefix")) {
+				query.prefix = value;
+			} else if (name.equals("after")) {
+				query.after = value;
+			} else if (name.equals("limit")) {
+				try {
+					query.limit = Math.max(1,
+							Math.min(MAX_LIMIT, Integer.parseInt(value)));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Answer the query.
+	 * 
+	 * @param registry
+	 *            The registry to search.
+	 * @return The answer, ending with a line feed.
+	 */
+	byte[] answer(PeerRegistry registry) {
+		List<Registration> found = registry.find(prefix, after, limit);
+		boolean more = found.size() > limit;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = (more ? "RESULT more " : "RESULT end ").getBytes();
+		out.write(header, 0, header.length);
+		// The entries are encoded when each peer registers.
+		for (int i = 0; i < found.size() && i < limit; i++) {
+			byte[] entry = found.get(i).getEntry();
+			out.write(entry, 0, entry.length);
+		}
+		out.write('\n');
+		return out.toByteArray();
+	}
+}
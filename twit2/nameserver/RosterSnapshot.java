@@ -0,0 +1,231 @@
+package twit2.nameserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import twit2.io.Compression;
+import twit2.io.Frame;
+import twit2.io.PresenceCodec;
+
+/**
+ * A RosterSnapshot is the user list as sent to newly registered peers,
+ * already encoded, at a given version of the registry. Snapshots never change,
+ * so peers registering at the same version all share the same bytes. The
+ * other forms, in binary, in chunks or deflated, are only made once a peer
+ * asks for them, and then shared in the same way until the registry
+ * changes.
+ * 
+ * @author os75
+ */
+final class RosterSnapshot {
+	/** The size of the chunks a big user list is cut into. */
+	static final int CHUNK_SIZE = 16 * 1024;
+	private final long version;
+	private final byte[] bytes;
+	private final Registration[] registrations;
+	// Made on first use, as only some peers ask for them.
+	private volatile byte[] sequencedBytes;
+	private volatile byte[] binaryBytes;
+	private volatile byte[] binarySequencedBytes;
+	// The frames of each form sent so far, guarded by itself.
+	private final Frame[][] frames;
+
+	private RosterSnapshot(long version, byte[] bytes,
+			Registration[] registrations) {
+		this.version = version;
+		this.bytes = bytes;
+		this.registrations = registrations;
+		frames = new Frame[16][];
+	}
+
+	/**
+	 * @return The snapshot of an empty registry.
+	 */
+	static RosterSnapshot empty() {
+		return new RosterSnapshot(0, new byte[0], new Registration[0]);
+	}
+
+	/**
+	 * Make a snapshot of the registry. The entries are encoded when each peer
+	 * registers, so this only copies them.
+	 * 
+	 * @param version
+	 *            The sequence number of the last change to the registry.
+	 * @param registrations
+	 *            The registrations, which may change while the snapshot is
+	 *            made; it holds those seen in one pass over them.
+	 * @return The snapshot.
+	 */
+	static RosterSnapshot build(long version,
+			Collection<Registration> registrations) {
+		Registration[] seen = registrations.toArray(new Registration[0]);
+		int length = 0;
+		for (Registration registration : seen) {
+			length += registration.getEntry().length;
+		}
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		for (Registration registration : seen) {
+			byte[] entry = registration.getEntry();
+			System.arraycopy(entry, 0, bytes, offset, entry.length);
+			offset += entry.length;
+		}
+		return new RosterSnapshot(version, bytes, seen);
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the snapshot as sent to peers which asked for sequenced updates, on
+	 * the form "SNAP epoch:version length" followed by length bytes of user
+	 * list.
+	 * 
+	 * @param epoch
+	 *            The epoch of the name server.
+	 * @return The encoded snapshot.
+	 */
+	byte[] getSequencedBytes(long epoch) {
+		byte[] sequenced = sequencedBytes;
+		if (sequenced == null) {
+			byte[] header = ("SNAP " + epoch + ":" + version + " "
+					+ bytes.length + "\n").getBytes();
+			sequenced = new byte[header.length + bytes.length];
+			System.arraycopy(header, 0, sequenced, 0, header.length);
+			System.arraycopy(bytes, 0, sequenced, header.length, bytes.length);
+			sequencedBytes = sequenced;
+		}
+		return sequenced;
+	}
+
+	/**
+	 * Get the snapshot as sent to peers which receive presence in binary: the
+	 * header of a roster followed by the ONL record of every peer.
+	 * 
+	 * @param sequenced
+	 *            Whether the peer asked for sequenced updates, and so is told
+	 *            the epoch and version.
+	 * @param epoch
+	 *            The epoch of the name server.
+	 * @return The encoded snapshot.
+	 * @see PresenceCodec
+	 */
+	byte[] getBinaryBytes(boolean sequenced, long epoch) {
+		byte[] binary = sequenced ? binarySequencedBytes : binaryBytes;
+		if (binary == null) {
+			byte[] header = PresenceCodec.rosterHeader(
+					sequenced ? PresenceCodec.SEQUENCED : 0, epoch, version);
+			int length = header.length;
+			for (Registration registration : registrations) {
+				length += registration.getBinaryEntry().length;
+			}
+			binary = new byte[length];
+			System.arraycopy(header, 0, binary, 0, header.length);
+			int offset = header.length;
+			for (Registration registration : registrations) {
+				byte[] entry = registration.getBinaryEntry();
+				System.arraycopy(entry, 0, binary, offset, entry.length);
+				offset += entry.length;
+			}
+			if (sequenced)
+				binarySequencedBytes = binary;
+			else
+				binaryBytes = binary;
+		}
+		return binary;
+	}
+
+	/**
+	 * Get the snapshot as the frames sent to a peer. A peer which asked for
+	 * chunks gets a big list cut into several, each holding whole entries, so
+	 * that it can show them as they arrive: {@link Frame#CHUNK} frames
+	 * holding the type of the list and a piece of it, then a frame of that
+	 * type holding the rest. A peer which asked for it gets each frame
+	 * deflated. The frames of each form are only made for the first peer to
+	 * ask for them, while the others wait.
+	 * 
+	 * @param binary
+	 *            Whether the peer receives presence in binary.
+	 * @param sequenced
+	 *            Whether the peer asked for sequenced updates.
+	 * @param epoch
+	 *            The epoch of the name server.
+	 * @param chunked
+	 *            Whether the peer accepts the list in chunks.
+	 * @param deflate
+	 *            Whether the peer accepts deflated frames.
+	 * @return The frames.
+	 */
+	Frame[] getFrames(boolean binary, boolean sequenced, long epoch,
+			boolean chunked, boolean deflate) {
+		int form = (binary ? 1 : 0) | (sequenced ? 2 : 0) | (chunked ? 4 : 0)
+				| (deflate ? 8 : 0);
+		synchronized (frames) {
+			Frame[] cached = frames[form];
+			if (cached == null) {
+				byte type = binary ? Frame.ROSTER : Frame.USER_LIST;
+				if (chunked)
+					cached = cut(type, binary, sequenced, epoch);
+				else if (binary)
+					cached = new Frame[] { new Frame(type, getBinaryBytes(
+							sequenced, epoch)) };
+				else
+					cached = new Frame[] { new Frame(type,
+							sequenced ? getSequencedBytes(epoch) : bytes) };
+				if (deflate) {
+					for (int i = 0; i < cached.length; i++) {
+						cached[i] = Compression.deflate(cached[i]);
+					}
+				}
+				frames[form] = cached;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Cut the snapshot into chunks of about {@link #CHUNK_SIZE} bytes, between
+	 * two entries.
+	 */
+	private Frame[] cut(byte type, boolean binary, boolean sequenced,
+			long epoch) {
+		byte[] header;
+		if (binary)
+			header = PresenceCodec.rosterHeader(
+					sequenced ? PresenceCodec.SEQUENCED : 0, epoch, version);
+		else if (sequenced)
+			header = ("SNAP " + epoch + ":" + version + " " + bytes.length
+					+ "\n").getBytes();
+		else
+			header = new byte[0];
+		List<Frame> chunks = new ArrayList<Frame>();
+		ByteArrayOutputStream piece = new ByteArrayOutputStream(CHUNK_SIZE
+				+ CHUNK_SIZE / 4);
+		piece.write(header, 0, header.length);
+		for (Registration registration : registrations) {
+			if (piece.size() >= CHUNK_SIZE) {
+				chunks.add(chunk(type, piece.toByteArray()));
+				piece.reset();
+			}
+			byte[] entry = binary ? registration.getBinaryEntry()
+					: registration.getEntry();
+			piece.write(entry, 0, entry.length);
+		}
+		chunks.add(new Frame(type, piece.toByteArray()));
+		return chunks.toArray(new Frame[chunks.size()]);
+	}
+
+	private static Frame chunk(byte type, byte[] piece) {
+		byte[] payload = new byte[1 + piece.length];
+		payload[0] = type;
+		System.arraycopy(piece, 0, payload, 1, piece.length);
+		return new Frame(Frame.CHUNK, payload);
+	}
+}
@@ -1,36 +1,182 @@
 package twit2.nameserver;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
+import twit2.io.FlushPolicy;
+import twit2.log.Log;
+
 /**
  * The Runner class runs the name-server.
  * 
  * @author os75
  */
 public class Runner {
+	private static final int DEFAULT_PORT = 60514;
+	private static final int DEFAULT_REACTORS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int DEFAULT_BATCH = 256;
+	private static final long HOST_NAME_TTL = 10 * 60 * 1000;
+	private static final long HOST_NAME_NEGATIVE_TTL = 60 * 1000;
+	private static final long DEFAULT_GRACE = 60 * 1000;
+	private static final String DEFAULT_CONNECT_BURST = "50";
+	private static final String DEFAULT_REGISTER_BURST = "20";
+	// Peers send KEEPALIVE every 3 seconds.
+	private static final long DEFAULT_IDLE_TIMEOUT = 15 * 1000;
+
 	/**
 	 * Runs the name server.
 	 * 
 	 * @param args
-	 *            If provided, uses the first argument as the port number at
-	 *            which the name server is run.
+	 *            If provided, uses the first argument that is not an option
+	 *            as the port number at which the name server is run. Options
+	 *            are given as --name=value:
+	 *            <ul>
+	 *            <li>--engine=blocking|nio selects whether each peer is
+	 *            handled by a thread of its own (the default) or by a small
+	 *            set of reactor threads.</li>
+	 *            <li>--executor=platform|virtual selects whether the blocking
+	 *            engine runs each peer on a platform thread (the default) or
+	 *            on a virtual thread.</li>
+	 *            <li>--coalesce=ms collects presence updates for ms
+	 *            milliseconds and sends them as one batch. 0, the default,
+	 *            sends each update straight away.</li>
+	 *            <li>--batch=n sends a batch as soon as it holds n updates.</li>
+	 *            <li>--idle-timeout=ms closes the connection of a peer which
+	 *            sends nothing, not even KEEPALIVE, for ms milliseconds. 0
+	 *            keeps connections open until they fail. 15 seconds by
+	 *            default.</li>
+	 *            <li>--max-connections=n turns connections away while n are
+	 *            open. 0, the default, sets no limit.</li>
+	 *            <li>--connect-rate=r and --connect-burst=n allow each
+	 *            address r connections per second, and n at once. A rate of
+	 *            0, the default, sets no limit; the burst is 50 by default.
+	 *            Peers behind one NAT share an address, so a rate suited to
+	 *            the deployment must be chosen.</li>
+	 *            <li>--register-rate=r and --register-burst=n do the same for
+	 *            registrations, with no limit and a burst of 20 by
+	 *            default.</li>
+	 *            <li>--history=n keeps the last n presence updates, so that
+	 *            peers which reconnect are only sent what they missed.</li>
+	 *            <li>--journal=dir keeps the registry in the directory dir,
+	 *            and recovers it from there on start.</li>
+	 *            <li>--grace=ms keeps recovered peers for ms milliseconds
+	 *            while they re-attach, a minute by default.</li>
+	 *            <li>--resolve-hosts shows host names in the log, looked up
+	 *            in the background, instead of addresses.</li>
+	 *            <li>--cluster-port=n makes the name server a node of a
+	 *            cluster, which other nodes connect to at port n.</li>
+	 *            <li>--cluster-host=host is the host name other nodes reach
+	 *            this node at, localhost by default.</li>
+	 *            <li>--join=host:port joins the cluster of the node with the
+	 *            given host name and cluster port.</li>
+	 *            <li>--reactors=n sets the number of reactor threads used by
+	 *            the nio engine.</li>
+	 *            <li>--flush=immediate|batch|us chooses when the nio engine
+	 *            writes to a peer: as soon as a message is queued (the
+	 *            default), at the end of each broadcast, or us microseconds
+	 *            after the first message was queued.</li>
+	 *            <li>--log-level=level logs events from the level up: debug,
+	 *            info, the default, warn, error or off.</li>
+	 *            <li>--log-sample=n only logs one out of every n events which
+	 *            happen for every presence update. 1 by default.</li>
+	 *            <li>--metrics-port=n serves the metrics of the name server
+	 *            at http://localhost:n/metrics. They are always readable over
+	 *            JMX.</li>
+	 *            </ul>
 	 */
 	public static void main(String[] args) {
-		int port;
-		if (args.length == 0)
-			port = 60514;
-		else
-			port = Integer.parseInt(args[0]);
+		int port = DEFAULT_PORT;
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int split = arg.indexOf('=');
+				if (split == -1)
+					options.put(arg.substring(2), "true");
+				else
+					options.put(arg.substring(2, split),
+							arg.substring(split + 1));
+			} else {
+				port = Integer.parseInt(arg);
+			}
+		}
 		try {
-			NameServer server = new NameServer(port);
+			Log.setLevel(Log.parseLevel(getOption(options, "log-level", "info")));
+			Log.setSampling(Integer.parseInt(getOption(options, "log-sample",
+					"1")));
+			NameServer server = createServer(port, options);
+			server.setFlushPolicy(FlushPolicy.parse(getOption(options,
+					"flush", "immediate")));
+			server.setPresenceBatching(
+					Long.parseLong(getOption(options, "coalesce", "0")),
+					Integer.parseInt(getOption(options, "batch",
+							Integer.toString(DEFAULT_BATCH))));
+			AdmissionControl admission = new AdmissionControl(
+					Integer.parseInt(getOption(options, "max-connections", "0")),
+					Double.parseDouble(getOption(options, "connect-rate", "0")),
+					Integer.parseInt(getOption(options, "connect-burst",
+							DEFAULT_CONNECT_BURST)),
+					Double.parseDouble(getOption(options, "register-rate", "0")),
+					Integer.parseInt(getOption(options, "register-burst",
+							DEFAULT_REGISTER_BURST)));
+			server.setAdmissionControl(admission);
+			Log.info("Admission control: {}", admission.getLimits());
+			server.setIdleTimeout(Long.parseLong(getOption(options,
+					"idle-timeout", Long.toString(DEFAULT_IDLE_TIMEOUT))));
+			server.setPresenceHistory(Integer.parseInt(getOption(options,
+					"history", Integer.toString(NameServer.DEFAULT_HISTORY))));
+			if (options.containsKey("resolve-hosts"))
+				server.setHostNameCache(new HostNameCache(HOST_NAME_TTL,
+						HOST_NAME_NEGATIVE_TTL));
+			if (options.containsKey("journal")) {
+				if (options.containsKey("cluster-port"))
+					throw new IllegalArgumentException(
+							"A cluster node recovers the user list from the "
+									+ "other nodes, and cannot keep a journal.");
+				server.recover(new RegistryJournal(new File(options
+						.get("journal"))), Long.parseLong(getOption(options,
+						"grace", Long.toString(DEFAULT_GRACE))));
+			}
+			Cluster cluster = null;
+			if (options.containsKey("cluster-port")) {
+				cluster = new Cluster(server, getOption(options,
+						"cluster-host", "localhost"),
+						Integer.parseInt(options.get("cluster-port")));
+				server.setCluster(cluster);
+				cluster.start();
+			}
+			try {
+				server.getMetrics().registerMBean();
+			} catch (JMException e) {
+				System.out.println("The metrics could not be registered with "
+						+ "JMX: " + e.getMessage());
+			}
+			if (options.containsKey("metrics-port"))
+				new MetricsEndpoint(server.getMetrics(),
+						Integer.parseInt(options.get("metrics-port")));
 			server.start();
-			System.out.println("Enter QUIT to shut down the server.");
+			if (cluster != null && options.containsKey("join")) {
+				String join = options.get("join");
+				int colon = join.lastIndexOf(':');
+				cluster.join(join.substring(0, colon),
+						Integer.parseInt(join.substring(colon + 1)));
+			}
+			System.out.println("Enter QUIT to shut down the server, or STATS "
+					+ "to show the metrics.");
 			Scanner in = new Scanner(System.in);
 			while (in.hasNext()) {
-				if (in.next().equalsIgnoreCase("quit")) {
-					System.out.println("Server shutting down.");
+				String command = in.next();
+				if (command.equalsIgnoreCase("quit")) {
+					Log.info("Server shutting down.");
 					System.exit(0);
+				} else if (command.equalsIgnoreCase("stats")) {
+					System.out.println(admission);
+					System.out.print(server.getMetrics());
 				}
 			}
 
@@ -38,4 +184,39 @@ public class Runner {
 			System.out.println("An IO error occured.");
 		}
 	}
+
+	/**
+	 * Create a name server using the engine selected by the options.
+	 * 
+	 * @param port
+	 *            A port number.
+	 * @param options
+	 *            The options given on the command line.
+	 * @return A name server which has not been started.
+	 * @throws IOException
+	 *             If an error occurs while setting up the server.
+	 */
+	private static NameServer createServer(int port,
+			Map<String, String> options) throws IOException {
+		String engine = getOption(options, "engine", "blocking");
+		if (engine.equalsIgnoreCase("nio")) {
+			int reactors = Integer.parseInt(getOption(options, "reactors",
+					Integer.toString(DEFAULT_REACTORS)));
+			return new NioNameServer(port, reactors);
+		} else if (engine.equalsIgnoreCase("blocking")) {
+			String executor = getOption(options, "executor",
+					HandlerExecutors.PLATFORM);
+			return new NameServer(port, HandlerExecutors.create(executor));
+		} else {
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+
+	private static String getOption(Map<String, String> options, String name,
+			String defaultValue) {
+		String value = options.get(name);
+		if (value == null)
+			return defaultValue;
+		return value;
+	}
 }
@@ -0,0 +1,221 @@
+package twit2.nameserver;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The ServerMetrics of a name server count what it does, so that its
+ * behaviour under load can be watched and compared between versions. The
+ * counters are updated on every read, write and broadcast, so they are
+ * striped to cost little more than an addition even with many handler
+ * threads; the work is done when they are read, through JMX or the
+ * {@link MetricsEndpoint}.
+ * 
+ * @author os75
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final String OBJECT_NAME = "twit2.nameserver:type=NameServer";
+	// The registration rate is measured over at least this many milliseconds.
+	private static final long RATE_INTERVAL = 5000;
+	private NameServer server;
+	private StripedCounter connectionsAccepted;
+	private StripedCounter registrations;
+	private StripedCounter nicknamesRejected;
+	private StripedCounter bytesIn;
+	private StripedCounter bytesOut;
+	private StripedCounter queuedMessages;
+	private Histogram fanOut;
+	private Histogram fanOutLatency;
+	// The last two samples of the registration count, guarded by this.
+	private long[] rateSamples;
+	private long[] rateTimes;
+
+	ServerMetrics(NameServer server) {
+		this.server = server;
+		connectionsAccepted = new StripedCounter();
+		registrations = new StripedCounter();
+		nicknamesRejected = new StripedCounter();
+		bytesIn = new StripedCounter();
+		bytesOut = new StripedCounter();
+		queuedMessages = new StripedCounter();
+		fanOut = new Histogram();
+		fanOutLatency = new Histogram();
+		long now = System.currentTimeMillis();
+		rateSamples = new long[2];
+		rateTimes = new long[] { now, now };
+	}
+
+	/**
+	 * Make the metrics readable over JMX, under {@link #OBJECT_NAME}.
+	 * 
+	 * @throws JMException
+	 *             If the metrics cannot be registered, for instance because
+	 *             another name server in the same JVM already has.
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(OBJECT_NAME));
+	}
+
+	void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	void registered() {
+		registrations.increment();
+	}
+
+	void nicknameRejected() {
+		nicknamesRejected.increment();
+	}
+
+	void received(int bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void sent(int bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void queued(int messages) {
+		queuedMessages.add(messages);
+	}
+
+	/**
+	 * Record a broadcast of presence updates.
+	 * 
+	 * @param peers
+	 *            The number of peers the updates were queued for.
+	 * @param nanos
+	 *            The number of nanoseconds it took.
+	 */
+	void fannedOut(int peers, long nanos) {
+		fanOut.record(peers);
+		fanOutLatency.record(nanos / 1000);
+	}
+
+	public int getConnectedPeers() {
+		return server.getConnectedPeers();
+	}
+
+	public int getRegisteredPeers() {
+		return server.getRegisteredPeers();
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+
+	public long getConnectionsRejected() {
+		AdmissionControl admission = server.getAdmissionControl();
+		if (admission == null)
+			return 0;
+		return admission.getOverCapacity() + admission.getConnectsLimited();
+	}
+
+	public long getRegistrations() {
+		return registrations.get();
+	}
+
+	public synchronized double getRegistrationsPerSecond() {
+		long now = System.currentTimeMillis();
+		long count = registrations.get();
+		if (now - rateTimes[1] >= RATE_INTERVAL) {
+			rateSamples[0] = rateSamples[1];
+			rateTimes[0] = rateTimes[1];
+			rateSamples[1] = count;
+			rateTimes[1] = now;
+		}
+		long elapsed = now - rateTimes[0];
+		return elapsed == 0 ? 0 : (count - rateSamples[0]) * 1000.0 / elapsed;
+	}
+
+	public long getNicknamesRejected() {
+		return nicknamesRejected.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getBroadcasts() {
+		return fanOut.getCount();
+	}
+
+	public double getFanOutMean() {
+		return fanOut.getMean();
+	}
+
+	public long getFanOutMax() {
+		return fanOut.getPercentile(100);
+	}
+
+	public double getFanOutLatencyMeanMicros() {
+		return fanOutLatency.getMean();
+	}
+
+	public long getFanOutLatency50Micros() {
+		return fanOutLatency.getPercentile(50);
+	}
+
+	public long getFanOutLatency99Micros() {
+		return fanOutLatency.getPercentile(99);
+	}
+
+	public long getFanOutLatency999Micros() {
+		return fanOutLatency.getPercentile(99.9);
+	}
+
+	public long getQueuedMessages() {
+		return queuedMessages.get();
+	}
+
+	public int getPendingUpdates() {
+		return server.getPendingUpdates();
+	}
+
+	public int getThreads() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Format the metrics one per line, as "name value", in the text format
+	 * most monitoring systems can scrape.
+	 * 
+	 * @return The metrics.
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "connected_peers", getConnectedPeers());
+		line(sb, "registered_peers", getRegisteredPeers());
+		line(sb, "connections_accepted_total", getConnectionsAccepted());
+		line(sb, "connections_rejected_total", getConnectionsRejected());
+		line(sb, "registrations_total", getRegistrations());
+		line(sb, "registrations_per_second", getRegistrationsPerSecond());
+		line(sb, "nicknames_rejected_total", getNicknamesRejected());
+		line(sb, "bytes_in_total", getBytesIn());
+		line(sb, "bytes_out_total", getBytesOut());
+		line(sb, "broadcasts_total", getBroadcasts());
+		line(sb, "fan_out_mean", getFanOutMean());
+		line(sb, "fan_out_max", getFanOutMax());
+		line(sb, "fan_out_latency_mean_micros", getFanOutLatencyMeanMicros());
+		line(sb, "fan_out_latency_p50_micros", getFanOutLatency50Micros());
+		line(sb, "fan_out_latency_p99_micros", getFanOutLatency99Micros());
+		line(sb, "fan_out_latency_p999_micros", getFanOutLatency999Micros());
+		line(sb, "queued_messages", getQueuedMessages());
+		line(sb, "pending_updates", getPendingUpdates());
+		line(sb, "threads", getThreads());
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, Object value) {
+		sb.append("twit2_nameserver_").append(name).append(' ').append(value)
+				.append('\n');
+	}
+}
@@ -0,0 +1,67 @@
+package twit2.nameserver;
+
+/**
+ * The management interface of {@link ServerMetrics}, through which the
+ * metrics of a name server are read over JMX.
+ * 
+ * @author os75
+ */
+public interface ServerMetricsMBean {
+	/**
+	 * @return The number of peers connected to this name server.
+	 */
+	int getConnectedPeers();
+
+	/**
+	 * @return The number of peers in the user list, including those connected
+	 *         to other nodes of the cluster.
+	 */
+	int getRegisteredPeers();
+
+	long getConnectionsAccepted();
+
+	long getConnectionsRejected();
+
+	long getRegistrations();
+
+	/**
+	 * @return The number of registrations per second, over the last few
+	 *         seconds.
+	 */
+	double getRegistrationsPerSecond();
+
+	long getNicknamesRejected();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * @return The number of presence updates sent to the connected peers.
+	 */
+	long getBroadcasts();
+
+	double getFanOutMean();
+
+	long getFanOutMax();
+
+	double getFanOutLatencyMeanMicros();
+
+	long getFanOutLatency50Micros();
+
+	long getFanOutLatency99Micros();
+
+	long getFanOutLatency999Micros();
+
+	/**
+	 * @return The number of messages waiting to be written to peers.
+	 */
+	long getQueuedMessages();
+
+	/**
+	 * @return The number of presence updates waiting to be batched.
+	 */
+	int getPendingUpdates();
+
+	int getThreads();
+}
@@ -0,0 +1,65 @@
+package twit2.nameserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A StripedCounter is a counter which many threads can add to at once
+ * without all of them updating the same memory. Each thread adds to one of
+ * several cells, picked by its id, and the cells are summed when the counter
+ * is read, so writes are cheap and reads are not.
+ * 
+ * @author os75
+ */
+final class StripedCounter {
+	// Cells are spaced a cache line apart, so threads adding to different
+	// cells do not slow each other down.
+	static final int PADDING = 8;
+	static final int STRIPES = stripes();
+	private final AtomicLongArray cells;
+
+	StripedCounter() {
+		cells = new AtomicLongArray(STRIPES * PADDING);
+	}
+
+	/**
+	 * @return A power of two at least as large as the number of processors.
+	 */
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors())
+			stripes <<= 1;
+		return stripes;
+	}
+
+	/**
+	 * @return The stripe of the current thread.
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	void decrement() {
+		add(-1);
+	}
+
+	void add(long delta) {
+		cells.addAndGet(stripe() * PADDING, delta);
+	}
+
+	/**
+	 * @return The sum of the cells. Not a snapshot if the counter is being
+	 *         added to at the same time.
+	 */
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,71 @@
+package twit2.nameserver;
+
+/**
+ * A Subscriber is a registered client receiving presence updates, along with
+ * what it already knows and how it wants to receive them.
+ * 
+ * @author os75
+ */
+final class Subscriber {
+	private final Client client;
+	private final long joinedAt;
+	private final boolean batches;
+	private final boolean sequenced;
+	private final boolean binary;
+
+	/**
+	 * @param client
+	 *            The client.
+	 * @param joinedAt
+	 *            The sequence number of the last change included in the user
+	 *            list the client was sent.
+	 * @param batches
+	 *            Whether the client accepts several updates in one message.
+	 * @param sequenced
+	 *            Whether the client is told the sequence number of the updates
+	 *            it has been sent, to give when it reconnects.
+	 * @param binary
+	 *            Whether the client receives presence in binary, in frames.
+	 *            Implies batches.
+	 */
+	Subscriber(Client client, long joinedAt, boolean batches,
+			boolean sequenced, boolean binary) {
+		this.client = client;
+		this.joinedAt = joinedAt;
+		this.batches = batches;
+		this.sequenced = sequenced;
+		this.binary = binary;
+	}
+
+	Client getClient() {
+		return client;
+	}
+
+	long getJoinedAt() {
+		return joinedAt;
+	}
+
+	boolean batches() {
+		return batches;
+	}
+
+	boolean isSequenced() {
+		return sequenced;
+	}
+
+	boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Tells whether an update should be sent to this subscriber, that is if
+	 * it is not already reflected in the user list the subscriber was sent.
+	 * 
+	 * @param event
+	 *            A presence update.
+	 * @return true if the update should be sent.
+	 */
+	boolean needs(PresenceEvent event) {
+		return joinedAt < event.getSequence() && joinedAt >= event.getSince();
+	}
+}
@@ -0,0 +1,361 @@
+package twit2.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.SwingUtilities;
+
+import twit2.log.Log;
+
+/**
+ * The ClientReactor services every socket of the client from a single
+ * thread: the connection with the name server, every chat, and the server
+ * socket at which other peers start chats. It waits for any of them to
+ * become readable, writable or, for the server socket, acceptable, and runs
+ * the periodic tasks, such as sending KEEPALIVE, in between. An open chat
+ * therefore costs a registered channel rather than a thread.
+ * 
+ * What is read is handed to the {@link Connection.Handler} of the
+ * connection, on the reactor thread. Whatever the handlers want shown is
+ * passed to {@link #dispatch(Runnable)}; everything dispatched while handling
+ * one round of ready sockets is run on the event dispatch thread in one go,
+ * so a burst of messages costs Swing one event rather than one per message.
+ * 
+ * @author os75
+ */
+public final class ClientReactor extends Thread {
+	private final Selector selector;
+	// Registrations to make on the reactor thread.
+	private final Queue<Runnable> pending;
+	private final List<Periodic> tasks;
+	// The events dispatched since the last batch; only touched by the
+	// reactor.
+	private final List<Runnable> batch;
+	private volatile boolean running;
+
+	/**
+	 * Create a new reactor, which services nothing until it is started.
+	 * 
+	 * @throws IOException
+	 *             If the selector cannot be opened.
+	 */
+	public ClientReactor() throws IOException {
+		super("client-reactor");
+		setDaemon(true);
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<Runnable>();
+		tasks = new CopyOnWriteArrayList<Periodic>();
+		batch = new ArrayList<Runnable>();
+		running = true;
+	}
+
+	/**
+	 * Hand a connected socket to the reactor, which reads from it from then
+	 * on.
+	 * 
+	 * @param channel
+	 *            A connected channel. It is made non-blocking.
+	 * @param framed
+	 *            true if the peer sends frames.
+	 * @param maxLength
+	 *            The longest frame accepted, and the most read at once from a
+	 *            peer which does not send frames.
+	 * @param handler
+	 *            The handler of the messages read.
+	 * @return The connection, on which messages can be sent straight away.
+	 * @throws IOException
+	 *             If the channel cannot be made non-blocking.
+	 */
+	public Connection register(SocketChannel channel, boolean framed,
+			int maxLength, Connection.Handler handler) throws IOException {
+		return register(channel, framed, false, maxLength, handler);
+	}
+
+	/**
+	 * Hand a connected socket to the reactor, telling whether the peer sends
+	 * frames from the first byte it sends. Until then, messages are sent
+	 * bare, as a peer which does not know about frames expects them.
+	 * 
+	 * @param channel
+	 *            A connected channel. It is made non-blocking.
+	 * @param maxLength
+	 *            The longest frame accepted, and the most read at once from a
+	 *            peer which does not send frames.
+	 * @param handler
+	 *            The handler of the messages read.
+	 * @return The connection, on which messages can be sent straight away.
+	 * @throws IOException
+	 *             If the channel cannot be made non-blocking.
+	 */
+	public Connection register(SocketChannel channel, int maxLength,
+			Connection.Handler handler) throws IOException {
+		return register(channel, false, true, maxLength, handler);
+	}
+
+	private Connection register(SocketChannel channel, boolean framed,
+			boolean detect, int maxLength, Connection.Handler handler)
+			throws IOException {
+		channel.configureBlocking(false);
+		final Connection connection = new Connection(this, channel, framed,
+				detect, maxLength, handler);
+		pending.add(new Runnable() {
+			public void run() {
+				register(connection);
+			}
+		});
+		selector.wakeup();
+		return connection;
+	}
+
+	/**
+	 * Accept connections at a server socket. Whether a peer connecting sends
+	 * frames is told from the first byte it sends.
+	 * 
+	 * @param server
+	 *            A bound server socket. It is made non-blocking, and stops
+	 *            being serviced once it is closed.
+	 * @param maxLength
+	 *            The longest frame accepted on a connection.
+	 * @param handler
+	 *            The handler of every accepted connection, until it hands the
+	 *            connection to another.
+	 * @throws IOException
+	 *             If the socket cannot be made non-blocking.
+	 */
+	public void listen(final ServerSocketChannel server, int maxLength,
+			Connection.Handler handler) throws IOException {
+		server.configureBlocking(false);
+		final Listener listener = new Listener(server, maxLength, handler);
+		pending.add(new Runnable() {
+			public void run() {
+				try {
+					server.register(selector, SelectionKey.OP_ACCEPT, listener);
+				} catch (ClosedChannelException e) {
+				}
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the reactor thread every so often, until it is
+	 * cancelled.
+	 * 
+	 * @param task
+	 *            The task. It must not block.
+	 * @param period
+	 *            The number of milliseconds between two runs, the first being
+	 *            one period from now.
+	 * @return The handle by which the task is cancelled.
+	 */
+	public Periodic schedule(Runnable task, long period) {
+		Periodic periodic = new Periodic(task, period);
+		tasks.add(periodic);
+		selector.wakeup();
+		return periodic;
+	}
+
+	/**
+	 * Have an event run on the event dispatch thread, with the others of the
+	 * same batch. Events are run in the order they were dispatched in.
+	 * Called by the handlers and tasks run by the reactor; an event
+	 * dispatched by any other thread is run on its own.
+	 * 
+	 * @param event
+	 *            The event, which may touch Swing components.
+	 */
+	public void dispatch(Runnable event) {
+		if (Thread.currentThread() == this)
+			batch.add(event);
+		else
+			SwingUtilities.invokeLater(event);
+	}
+
+	/**
+	 * Wake the reactor so that changes in interest take effect.
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Service the sockets until the reactor is killed.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select(runTasks());
+				Runnable registration;
+				while ((registration = pending.poll()) != null) {
+					registration.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.attachment() instanceof Listener) {
+						if (key.isValid() && key.isAcceptable())
+							((Listener) key.attachment()).accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+				}
+			} catch (IOException e) {
+				Log.error("IOException in the client reactor", e);
+			}
+			dispatchBatch();
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection)
+				((Connection) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void register(Connection connection) {
+		try {
+			SocketChannel channel = connection.getChannel();
+			connection.setKey(channel.register(selector,
+					SelectionKey.OP_READ, connection));
+		} catch (ClosedChannelException e) {
+			// Closed before it was registered.
+		}
+	}
+
+	/**
+	 * Run the tasks which are due.
+	 * 
+	 * @return The number of milliseconds until the next one is due, or 0 if
+	 *         there is none.
+	 */
+	private long runTasks() {
+		long now = System.currentTimeMillis();
+		long wait = 0;
+		for (Periodic task : tasks) {
+			if (now >= task.next) {
+				task.next = now + task.period;
+				try {
+					task.task.run();
+				} catch (RuntimeException e) {
+					Log.error("A task of the client reactor failed", e);
+				}
+			}
+			long left = Math.max(1, task.next - now);
+			if (wait == 0 || left < wait)
+				wait = left;
+		}
+		return wait;
+	}
+
+	/**
+	 * Run the events dispatched during this round on the event dispatch
+	 * thread, together.
+	 */
+	private void dispatchBatch() {
+		if (batch.isEmpty())
+			return;
+		final Runnable[] events = batch.toArray(new Runnable[batch.size()]);
+		batch.clear();
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				for (Runnable event : events) {
+					try {
+						event.run();
+					} catch (RuntimeException e) {
+						Log.error("An event of the client reactor failed", e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the reactor and close all its connections.
+	 */
+	public void kill() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * A task run every so often by the reactor.
+	 */
+	public final class Periodic {
+		private final Runnable task;
+		private final long period;
+		// Only touched by the reactor.
+		private long next;
+
+		private Periodic(Runnable task, long period) {
+			this.task = task;
+			this.period = period;
+			next = System.currentTimeMillis() + period;
+		}
+
+		/**
+		 * Stop running the task. It may run once more if it is being run
+		 * already.
+		 */
+		public void cancel() {
+			tasks.remove(this);
+		}
+	}
+
+	/**
+	 * A server socket, and what to do with the connections it accepts.
+	 */
+	private final class Listener {
+		private final ServerSocketChannel server;
+		private final int maxLength;
+		private final Connection.Handler handler;
+
+		private Listener(ServerSocketChannel server, int maxLength,
+				Connection.Handler handler) {
+			this.server = server;
+			this.maxLength = maxLength;
+			this.handler = handler;
+		}
+
+		void accept() {
+			SocketChannel channel = null;
+			try {
+				channel = server.accept();
+				if (channel == null)
+					return;
+				channel.configureBlocking(false);
+				Connection connection = new Connection(ClientReactor.this,
+						channel, false, true, maxLength, handler);
+				register(connection);
+			} catch (IOException e) {
+				Log.warn("A chat connection could not be accepted: {}",
+						e.getMessage());
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ioe) {
+					}
+				}
+			}
+		}
+	}
+}
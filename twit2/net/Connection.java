@@ -0,0 +1,354 @@
+package twit2.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import twit2.io.ChannelWriter;
+import twit2.io.Frame;
+
+/**
+ * A Connection is one socket of the client, serviced by a
+ * {@link ClientReactor}: the connection with the name server, or a chat with
+ * another peer. What is read from it is handed, one message at a time, to
+ * its {@link Handler}. Messages are sent from any thread; they are written
+ * straight away if the socket accepts them, and otherwise once it is
+ * writable again.
+ * 
+ * @author os75
+ */
+public final class Connection {
+	private static final int BUFFER_SIZE = 8192;
+	private final ClientReactor reactor;
+	private final SocketChannel channel;
+	private final int maxLength;
+	// Only touched by the reactor.
+	private ByteBuffer readBuffer;
+	private boolean detect;
+	private volatile boolean framed;
+	private volatile Handler handler;
+	private volatile SelectionKey key;
+	// Guarded by output.
+	private final ChannelWriter output;
+	private boolean open;
+
+	/**
+	 * Create a new connection, which is serviced once the reactor has
+	 * registered it.
+	 * 
+	 * @param reactor
+	 *            The reactor servicing the connection.
+	 * @param channel
+	 *            A connected, non-blocking channel.
+	 * @param framed
+	 *            true if the peer sends frames.
+	 * @param detect
+	 *            true to tell whether the peer sends frames from the first
+	 *            byte it sends instead.
+	 * @param maxLength
+	 *            The longest frame accepted, and the most read at once from a
+	 *            peer which does not send frames.
+	 * @param handler
+	 *            The handler of the messages read.
+	 */
+	Connection(ClientReactor reactor, SocketChannel channel, boolean framed,
+			boolean detect, int maxLength, Handler handler) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.framed = framed;
+		this.detect = detect;
+		this.maxLength = maxLength;
+		this.handler = handler;
+		readBuffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE,
+				Frame.HEADER_LENGTH + maxLength));
+		output = new ChannelWriter(channel);
+		open = true;
+	}
+
+	/**
+	 * Called by the reactor once the connection is registered with it.
+	 * 
+	 * @param key
+	 *            The key of the connection.
+	 */
+	void setKey(SelectionKey key) {
+		synchronized (output) {
+			this.key = key;
+			if (!output.isEmpty())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Hand the messages read from now on to another handler. Called by the
+	 * reactor, such as by the handler itself once the peer has introduced
+	 * itself.
+	 * 
+	 * @param handler
+	 *            The new handler.
+	 */
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Send and expect frames from now on, the peer having asked for them in
+	 * the message being handled. Called by the reactor, from the handler of
+	 * that message.
+	 */
+	public void useFrames() {
+		readBuffer.clear();
+		detect = false;
+		framed = true;
+	}
+
+	/**
+	 * @return true if messages are sent and received in frames.
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Read what the peer has sent. Called by the reactor when the connection
+	 * is readable.
+	 */
+	void read() {
+		try {
+			// Unframed, whatever one read returns is taken to be a message.
+			if (!framed && !detect) {
+				readBuffer.clear();
+				readBuffer.limit(Math.min(maxLength, readBuffer.capacity()));
+			}
+			int length = channel.read(readBuffer);
+			if (length == -1) {
+				end();
+				return;
+			} else if (length == 0) {
+				return;
+			}
+			if (detect) {
+				// A frame starts with its type, which no text starts with.
+				detect = false;
+				framed = Frame.isType(readBuffer.get(0));
+			}
+			if (framed) {
+				receiveFrames();
+			} else {
+				byte[] bytes = readBuffer.array();
+				handler.received(this, Frame.typeOf(bytes, 0, length), bytes,
+						0, length);
+			}
+		} catch (IOException e) {
+			end();
+		}
+	}
+
+	/**
+	 * Handle the frames read so far, where they are in the buffer, keeping
+	 * any incomplete one until the rest of it arrives.
+	 * 
+	 * @throws IOException
+	 *             If a frame is malformed or too long, or the handler fails.
+	 */
+	private void receiveFrames() throws IOException {
+		readBuffer.flip();
+		int length;
+		while (isOpen()
+				&& (length = Frame.available(readBuffer, maxLength)) != -1) {
+			int start = readBuffer.position();
+			readBuffer.position(start + Frame.HEADER_LENGTH + length);
+			handler.received(this, readBuffer.get(start), readBuffer.array(),
+					start + Frame.HEADER_LENGTH, length);
+		}
+		readBuffer.compact();
+		if (readBuffer.position() >= Frame.HEADER_LENGTH) {
+			// The frame waited for may not fit, its length having been
+			// checked against maxLength already.
+			int needed = Frame.HEADER_LENGTH + readBuffer.getInt(1);
+			if (needed > readBuffer.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(needed);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		} else if (readBuffer.capacity() > BUFFER_SIZE) {
+			// Shrink back once a long frame has been handled.
+			ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+			readBuffer.flip();
+			smaller.put(readBuffer);
+			readBuffer = smaller;
+		}
+	}
+
+	/**
+	 * Send a message.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in, if framed.
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection is closed or an error occurs while
+	 *             writing.
+	 */
+	public void send(byte type, String message) throws IOException {
+		send(type, message.getBytes());
+	}
+
+	/**
+	 * Send a message, in a frame of a given type if the peer sends frames.
+	 * 
+	 * @param type
+	 *            The type of frame to send the message in, if framed.
+	 * @param message
+	 *            A message.
+	 * @throws IOException
+	 *             If the connection is closed or an error occurs while
+	 *             writing.
+	 */
+	public void send(byte type, byte[] message) throws IOException {
+		synchronized (output) {
+			if (!open)
+				throw new IOException("Connection closed");
+			if (framed)
+				output.add(Frame.header(type, message.length));
+			output.add(ByteBuffer.wrap(message));
+			writeQueued();
+		}
+	}
+
+	/**
+	 * Write as much of the queued output as the connection accepts. Called by
+	 * the reactor when the connection is writable.
+	 */
+	void flush() {
+		try {
+			synchronized (output) {
+				if (open)
+					writeQueued();
+			}
+		} catch (IOException e) {
+			end();
+		}
+	}
+
+	/**
+	 * Write queued buffers until the queue is empty or the connection stops
+	 * accepting data, in which case the reactor is asked to call
+	 * {@link #flush()} once it is writable again. Must hold the lock of the
+	 * write queue.
+	 * 
+	 * @throws IOException
+	 *             If an error occurs while writing.
+	 */
+	private void writeQueued() throws IOException {
+		output.flush();
+		SelectionKey key = this.key;
+		if (key == null || !key.isValid())
+			return;
+		int ops = output.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		if (key.interestOps() != ops) {
+			key.interestOps(ops);
+			reactor.wakeup();
+		}
+	}
+
+	/**
+	 * Close the connection, from any thread, after writing what it accepts
+	 * of the queued output. The handler is not told.
+	 */
+	public void close() {
+		synchronized (output) {
+			if (!open)
+				return;
+			open = false;
+			try {
+				output.flush();
+			} catch (IOException e) {
+			}
+			output.clear();
+		}
+		closeChannel();
+	}
+
+	/**
+	 * Close the connection because the peer closed it or it failed, and tell
+	 * the handler. Called by the reactor.
+	 */
+	private void end() {
+		synchronized (output) {
+			if (!open)
+				return;
+			open = false;
+			output.clear();
+		}
+		closeChannel();
+		handler.closed(this);
+	}
+
+	private void closeChannel() {
+		SelectionKey key = this.key;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		// The socket is only really closed once the selector lets go of it.
+		reactor.wakeup();
+	}
+
+	/**
+	 * Tells if the connection is open.
+	 * 
+	 * @return true if the connection has not been closed by either side.
+	 */
+	public boolean isOpen() {
+		synchronized (output) {
+			return open;
+		}
+	}
+
+	/**
+	 * A Handler is told what is read from a connection. It is called by the
+	 * reactor thread, so it must not touch Swing components itself; it hands
+	 * what is to be shown to {@link ClientReactor#dispatch(Runnable)}.
+	 */
+	public interface Handler {
+
+		/**
+		 * A message was received.
+		 * 
+		 * @param connection
+		 *            The connection.
+		 * @param type
+		 *            The type of the message.
+		 * @param bytes
+		 *            The bytes received, only valid during the call.
+		 * @param offset
+		 *            The start of the message.
+		 * @param length
+		 *            The length of the message.
+		 * @throws IOException
+		 *             If the message is malformed, to close the connection.
+		 */
+		void received(Connection connection, byte type, byte[] bytes,
+				int offset, int length) throws IOException;
+
+		/**
+		 * The peer closed the connection, or it failed. Not called when the
+		 * connection is closed with {@link Connection#close()}.
+		 * 
+		 * @param connection
+		 *            The connection.
+		 */
+		void closed(Connection connection);
+	}
+}